@@ -0,0 +1,109 @@
+package dja33.msc.ukc.myapplication;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ *
+ * Android Location Source
+ *
+ * Users location from the device through the LocationManager, using
+ * GPS and falling back on the network provider. Both are listened to but
+ * a fix from the other provider than the last is only delivered if it is
+ * no less accurate or the last has gone stale, i.e GPS lost indoors, so
+ * coarse network fixes don't pull the user back and forth between GPS
+ * fixes. Fixes are delivered on the main thread. Needs the location permission, which must be granted
+ * at runtime before starting, without it no fixes are delivered and the
+ * user stays where they were.
+ */
+public class AndroidLocationSource implements UserLocationSource {
+
+    private static final String TAG = "AndroidLocationSource";
+
+    /* Fixes closer together than this in time or distance are not delivered */
+    private static final long MIN_TIME_BETWEEN_FIXES = 1000;
+    private static final float MIN_DISTANCE_BETWEEN_FIXES = 5;
+
+    /* Age in ms after which the last fix can be replaced by a less accurate one */
+    private static final long STALE_FIX = 30000;
+
+    private final LocationManager manager;
+    private LocationListener updates;
+
+    // Last fix delivered, only touched on the main thread
+    private Location last;
+
+    public AndroidLocationSource(final Context context){
+        this.manager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        stop();
+        updates = new LocationListener() {
+            @Override
+            public void onLocationChanged(Location location) {
+                if(isBetter(location)){
+                    last = location;
+                    listener.onLocationChanged(location.getLatitude(), location.getLongitude());
+                }
+            }
+
+            @Override
+            public void onStatusChanged(String provider, int status, Bundle extras) {
+            }
+
+            @Override
+            public void onProviderEnabled(String provider) {
+            }
+
+            @Override
+            public void onProviderDisabled(String provider) {
+            }
+        };
+
+        try {
+            final Location known = manager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+            if(known != null){
+                updates.onLocationChanged(known);
+            }
+            for(String provider : new String[]{LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER}){
+                if(manager.isProviderEnabled(provider)){
+                    manager.requestLocationUpdates(provider, MIN_TIME_BETWEEN_FIXES, MIN_DISTANCE_BETWEEN_FIXES,
+                            updates, Looper.getMainLooper());
+                }
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "No permission to read the users location.", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if(updates != null){
+            manager.removeUpdates(updates);
+            updates = null;
+        }
+        last = null;
+    }
+
+    /**
+     * Whether a fix should replace the last one delivered
+     * @param fix The new fix
+     * @return true if it is from the same provider, no less accurate or the last is stale
+     */
+    private boolean isBetter(final Location fix){
+        if(last == null || fix.getTime() - last.getTime() > STALE_FIX){
+            return true;
+        }
+        if(fix.getProvider().equals(last.getProvider())){
+            return true;
+        }
+        return !last.hasAccuracy() || (fix.hasAccuracy() && fix.getAccuracy() <= last.getAccuracy());
+    }
+}
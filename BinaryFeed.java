@@ -0,0 +1,263 @@
+package dja33.msc.ukc.myapplication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Binary Feed
+ *
+ * Compact binary form of the friend feed, offered next to the JSON with
+ * the content type {@link #CONTENT_TYPE}. Laid out big endian as:
+ *
+ *   magic    4 bytes, "FRF1"
+ *   names    varint count, then each name as a varint length and UTF-8 bytes
+ *   users    varint count, then each user as
+ *              lat   4 byte int, degrees x 10^7
+ *              lon   4 byte int, degrees x 10^7
+ *              name  varint index into the names
+ *
+ * A user takes 9 to 11 bytes against roughly 60 for the JSON and no
+ * number has to be read from text. Positions are rounded to 10^-7
+ * degrees, about a centimetre, so a feed gives the same positions every
+ * time it is sent but not exactly those of its JSON form.
+ *
+ * The Decoder reads straight from a ByteBuffer and keeps the names of
+ * earlier feeds, names are matched against them byte for byte in the
+ * buffer so a name already seen costs no String or copy.
+ */
+public final class BinaryFeed {
+
+    /* Content type to ask for in Accept and look for in Content-Type */
+    public static final String CONTENT_TYPE = "application/x-friend-feed";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x46524631;
+    private static final double E7 = 1e7;
+
+    private BinaryFeed(){
+    }
+
+    /**
+     * Builds a feed from users passed to it as a Sink, i.e from the JSON
+     * parser. A name given more than once is only kept the first time.
+     */
+    public static final class Encoder implements UserFeedParser.Sink {
+
+        private final Map<String, Integer> index = new HashMap<>();
+        private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream users = new ByteArrayOutputStream();
+        private int userCount;
+
+        @Override
+        public void onUser(final double lat, final double lon, final String name) {
+            if(index.containsKey(name)){
+                return;
+            }
+            final int id = index.size();
+            index.put(name, id);
+            final byte[] bytes = name.getBytes(UTF_8);
+            writeVarint(names, bytes.length);
+            names.write(bytes, 0, bytes.length);
+
+            writeInt(users, (int) Math.round(lat * E7));
+            writeInt(users, (int) Math.round(lon * E7));
+            writeVarint(users, id);
+            userCount++;
+        }
+
+        /**
+         * The feed of every user given so far
+         * @return the encoded feed
+         */
+        public byte[] toByteArray(){
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(names.size() + users.size() + 16);
+            writeInt(out, MAGIC);
+            writeVarint(out, index.size());
+            out.write(names.toByteArray(), 0, names.size());
+            writeVarint(out, userCount);
+            out.write(users.toByteArray(), 0, users.size());
+            return out.toByteArray();
+        }
+
+        private static void writeInt(final ByteArrayOutputStream out, final int value){
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private static void writeVarint(final ByteArrayOutputStream out, int value){
+            while((value & ~0x7F) != 0){
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    /**
+     * Reads feeds into a Sink. Keep one per feed, the names it has seen are
+     * reused by later feeds. Only use from one thread at a time.
+     */
+    public static final class Decoder {
+
+        /* Names kept from earlier feeds beyond those in the last one before they are dropped */
+        private static final int MIN_CACHE = 1024;
+
+        // Open addressed by hash of the UTF-8 bytes, both null where empty
+        private byte[][] keys = new byte[2048][];
+        private String[] values = new String[2048];
+        private int cached;
+
+        // Names of the feed being read, by index
+        private String[] table = new String[64];
+
+        /**
+         * Read a feed from the buffer's position to its limit, the position is left after the feed
+         * @param in The feed
+         * @param sink Where to send each user
+         * @return the number of users read
+         * @throws IOException If the feed is malformed or cut short, users already read have been passed on
+         */
+        public int decode(final ByteBuffer in, final UserFeedParser.Sink sink) throws IOException {
+            try {
+                if(in.getInt() != MAGIC){
+                    throw new IOException("Not a binary friend feed.");
+                }
+                final int names = readCount(in);
+                if(names > in.remaining()){
+                    throw new BufferUnderflowException();
+                }
+                if(cached > Math.max(MIN_CACHE, names * 2)){
+                    // Mostly names that have gone, start again
+                    Arrays.fill(keys, null);
+                    Arrays.fill(values, null);
+                    cached = 0;
+                }
+                if(table.length < names){
+                    table = new String[Math.max(names, table.length * 2)];
+                }
+                for(int i = 0; i < names; i++){
+                    table[i] = readName(in);
+                }
+
+                final int users = readCount(in);
+                for(int i = 0; i < users; i++){
+                    final double lat = in.getInt() / E7;
+                    final double lon = in.getInt() / E7;
+                    final int name = readVarint(in);
+                    if(name < 0 || name >= names){
+                        throw new IOException("Name " + name + " is not in the table of " + names + ".");
+                    }
+                    sink.onUser(lat, lon, table[name]);
+                }
+                Arrays.fill(table, 0, names, null);
+                return users;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Binary friend feed is cut short.");
+            }
+        }
+
+        /**
+         * Read a name, found among those already seen without copying it if possible
+         */
+        private String readName(final ByteBuffer in) throws IOException {
+            final int length = readCount(in);
+            if(length > in.remaining()){
+                throw new BufferUnderflowException();
+            }
+            final int start = in.position();
+            int hash = 1;
+            for(int i = 0; i < length; i++){
+                hash = 31 * hash + in.get(start + i);
+            }
+
+            final int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            for(byte[] key; (key = keys[slot]) != null; slot = (slot + 1) & mask){
+                if(matches(key, in, start, length)){
+                    in.position(start + length);
+                    return values[slot];
+                }
+            }
+
+            // Not seen before
+            final byte[] bytes = new byte[length];
+            in.get(bytes);
+            final String name = new String(bytes, UTF_8);
+            keys[slot] = bytes;
+            values[slot] = name;
+            if(++cached * 2 > keys.length){
+                grow();
+            }
+            return name;
+        }
+
+        private void grow(){
+            final byte[][] oldKeys = keys;
+            final String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+            final int mask = keys.length - 1;
+            for(int i = 0; i < oldKeys.length; i++){
+                final byte[] key = oldKeys[i];
+                if(key == null){
+                    continue;
+                }
+                int slot = mix(Arrays.hashCode(key)) & mask;
+                while(keys[slot] != null){
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static boolean matches(final byte[] key, final ByteBuffer in, final int start, final int length){
+            if(key.length != length){
+                return false;
+            }
+            for(int i = 0; i < length; i++){
+                if(key[i] != in.get(start + i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Spread the hash so names differing in their last bytes don't share slots
+         */
+        private static int mix(final int hash){
+            final int h = hash * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int readCount(final ByteBuffer in) throws IOException {
+            final int count = readVarint(in);
+            if(count < 0){
+                throw new IOException("Negative count in binary friend feed.");
+            }
+            return count;
+        }
+
+        private static int readVarint(final ByteBuffer in) throws IOException {
+            int value = 0;
+            for(int shift = 0; shift < 35; shift += 7){
+                final byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if(b >= 0){
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long in binary friend feed.");
+        }
+    }
+}
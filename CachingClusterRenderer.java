@@ -0,0 +1,540 @@
+package dja33.msc.ukc.myapplication;
+
+import android.content.Context;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.maps.android.MarkerManager;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.clustering.ClusterManager;
+import com.google.maps.android.clustering.view.ClusterRenderer;
+import com.google.maps.android.ui.IconGenerator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * Caching Cluster Renderer
+ *
+ * Renders clusters for the ClusterManager without the two costs of the
+ * default renderer on every re-cluster, drawing a new icon for each
+ * cluster and removing every marker to add it again.
+ *
+ * Cluster sizes are put in buckets, 10+, 20+, 50+ and so on, and the icon
+ * for each bucket and style is drawn once and kept in a bounded LRU cache
+ * along with the icons of single items. How often the cache is hit and
+ * missed is counted, see {@link #getIconCacheHits()}.
+ *
+ * Markers are kept across re-clusters, an item still shown on its own
+ * keeps its marker and a cluster keeps the marker of the nearest cluster
+ * shown within a few pixels of it, so a cluster that shifts a little as
+ * its items move doesn't swap markers. Markers no longer needed are moved
+ * and given a new icon for whatever needs one, those left over are hidden
+ * and kept for the next re-cluster, so only growth beyond that adds
+ * markers. Snippets are left for the click listener to fill in.
+ *
+ * The ClusterManager renders on the main thread, as must any other use.
+ *
+ * @param <T> The type of ClusterItem
+ */
+public class CachingClusterRenderer<T extends ClusterItem> implements ClusterRenderer<T> {
+
+    /* Smallest size of each bucket, clusters smaller than the first show their exact size */
+    private static final int[] BUCKETS = { 10, 20, 50, 100, 200, 500, 1000 };
+
+    /* Fewest items shown as a cluster rather than one by one, same as the default renderer */
+    private static final int DEFAULT_MIN_CLUSTER_SIZE = 4;
+
+    /* Hidden markers kept of each kind for the next re-cluster, more than this are removed */
+    private static final int MAX_SPARE = 64;
+
+    /* Set in icon keys of single items, which are keyed by hue rather than bucket */
+    private static final long ITEM_ICON = 1L << 62;
+
+    /* Furthest in pixels a cluster can be from one shown before and keep its marker */
+    private static final double MATCH_DISTANCE = 32;
+
+    /* Width in pixels of the whole map at zoom 0 */
+    private static final double WORLD_SIZE = 256;
+
+    private final IconGenerator iconGenerator;
+    private final GoogleMap map;
+    private final ClusterManager<T> clusterManager;
+    private final Map<Long, BitmapDescriptor> icons;
+    private long hits;
+    private long misses;
+    private long added;
+    private long reused;
+
+    private int minClusterSize = DEFAULT_MIN_CLUSTER_SIZE;
+
+    // Markers on the map, both ways round
+    private Map<T, Marker> itemMarkers = new HashMap<>();
+    private final Map<Marker, T> markerItems = new HashMap<>();
+    private Map<Marker, Cluster<T>> markerClusters = new HashMap<>();
+    // Icon key each marker shows, so unchanged icons aren't set again
+    private final Map<Marker, Long> markerIcons = new HashMap<>();
+    // Hidden markers ready to be used again
+    private final ArrayDeque<Marker> spareItems = new ArrayDeque<>();
+    private final ArrayDeque<Marker> spareClusters = new ArrayDeque<>();
+
+    private ClusterManager.OnClusterClickListener<T> clusterClickListener;
+    private ClusterManager.OnClusterInfoWindowClickListener<T> clusterInfoWindowClickListener;
+    private ClusterManager.OnClusterItemClickListener<T> itemClickListener;
+    private ClusterManager.OnClusterItemInfoWindowClickListener<T> itemInfoWindowClickListener;
+
+    /**
+     * Create the renderer, give it to the ClusterManager with
+     * {@link ClusterManager#setRenderer(ClusterRenderer)}
+     * @param context Context for drawing the icons
+     * @param map The GoogleMap, for the zoom, markers are added through the ClusterManager's collections
+     * @param clusterManager The ClusterManager rendered for
+     * @param iconCacheSize Most icons kept, one per bucket and style in use plus one per item hue
+     */
+    public CachingClusterRenderer(final Context context, final GoogleMap map, final ClusterManager<T> clusterManager,
+                                  final int iconCacheSize){
+        if(iconCacheSize <= 0){
+            throw new IllegalArgumentException("Icon cache must hold at least one icon.");
+        }
+        this.iconGenerator = new IconGenerator(context);
+        this.map = map;
+        this.clusterManager = clusterManager;
+        this.icons = new LinkedHashMap<Long, BitmapDescriptor>(iconCacheSize * 2, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BitmapDescriptor> eldest) {
+                return size() > iconCacheSize;
+            }
+        };
+    }
+
+    @Override
+    public void onClustersChanged(final Set<? extends Cluster<T>> clusters) {
+        final List<Cluster<T>> shownClusters = new ArrayList<>();
+        final Map<T, Marker> shownItems = new HashMap<>();
+        final List<T> newItems = new ArrayList<>();
+        for(Cluster<T> cluster : clusters){
+            if(cluster.getSize() >= minClusterSize){
+                shownClusters.add(cluster);
+                continue;
+            }
+            for(T item : cluster.getItems()){
+                final Marker marker = itemMarkers.remove(item);
+                if(marker != null){
+                    // Still on its own, just follow it if it moved
+                    if(!item.getPosition().equals(marker.getPosition())){
+                        marker.setPosition(item.getPosition());
+                    }
+                    shownItems.put(item, marker);
+                    reused++;
+                }else{
+                    newItems.add(item);
+                }
+            }
+        }
+
+        // Markers of items no longer on their own are given to those newly on their own
+        final ArrayDeque<Marker> freed = new ArrayDeque<>(itemMarkers.values());
+        for(Marker marker : freed){
+            markerItems.remove(marker);
+        }
+        for(T item : newItems){
+            final Marker marker = itemMarker(item, freed);
+            shownItems.put(item, marker);
+            markerItems.put(marker, item);
+        }
+        release(freed, spareItems);
+        itemMarkers = shownItems;
+
+        // Cluster markers are matched to the nearest cluster shown before, within reach
+        final double reach = MATCH_DISTANCE / (WORLD_SIZE * Math.pow(2, map.getCameraPosition().zoom));
+        final Map<Long, List<Marker>> previous = new HashMap<>();
+        for(Map.Entry<Marker, Cluster<T>> e : markerClusters.entrySet()){
+            final LatLng at = e.getValue().getPosition();
+            final long cell = cell(WebMercator.toX(at.longitude), WebMercator.toY(at.latitude), reach, 0, 0);
+            List<Marker> markers = previous.get(cell);
+            if(markers == null){
+                markers = new ArrayList<>(1);
+                previous.put(cell, markers);
+            }
+            markers.add(e.getKey());
+        }
+        final Map<Marker, Cluster<T>> shown = new HashMap<>();
+        final List<Cluster<T>> newClusters = new ArrayList<>();
+        for(Cluster<T> cluster : shownClusters){
+            final Marker marker = nearest(previous, cluster.getPosition(), reach);
+            if(marker != null){
+                if(!cluster.getPosition().equals(markerClusters.get(marker).getPosition())){
+                    marker.setPosition(cluster.getPosition());
+                }
+                setIcon(marker, clusterIconKey(cluster));
+                shown.put(marker, cluster);
+                reused++;
+            }else{
+                newClusters.add(cluster);
+            }
+        }
+        final ArrayDeque<Marker> freedClusters = new ArrayDeque<>();
+        for(List<Marker> markers : previous.values()){
+            freedClusters.addAll(markers);
+        }
+        for(Cluster<T> cluster : newClusters){
+            shown.put(clusterMarker(cluster, freedClusters), cluster);
+        }
+        release(freedClusters, spareClusters);
+        markerClusters = shown;
+    }
+
+    /**
+     * Take the cluster marker nearest a position out of the grid
+     * @param previous Markers not yet matched, by grid cell
+     * @param position Where the cluster is
+     * @param reach Furthest away in Web Mercator units, the size of a grid cell
+     * @return the marker, null if none are in reach
+     */
+    private Marker nearest(final Map<Long, List<Marker>> previous, final LatLng position, final double reach){
+        final double x = WebMercator.toX(position.longitude);
+        final double y = WebMercator.toY(position.latitude);
+        Marker best = null;
+        List<Marker> bestCell = null;
+        double bestDistance = reach * reach;
+        // Anything in reach is in the same cell or one of its neighbours
+        for(int dx = -1; dx <= 1; dx++){
+            for(int dy = -1; dy <= 1; dy++){
+                final List<Marker> markers = previous.get(cell(x, y, reach, dx, dy));
+                if(markers == null){
+                    continue;
+                }
+                for(Marker marker : markers){
+                    final LatLng at = markerClusters.get(marker).getPosition();
+                    final double ox = WebMercator.toX(at.longitude) - x;
+                    final double oy = WebMercator.toY(at.latitude) - y;
+                    final double distance = ox * ox + oy * oy;
+                    if(distance <= bestDistance){
+                        best = marker;
+                        bestCell = markers;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+        if(best != null){
+            bestCell.remove(best);
+        }
+        return best;
+    }
+
+    /**
+     * Key of the grid cell a point is in, or of one of its neighbours
+     */
+    private static long cell(final double x, final double y, final double reach, final int dx, final int dy){
+        return ((long) Math.floor(x / reach) + dx) << 32 ^ ((long) Math.floor(y / reach) + dy) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * The marker showing an item on its own
+     * @param item The item
+     * @return the marker, null if the item is in a cluster or not shown
+     */
+    public Marker getMarker(final T item){
+        return itemMarkers.get(item);
+    }
+
+    /**
+     * The item a marker shows
+     * @param marker The marker
+     * @return the item, null if the marker shows a cluster or nothing
+     */
+    public T getClusterItem(final Marker marker){
+        return markerItems.get(marker);
+    }
+
+    /**
+     * The cluster a marker shows
+     * @param marker The marker
+     * @return the cluster, null if the marker shows an item or nothing
+     */
+    public Cluster<T> getCluster(final Marker marker){
+        return markerClusters.get(marker);
+    }
+
+    /**
+     * Set the fewest items shown as a cluster, takes effect on the next re-cluster
+     * @param minClusterSize Size, smaller clusters show each item
+     */
+    public void setMinClusterSize(final int minClusterSize){
+        this.minClusterSize = minClusterSize;
+    }
+
+    public int getMinClusterSize(){
+        return minClusterSize;
+    }
+
+    /**
+     * Number of icons taken from the cache
+     * @return hit count
+     */
+    public long getIconCacheHits(){
+        return hits;
+    }
+
+    /**
+     * Number of icons drawn because they weren't in the cache
+     * @return miss count
+     */
+    public long getIconCacheMisses(){
+        return misses;
+    }
+
+    /**
+     * Number of icons in the cache
+     * @return size
+     */
+    public int getIconCacheSize(){
+        return icons.size();
+    }
+
+    /**
+     * Number of markers added to the map, i.e because none were spare
+     * @return added count
+     */
+    public long getMarkersAdded(){
+        return added;
+    }
+
+    /**
+     * Number of times a marker was kept or used again rather than added
+     * @return reused count
+     */
+    public long getMarkersReused(){
+        return reused;
+    }
+
+    /**
+     * The bucket a cluster size falls in
+     * @param size Items in the cluster
+     * @return the smallest size of the bucket, the size itself below the first
+     */
+    protected int getBucket(final int size){
+        for(int i = BUCKETS.length - 1; i >= 0; i--){
+            if(size >= BUCKETS[i]){
+                return BUCKETS[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Text drawn on the icon for a bucket
+     * @param bucket The bucket
+     * @return the text
+     */
+    protected String getClusterText(final int bucket){
+        return bucket < BUCKETS[0] ? String.valueOf(bucket) : bucket + "+";
+    }
+
+    /**
+     * IconGenerator style of the icon for a bucket, larger clusters stand out more
+     * @param bucket The bucket
+     * @return the style
+     */
+    protected int getClusterStyle(final int bucket){
+        if(bucket < 20){
+            return IconGenerator.STYLE_BLUE;
+        }else if(bucket < 100){
+            return IconGenerator.STYLE_GREEN;
+        }else if(bucket < 500){
+            return IconGenerator.STYLE_ORANGE;
+        }
+        return IconGenerator.STYLE_RED;
+    }
+
+    /**
+     * Hue of the marker for an item on its own
+     * @param item The item
+     * @return a hue from BitmapDescriptorFactory
+     */
+    protected float getItemHue(final T item){
+        return BitmapDescriptorFactory.HUE_RED;
+    }
+
+    private long clusterIconKey(final Cluster<T> cluster){
+        final int bucket = getBucket(cluster.getSize());
+        return ((long) getClusterStyle(bucket) << 32) | bucket;
+    }
+
+    private long itemIconKey(final T item){
+        return ITEM_ICON | Float.floatToIntBits(getItemHue(item));
+    }
+
+    /**
+     * The icon for a key, drawn and cached if not already
+     */
+    private BitmapDescriptor icon(final long key){
+        BitmapDescriptor icon = icons.get(key);
+        if(icon != null){
+            hits++;
+            return icon;
+        }
+        misses++;
+        if((key & ITEM_ICON) != 0){
+            icon = BitmapDescriptorFactory.defaultMarker(Float.intBitsToFloat((int) key));
+        }else{
+            iconGenerator.setStyle((int) (key >>> 32));
+            icon = BitmapDescriptorFactory.fromBitmap(iconGenerator.makeIcon(getClusterText((int) key)));
+        }
+        icons.put(key, icon);
+        return icon;
+    }
+
+    private void setIcon(final Marker marker, final long key){
+        final Long shown = markerIcons.get(marker);
+        if(shown == null || shown != key){
+            marker.setIcon(icon(key));
+            markerIcons.put(marker, key);
+        }
+    }
+
+    /**
+     * A marker for an item, one freed by this re-cluster or a spare if there are any
+     */
+    private Marker itemMarker(final T item, final ArrayDeque<Marker> freed){
+        Marker marker = freed.poll();
+        if(marker == null){
+            marker = spareItems.poll();
+        }
+        if(marker == null){
+            final long key = itemIconKey(item);
+            marker = clusterManager.getMarkerCollection().addMarker(new MarkerOptions()
+                    .position(item.getPosition())
+                    .title(item.getTitle())
+                    .icon(icon(key)));
+            markerIcons.put(marker, key);
+            added++;
+            return marker;
+        }
+        marker.setPosition(item.getPosition());
+        marker.setTitle(item.getTitle());
+        // Not the snippet of the item it showed before, the click listener sets this one's
+        marker.setSnippet(null);
+        setIcon(marker, itemIconKey(item));
+        marker.setVisible(true);
+        reused++;
+        return marker;
+    }
+
+    /**
+     * A marker for a cluster, one freed by this re-cluster or a spare if there are any
+     */
+    private Marker clusterMarker(final Cluster<T> cluster, final ArrayDeque<Marker> freed){
+        Marker marker = freed.poll();
+        if(marker == null){
+            marker = spareClusters.poll();
+        }
+        final long key = clusterIconKey(cluster);
+        if(marker == null){
+            marker = clusterManager.getClusterMarkerCollection().addMarker(new MarkerOptions()
+                    .position(cluster.getPosition())
+                    .icon(icon(key))
+                    .anchor(0.5f, 0.5f));
+            markerIcons.put(marker, key);
+            added++;
+            return marker;
+        }
+        marker.setPosition(cluster.getPosition());
+        setIcon(marker, key);
+        marker.setVisible(true);
+        reused++;
+        return marker;
+    }
+
+    /**
+     * Hide the markers left over, keeping as many as there is room for
+     */
+    private void release(final ArrayDeque<Marker> freed, final ArrayDeque<Marker> spare){
+        for(Marker marker : freed){
+            if(spare.size() < MAX_SPARE){
+                marker.hideInfoWindow();
+                marker.setVisible(false);
+                spare.add(marker);
+            }else{
+                markerIcons.remove(marker);
+                marker.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onAdd() {
+        clusterManager.getMarkerCollection().setOnMarkerClickListener(new GoogleMap.OnMarkerClickListener() {
+            @Override
+            public boolean onMarkerClick(Marker marker) {
+                final T item = markerItems.get(marker);
+                return item != null && itemClickListener != null && itemClickListener.onClusterItemClick(item);
+            }
+        });
+        clusterManager.getMarkerCollection().setOnInfoWindowClickListener(new GoogleMap.OnInfoWindowClickListener() {
+            @Override
+            public void onInfoWindowClick(Marker marker) {
+                final T item = markerItems.get(marker);
+                if(item != null && itemInfoWindowClickListener != null){
+                    itemInfoWindowClickListener.onClusterItemInfoWindowClick(item);
+                }
+            }
+        });
+        clusterManager.getClusterMarkerCollection().setOnMarkerClickListener(new GoogleMap.OnMarkerClickListener() {
+            @Override
+            public boolean onMarkerClick(Marker marker) {
+                final Cluster<T> cluster = markerClusters.get(marker);
+                return cluster != null && clusterClickListener != null && clusterClickListener.onClusterClick(cluster);
+            }
+        });
+        clusterManager.getClusterMarkerCollection().setOnInfoWindowClickListener(new GoogleMap.OnInfoWindowClickListener() {
+            @Override
+            public void onInfoWindowClick(Marker marker) {
+                final Cluster<T> cluster = markerClusters.get(marker);
+                if(cluster != null && clusterInfoWindowClickListener != null){
+                    clusterInfoWindowClickListener.onClusterInfoWindowClick(cluster);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onRemove() {
+        clusterManager.getMarkerCollection().setOnMarkerClickListener(null);
+        clusterManager.getMarkerCollection().setOnInfoWindowClickListener(null);
+        clusterManager.getClusterMarkerCollection().setOnMarkerClickListener(null);
+        clusterManager.getClusterMarkerCollection().setOnInfoWindowClickListener(null);
+    }
+
+    @Override
+    public void setOnClusterClickListener(ClusterManager.OnClusterClickListener<T> listener) {
+        this.clusterClickListener = listener;
+    }
+
+    @Override
+    public void setOnClusterInfoWindowClickListener(ClusterManager.OnClusterInfoWindowClickListener<T> listener) {
+        this.clusterInfoWindowClickListener = listener;
+    }
+
+    @Override
+    public void setOnClusterItemClickListener(ClusterManager.OnClusterItemClickListener<T> listener) {
+        this.itemClickListener = listener;
+    }
+
+    @Override
+    public void setOnClusterItemInfoWindowClickListener(ClusterManager.OnClusterItemInfoWindowClickListener<T> listener) {
+        this.itemInfoWindowClickListener = listener;
+    }
+}
@@ -0,0 +1,424 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Cluster Quadtree
+ *
+ * Point quadtree over the unit square (i.e Web Mercator world coordinates)
+ * where every node keeps the count and coordinate sums of everything below
+ * it. The node at depth d covers exactly one cell of a 2^d by 2^d grid, so
+ * the nodes at a depth are the precomputed clusters for the matching zoom
+ * and are kept up to date on every insert and remove.
+ *
+ * Leaves hold up to a handful of entries before splitting, so sparse areas
+ * don't create long chains of nodes. A query for one level only visits the
+ * nodes that overlap the requested area, so its cost depends on the area
+ * asked for and not on the number of items.
+ *
+ * Not thread safe, guard with the same lock as the items.
+ *
+ * @param <T> The item type
+ */
+public class ClusterQuadtree<T> {
+
+    /* Deepest level of the tree, cells are ~2.4m across at the equator */
+    public static final int MAX_DEPTH = 24;
+
+    /* Entries a leaf holds before it is split */
+    private static final int LEAF_CAPACITY = 16;
+
+    /**
+     * A cluster produced by a query, either a whole node or the part
+     * of a leaf that falls into one cell of the level asked for
+     * @param <T> The item type
+     */
+    public abstract static class Cell<T> {
+
+        /* Kept up to date by nodes, fixed for the part of a leaf */
+        int count;
+        double sumX;
+        double sumY;
+
+        Cell(){
+        }
+
+        public int size(){
+            return count;
+        }
+
+        /** Mean x of the items, the cluster position */
+        public double x(){
+            return sumX / count;
+        }
+
+        /** Mean y of the items, the cluster position */
+        public double y(){
+            return sumY / count;
+        }
+
+        /**
+         * Gather the items in this cell, walks the subtree so only
+         * call it when the items are really needed
+         * @return the items
+         */
+        public abstract List<T> items();
+    }
+
+    /**
+     * Receives each cell found by a query
+     * @param <T> The item type
+     */
+    public interface Visitor<T> {
+        void visit(Cell<T> cell);
+    }
+
+    private Node<T> root;
+
+    /**
+     * Level of the tree whose cells are the clusters at a camera zoom
+     * @param zoom The camera zoom
+     * @param maxDistance Cluster size in screen pixels
+     * @return the level
+     */
+    public static int level(final double zoom, final int maxDistance){
+        return Math.max(0, Math.min(MAX_DEPTH, (int) Math.round(zoom + Math.log(256.0 / maxDistance) / Math.log(2))));
+    }
+
+    public ClusterQuadtree(){
+        clear();
+    }
+
+    public void clear(){
+        root = new Node<>(0, 0, 0);
+    }
+
+    public int size(){
+        return root.count;
+    }
+
+    /**
+     * Add an item, duplicates are kept as separate entries
+     * @param item The item
+     * @param x Its x in [0, 1)
+     * @param y Its y in [0, 1)
+     */
+    public void insert(final T item, final double x, final double y){
+        Node<T> node = root;
+        while(true){
+            node.add(x, y);
+            if(node.entries != null){
+                node.entries.add(new Entry<>(item, x, y));
+                if(node.entries.size() > LEAF_CAPACITY && node.depth < MAX_DEPTH){
+                    node.split();
+                }
+                return;
+            }
+            node = node.childFor(x, y, true);
+        }
+    }
+
+    /**
+     * Remove an item, it must be at the same coordinates it was inserted at
+     * @param item The item, matched by identity
+     * @param x Its x when inserted
+     * @param y Its y when inserted
+     * @return true if it was found and removed
+     */
+    public boolean remove(final T item, final double x, final double y){
+        // Find it first so nothing is touched if it isn't there
+        final List<Node<T>> path = new ArrayList<>(MAX_DEPTH + 1);
+        Node<T> node = root;
+        while(node != null && node.entries == null){
+            path.add(node);
+            node = node.childFor(x, y, false);
+        }
+        if(node == null || !node.removeEntry(item)){
+            return false;
+        }
+        node.subtract(x, y);
+
+        // Update the aggregates back up, dropping anything left empty
+        Node<T> child = node;
+        for(int i = path.size() - 1; i >= 0; i--){
+            final Node<T> parent = path.get(i);
+            parent.subtract(x, y);
+            if(child.count == 0){
+                parent.children[child.quadrant()] = null;
+            }
+            if(parent.count <= LEAF_CAPACITY / 2){
+                parent.merge();
+            }
+            child = parent;
+        }
+        return true;
+    }
+
+    /**
+     * Every item in the tree
+     * @param out Where to add them
+     */
+    public void collect(final Collection<? super T> out){
+        root.collect(out);
+    }
+
+    /**
+     * Find the clusters for a level that overlap an area, coordinates may
+     * run past the edge of [0, 1) but are not wrapped
+     * @param level The depth whose cells are the clusters
+     * @param minX Left of the area
+     * @param minY Top of the area
+     * @param maxX Right of the area
+     * @param maxY Bottom of the area
+     * @param visitor Receives each cluster
+     */
+    public void query(final int level, final double minX, final double minY, final double maxX, final double maxY,
+                      final Visitor<T> visitor){
+        query(root, Math.max(0, Math.min(MAX_DEPTH, level)), minX, minY, maxX, maxY, visitor);
+    }
+
+    private void query(final Node<T> node, final int level, final double minX, final double minY,
+                       final double maxX, final double maxY, final Visitor<T> visitor){
+        if(node == null || node.count == 0){
+            return;
+        }
+
+        // Skip anything outside the area
+        final double size = 1.0 / (1L << node.depth);
+        final double left = node.cellX * size;
+        final double top = node.cellY * size;
+        if(left > maxX || left + size < minX || top > maxY || top + size < minY){
+            return;
+        }
+
+        if(node.depth == level){
+            visitor.visit(node);
+            return;
+        }
+
+        if(node.entries != null){
+            // A leaf above the level asked for, split its entries by cell at that level
+            groupEntries(node.entries, level, minX, minY, maxX, maxY, visitor);
+            return;
+        }
+
+        for(Node<T> child : node.children){
+            query(child, level, minX, minY, maxX, maxY, visitor);
+        }
+    }
+
+    private static <T> void groupEntries(final List<Entry<T>> entries, final int level, final double minX,
+                                         final double minY, final double maxX, final double maxY,
+                                         final Visitor<T> visitor){
+        final long cells = 1L << level;
+        final double size = 1.0 / cells;
+        final Map<Long, Group<T>> groups = new HashMap<>();
+        for(Entry<T> e : entries){
+            final long cx = cell(e.x, cells);
+            final long cy = cell(e.y, cells);
+            if(cx * size > maxX || cx * size + size < minX || cy * size > maxY || cy * size + size < minY){
+                continue;
+            }
+            final long key = cx * cells + cy;
+            Group<T> group = groups.get(key);
+            if(group == null){
+                group = new Group<>();
+                groups.put(key, group);
+            }
+            group.add(e);
+        }
+        for(Group<T> group : groups.values()){
+            visitor.visit(group);
+        }
+    }
+
+    private static long cell(final double v, final long cells){
+        return Math.max(0, Math.min(cells - 1, (long) (v * cells)));
+    }
+
+    /**
+     * An item and the coordinates it was inserted at
+     */
+    private static final class Entry<T> {
+
+        final T item;
+        final double x;
+        final double y;
+
+        Entry(final T item, final double x, final double y){
+            this.item = item;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Entries from one leaf that share a cell at the level queried
+     */
+    private static final class Group<T> extends Cell<T> {
+
+        final List<T> members = new ArrayList<>(4);
+
+        void add(final Entry<T> e){
+            count++;
+            sumX += e.x;
+            sumY += e.y;
+            members.add(e.item);
+        }
+
+        @Override
+        public List<T> items(){
+            return members;
+        }
+    }
+
+    /**
+     * A node covering one cell, either a leaf holding entries or an
+     * inner node with up to four children
+     */
+    private static final class Node<T> extends Cell<T> {
+
+        final int depth;
+        final int cellX;
+        final int cellY;
+
+        List<Entry<T>> entries = new ArrayList<>(4);
+        Node<T>[] children;
+
+        Node(final int depth, final int cellX, final int cellY){
+            this.depth = depth;
+            this.cellX = cellX;
+            this.cellY = cellY;
+        }
+
+        @Override
+        public List<T> items(){
+            final List<T> items = new ArrayList<>(count);
+            collect(items);
+            return items;
+        }
+
+        void add(final double x, final double y){
+            count++;
+            sumX += x;
+            sumY += y;
+        }
+
+        void subtract(final double x, final double y){
+            count--;
+            sumX -= x;
+            sumY -= y;
+            if(count == 0){
+                // Drop any floating point residue
+                sumX = sumY = 0;
+            }
+        }
+
+        /**
+         * Which of the four children a point falls into
+         */
+        int quadrantFor(final double x, final double y){
+            final double cells = 1L << (depth + 1);
+            final int qx = (int) Math.min(1, Math.max(0, (long) (x * cells) - 2L * cellX));
+            final int qy = (int) Math.min(1, Math.max(0, (long) (y * cells) - 2L * cellY));
+            return qy * 2 + qx;
+        }
+
+        /**
+         * Where this node sits in its parent
+         */
+        int quadrant(){
+            return (cellY & 1) * 2 + (cellX & 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<T> childFor(final double x, final double y, final boolean create){
+            if(children == null){
+                if(!create){
+                    return null;
+                }
+                children = (Node<T>[]) new Node<?>[4];
+            }
+            final int q = quadrantFor(x, y);
+            Node<T> child = children[q];
+            if(child == null && create){
+                child = new Node<>(depth + 1, cellX * 2 + (q & 1), cellY * 2 + (q >> 1));
+                children[q] = child;
+            }
+            return child;
+        }
+
+        boolean removeEntry(final T item){
+            for(int i = 0; i < entries.size(); i++){
+                if(entries.get(i).item == item){
+                    entries.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Turn a full leaf into an inner node, pushing its entries down
+         */
+        void split(){
+            final List<Entry<T>> moving = entries;
+            entries = null;
+            for(Entry<T> e : moving){
+                final Node<T> child = childFor(e.x, e.y, true);
+                child.add(e.x, e.y);
+                child.entries.add(e);
+            }
+            // Everything may have landed in one child, keep splitting that
+            for(Node<T> child : children){
+                if(child != null && child.entries.size() > LEAF_CAPACITY && child.depth < MAX_DEPTH){
+                    child.split();
+                }
+            }
+        }
+
+        /**
+         * Turn an inner node that has become sparse back into a leaf
+         */
+        void merge(){
+            if(entries != null){
+                return;
+            }
+            final List<Entry<T>> gathered = new ArrayList<>(count);
+            gatherEntries(gathered);
+            entries = gathered;
+            children = null;
+        }
+
+        private void gatherEntries(final List<Entry<T>> out){
+            if(entries != null){
+                out.addAll(entries);
+                return;
+            }
+            for(Node<T> child : children){
+                if(child != null){
+                    child.gatherEntries(out);
+                }
+            }
+        }
+
+        void collect(final Collection<? super T> out){
+            if(entries != null){
+                for(Entry<T> e : entries){
+                    out.add(e.item);
+                }
+                return;
+            }
+            for(Node<T> child : children){
+                if(child != null){
+                    child.collect(out);
+                }
+            }
+        }
+    }
+}
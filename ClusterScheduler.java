@@ -0,0 +1,304 @@
+package dja33.msc.ukc.myapplication;
+
+import android.os.Handler;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.clustering.algo.Algorithm;
+import com.google.maps.android.clustering.view.ClusterRenderer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Cluster Scheduler
+ *
+ * Stands in for {@link com.google.maps.android.clustering.ClusterManager#cluster()},
+ * changing the items and clustering them off the main thread and only
+ * as often as is worth it.
+ *
+ * Requests made within the window of the first are coalesced into one
+ * run, item changes are queued in order and the zoom is read from the
+ * camera when the run starts. Runs go to a single worker thread which
+ * applies the changes to the algorithm then clusters, and the clusters
+ * are posted back to the main thread for the renderer.
+ *
+ * A run with a newer run already queued behind it is stale. It still
+ * applies its changes, so the algorithm misses none, but leaves the
+ * clustering to the newer run. Clusters a run finishes are rendered even
+ * if more requests came in meanwhile, so updates arriving faster than the
+ * clustering still show the latest completed clusters, and only a result
+ * older than one already rendered is dropped. The same clusters are not
+ * rendered twice, i.e when the algorithm hands back its cached result
+ * because the camera moved within the clustered area.
+ *
+ * Each clustering is timed as the CLUSTER stage of the PollMetrics.
+ *
+ * Requests must be made on the main thread.
+ *
+ * @param <T> The type of ClusterItem
+ */
+public class ClusterScheduler<T extends ClusterItem> {
+
+    private final GoogleMap map;
+    private final Algorithm<T> algorithm;
+    private final ClusterRenderer<T> renderer;
+    private final Handler mainHandler;
+    private final long window;
+    private final PollMetrics metrics;
+    private ExecutorService worker;
+    private boolean shutdown;
+
+    // Item changes not yet given to the worker, in order, only touched on the main thread
+    private List<Change<T>> pending = new ArrayList<>();
+    private boolean scheduled;
+
+    // Id of the latest run given to the worker, a run is stale once a newer one is queued
+    private final AtomicLong dispatched = new AtomicLong();
+
+    // Runs up to this id were dropped by shutdown, only touched on the main thread
+    private long cancelled;
+
+    // Clusters last given to the renderer and the run they came from, only touched on the main thread
+    private Set<? extends Cluster<T>> rendered;
+    private long renderedRun;
+
+    private long requests;
+    private long runs;
+    private long renders;
+    private final AtomicLong stale = new AtomicLong();
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Create the scheduler, no thread is started until the first run
+     * @param map The GoogleMap, for the zoom
+     * @param algorithm Holds the items and clusters them, must be safe to use from the worker
+     * @param renderer Given the clusters on the main thread
+     * @param mainHandler Handler on the main thread
+     * @param window How long requests are coalesced for in ms
+     * @param metrics Where the time spent clustering is recorded
+     */
+    public ClusterScheduler(final GoogleMap map, final Algorithm<T> algorithm, final ClusterRenderer<T> renderer,
+                            final Handler mainHandler, final long window, final PollMetrics metrics){
+        this.map = map;
+        this.algorithm = algorithm;
+        this.renderer = renderer;
+        this.mainHandler = mainHandler;
+        this.window = window;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Replace every item, changes still queued are covered by this and dropped
+     * @param items The items
+     */
+    public void setItems(final Collection<T> items){
+        if(shutdown){
+            return;
+        }
+        pending.clear();
+        pending.add(new Change<>(true, Collections.<T>emptyList(), Collections.<T>emptyList(), new ArrayList<>(items)));
+        request();
+    }
+
+    /**
+     * Remove every item
+     */
+    public void clearItems(){
+        setItems(Collections.<T>emptyList());
+    }
+
+    /**
+     * Queue changes to the items
+     * @param removed Items to remove
+     * @param moved Items whose position has changed in place
+     * @param added Items to add
+     */
+    public void applyChanges(final Collection<T> removed, final Collection<T> moved, final Collection<T> added){
+        if(shutdown){
+            return;
+        }
+        pending.add(new Change<>(false, new ArrayList<>(removed), new ArrayList<>(moved), new ArrayList<>(added)));
+        request();
+    }
+
+    /**
+     * Recluster without changing the items, i.e because the camera moved
+     */
+    public void cluster(){
+        request();
+    }
+
+    /**
+     * Stop the worker and anything scheduled, changes not yet applied are
+     * dropped. The algorithm may be left part way through a run, so the
+     * scheduler can't be used again and any further request is ignored.
+     */
+    public void shutdown(){
+        shutdown = true;
+        mainHandler.removeCallbacks(dispatch);
+        pending.clear();
+        scheduled = false;
+        cancelled = dispatched.get();
+        if(worker != null){
+            worker.shutdownNow();
+            worker = null;
+        }
+    }
+
+    /**
+     * Number of requests made, i.e to compare against the runs they were coalesced into
+     * @return request count
+     */
+    public long getRequestCount(){
+        return requests;
+    }
+
+    /**
+     * Number of runs given to the worker
+     * @return run count
+     */
+    public long getRunCount(){
+        return runs;
+    }
+
+    /**
+     * Number of runs that left their clustering to a newer run or whose
+     * clusters were older than those already rendered
+     * @return stale count
+     */
+    public long getStaleCount(){
+        return stale.get();
+    }
+
+    /**
+     * Number of times the renderer was given new clusters
+     * @return render count
+     */
+    public long getRenderCount(){
+        return renders;
+    }
+
+    private void request(){
+        if(shutdown){
+            return;
+        }
+        requests++;
+        if(!scheduled){
+            scheduled = true;
+            mainHandler.postDelayed(dispatch, window);
+        }
+    }
+
+    /**
+     * Give the queued changes and current zoom to the worker
+     */
+    private void dispatch(){
+        scheduled = false;
+        final List<Change<T>> changes = pending;
+        pending = new ArrayList<>();
+        final float zoom = map.getCameraPosition().zoom;
+        final long run = dispatched.incrementAndGet();
+        runs++;
+
+        worker().execute(new Runnable() {
+            @Override
+            public void run() {
+                for(Change<T> change : changes){
+                    change.apply(algorithm);
+                }
+                if(dispatched.get() != run){
+                    // The newer run clusters with these changes applied
+                    stale.incrementAndGet();
+                    return;
+                }
+                final long start = metrics.start();
+                final Set<? extends Cluster<T>> clusters = algorithm.getClusters(zoom);
+                metrics.stop(PollMetrics.Stage.CLUSTER, start);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        render(run, clusters);
+                    }
+                });
+            }
+        });
+    }
+
+    private void render(final long run, final Set<? extends Cluster<T>> clusters){
+        if(run <= cancelled){
+            return;
+        }
+        if(run < renderedRun){
+            stale.incrementAndGet();
+            return;
+        }
+        renderedRun = run;
+        if(clusters != rendered){
+            rendered = clusters;
+            renders++;
+            renderer.onClustersChanged(clusters);
+        }
+    }
+
+    private ExecutorService worker(){
+        if(worker == null){
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "cluster-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return worker;
+    }
+
+    /**
+     * Changes to the items from one request, applied on the worker
+     */
+    private static final class Change<T extends ClusterItem> {
+        final boolean replace;
+        final List<T> removed;
+        final List<T> moved;
+        final List<T> added;
+
+        Change(final boolean replace, final List<T> removed, final List<T> moved, final List<T> added){
+            this.replace = replace;
+            this.removed = removed;
+            this.moved = moved;
+            this.added = added;
+        }
+
+        void apply(final Algorithm<T> algorithm){
+            if(replace){
+                algorithm.clearItems();
+            }
+            for(T item : removed){
+                algorithm.removeItem(item);
+            }
+            for(T item : moved){
+                // Already moved in place, the algorithm remembers where it was
+                algorithm.removeItem(item);
+                algorithm.addItem(item);
+            }
+            algorithm.addItems(added);
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package dja33.msc.ukc.myapplication;
 
-import com.google.android.gms.maps.model.LatLng;
-
-import static dja33.msc.ukc.myapplication.MapHandler.USER_LAT;
-import static dja33.msc.ukc.myapplication.MapHandler.USER_LON;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
@@ -13,39 +12,325 @@ import static dja33.msc.ukc.myapplication.MapHandler.USER_LON;
  * Uses the 'haversine' formula to calculate the great-circle distance between
  * two points. I.e as the crow flies, no google map plotting in this case.
  *
+ * Large lists of locations can be handled in bulk using parallel
+ * primitive arrays, avoiding any allocation per location and
+ * optionally splitting the work across a ForkJoinPool.
+ *
+ * Other levels of precision are available through {@link DistanceMetric},
+ * which can be combined to cull candidates cheaply before measuring
+ * the remaining few precisely.
+ *
+ * Distances are measured from the users location, which starts at
+ * USER_LAT/USER_LON and moves with {@link #setReference(double, double)}.
+ * Each move bumps an epoch so anything caching a distance can tell
+ * whether it is stale without measuring it again.
+ *
+ * Locations are plain lat and lon so this is free of Android and maps
+ * types and can be used on any JVM, i.e by the headless engine.
+ *
  * Created by Dante on 15/03/2017.
  */
 public class DistanceCalculator {
 
+    /* User lat and lon for senate building at the University,
+     * where the user is until a location source says otherwise */
+    public static final double USER_LAT = 51.297269;
+    public static final double USER_LON = 1.069740;
+
     // constant used for earths radius
-    private static final int EARTH_RADIUS = 6371;
+    static final int EARTH_RADIUS = 6371;
+
+    // the users location and its terms, replaced as a whole when the user moves
+    private static volatile Reference reference = new Reference(USER_LAT, USER_LON, 0);
+
+    // batches smaller than this are not worth splitting across threads
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    // reused for formatting so only the resulting String is allocated
+    private static final ThreadLocal<StringBuilder> FORMAT_BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(48);
+        }
+    };
 
     /**
      * Returns a pretty formatted string in
      * "distance away %dm | %.2fmi" from a location
      * provided to the users location
-     * @param latLng The location to reference
+     * @param latitude Latitude of the location to reference
+     * @param longitude Longitude of the location to reference
+     * @return formatted string
+     */
+    public static String getDistance(final double latitude, final double longitude){
+        return formatDistance(calculateDistance(latitude, longitude));
+    }
+
+    /**
+     * Returns a pretty formatted string in
+     * "distance away %dm | %.2fmi" for an already calculated distance
+     * @param distance The distance in km
+     * @return formatted string
+     */
+    public static String formatDistance(final double distance){
+        final StringBuilder out = FORMAT_BUFFER.get();
+        out.setLength(0);
+        return appendDistance(out, distance).toString();
+    }
+
+    /**
+     * Append "Distance away: %dm | %.2fmi" for an already calculated
+     * distance, allocates nothing beyond growing the builder
+     * @param out Where to append
+     * @param distance The distance in km
+     * @return out, for chaining
+     */
+    public static StringBuilder appendDistance(final StringBuilder out, final double distance){
+        out.append("Distance away: ").append(distanceToInt(distance)).append("m | ");
+        appendHundredths(out, kilometersToMiles(distance));
+        return out.append("mi");
+    }
+
+    /**
+     * Same as {@link #getDistance(double, double)} but measured using the given metric
+     * @param latitude Latitude of the location to reference
+     * @param longitude Longitude of the location to reference
+     * @param metric How to measure the distance
      * @return formatted string
      */
-    public static String getDistance(final LatLng latLng){
-        final double distance = calculateDistance(latLng);
-        return String.format("Distance away: %dm | %.2fmi", distanceToInt(distance), kilometersToMiles(distance));
+    public static String getDistance(final double latitude, final double longitude, final DistanceMetric metric){
+        return formatDistance(calculateDistance(latitude, longitude, metric));
     }
 
     /**
      * Calculate the distance between one location and another
-     * @param latlng The location to reference
+     * @param latitude Latitude of the location to reference
+     * @param longitude Longitude of the location to reference
      * @return distance (As the crow flies) in metres
      */
-    public static double calculateDistance(LatLng latlng) {
+    public static double calculateDistance(final double latitude, final double longitude) {
+        final Reference ref = reference;
+        return haversine(ref.latRad, ref.lonRad, ref.cosLat, latitude, longitude);
+    }
+
+    /**
+     * Calculate the distance between the users location and another
+     * using the given metric
+     * @param latitude Latitude of the location to reference
+     * @param longitude Longitude of the location to reference
+     * @param metric How to measure the distance
+     * @return distance in km
+     */
+    public static double calculateDistance(final double latitude, final double longitude, final DistanceMetric metric) {
+        final Reference ref = reference;
+        return metric.distance(ref.latitude, ref.longitude, latitude, longitude);
+    }
+
+    /**
+     * Move the users location that distances are measured from
+     * @param latitude The users latitude
+     * @param longitude The users longitude
+     */
+    public static synchronized void setReference(final double latitude, final double longitude) {
+        final Reference current = reference;
+        if(current.latitude != latitude || current.longitude != longitude){
+            reference = new Reference(latitude, longitude, current.epoch + 1);
+        }
+    }
+
+    public static double getReferenceLatitude() {
+        return reference.latitude;
+    }
+
+    public static double getReferenceLongitude() {
+        return reference.longitude;
+    }
+
+    /**
+     * Bumped every time the users location moves, a distance measured
+     * under a different epoch is stale
+     * @return the current epoch
+     */
+    public static long getReferenceEpoch() {
+        return reference.epoch;
+    }
 
-        double latDistance = toRad(USER_LAT - latlng.latitude);
-        double lonDistance = toRad(USER_LON - latlng.longitude);
-        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) +
-                Math.cos(toRad(latlng.latitude)) * Math.cos(toRad(USER_LAT)) *
-                        Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+    /**
+     * Find the closest candidate to a reference location, measuring every
+     * one with the given metric, i.e candidates already ranked by an index
+     * @param candidates The items to choose from
+     * @param locator Reads the location of each candidate
+     * @param refLat Latitude of the reference location
+     * @param refLon Longitude of the reference location
+     * @param metric How to measure each candidate
+     * @return the closest candidate, or null if there are none
+     */
+    public static <T> T closest(final List<? extends T> candidates, final SpatialIndex.Locator<T> locator,
+                                final double refLat, final double refLon, final DistanceMetric metric) {
+        T closest = null;
+        double distance = Double.MAX_VALUE;
+        for(int i = 0; i < candidates.size(); i++){
+            final T item = candidates.get(i);
+            final double d = metric.distance(refLat, refLon, locator.latitude(item), locator.longitude(item));
+            if(d < distance){
+                distance = d;
+                closest = item;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Find the closest candidate to a reference location in two passes,
+     * first ranking every candidate with the cheap metric and then only
+     * measuring the best few of those with the precise metric.
+     * @param candidates The items to choose from
+     * @param locator Reads the location of each candidate
+     * @param refLat Latitude of the reference location
+     * @param refLon Longitude of the reference location
+     * @param refine How many of the best cheap results to measure precisely
+     * @param coarse The cheap metric used for ranking
+     * @param precise The metric used to pick the final result
+     * @return the closest candidate, or null if there are none
+     */
+    public static <T> T closest(final List<? extends T> candidates, final SpatialIndex.Locator<T> locator,
+                                final double refLat, final double refLon, final int refine,
+                                final DistanceMetric coarse, final DistanceMetric precise) {
+        final int keep = Math.max(1, Math.min(refine, candidates.size()));
+        final int[] best = new int[keep];
+        final double[] bestDistance = new double[keep];
+        int found = 0;
+
+        // Insertion into a small sorted array, refine is expected to be tiny
+        for(int i = 0; i < candidates.size(); i++){
+            final T item = candidates.get(i);
+            final double d = coarse.distance(refLat, refLon, locator.latitude(item), locator.longitude(item));
+            if(found == keep && d >= bestDistance[keep - 1]){
+                continue;
+            }
+            int j = found < keep ? found++ : keep - 1;
+            while(j > 0 && bestDistance[j - 1] > d){
+                best[j] = best[j - 1];
+                bestDistance[j] = bestDistance[j - 1];
+                j--;
+            }
+            best[j] = i;
+            bestDistance[j] = d;
+        }
+
+        T closest = null;
+        double distance = Double.MAX_VALUE;
+        for(int i = 0; i < found; i++){
+            final T item = candidates.get(best[i]);
+            final double d = precise.distance(refLat, refLon, locator.latitude(item), locator.longitude(item));
+            if(d < distance){
+                distance = d;
+                closest = item;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Calculate the distance from a reference location to every location
+     * held in the parallel lat and lon arrays, writing the results into
+     * the given output array. Nothing is allocated.
+     * @param refLat Latitude of the reference location
+     * @param refLon Longitude of the reference location
+     * @param lats Latitudes to measure to
+     * @param lons Longitudes to measure to
+     * @param out Where to write each distance (km), must hold count values
+     * @param count How many entries of the arrays to use
+     */
+    public static void calculateDistances(final double refLat, final double refLon,
+                                          final double[] lats, final double[] lons,
+                                          final double[] out, final int count) {
+        checkBatch(lats, lons, out, count);
+        final double refLatRad = toRad(refLat);
+        haversine(refLatRad, toRad(refLon), Math.cos(refLatRad), lats, lons, out, 0, count);
+    }
+
+    /**
+     * Same as {@link #calculateDistances(double, double, double[], double[], double[], int)}
+     * but large batches are split into chunks and run on the given pool.
+     * Small batches are run directly on the calling thread.
+     * @param refLat Latitude of the reference location
+     * @param refLon Longitude of the reference location
+     * @param lats Latitudes to measure to
+     * @param lons Longitudes to measure to
+     * @param out Where to write each distance (km), must hold count values
+     * @param count How many entries of the arrays to use
+     * @param pool The pool to run the chunks on
+     */
+    public static void calculateDistances(final double refLat, final double refLon,
+                                          final double[] lats, final double[] lons,
+                                          final double[] out, final int count,
+                                          final ForkJoinPool pool) {
+        checkBatch(lats, lons, out, count);
+        final double refLatRad = toRad(refLat);
+        final double refLonRad = toRad(refLon);
+        final double cosRefLat = Math.cos(refLatRad);
+
+        if(count < PARALLEL_THRESHOLD){
+            haversine(refLatRad, refLonRad, cosRefLat, lats, lons, out, 0, count);
+        }else{
+            pool.invoke(new BatchTask(refLatRad, refLonRad, cosRefLat, lats, lons, out, 0, count));
+        }
+    }
+
+    /**
+     * Haversine between a precomputed reference and a single location
+     * @return distance in km
+     */
+    static double haversine(final double refLatRad, final double refLonRad, final double cosRefLat,
+                            final double lat, final double lon) {
+        final double latRad = toRad(lat);
+        final double sinLat = Math.sin((refLatRad - latRad) / 2);
+        final double sinLon = Math.sin((refLonRad - toRad(lon)) / 2);
+        final double a = sinLat * sinLat + Math.cos(latRad) * cosRefLat * sinLon * sinLon;
         return EARTH_RADIUS * (2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a)));
+    }
 
+    /**
+     * Haversine over a range of the batch arrays
+     */
+    private static void haversine(final double refLatRad, final double refLonRad, final double cosRefLat,
+                                  final double[] lats, final double[] lons, final double[] out,
+                                  final int from, final int to) {
+        for(int i = from; i < to; i++){
+            out[i] = haversine(refLatRad, refLonRad, cosRefLat, lats[i], lons[i]);
+        }
+    }
+
+    /**
+     * The users location along with the terms every haversine from it needs
+     */
+    private static final class Reference {
+
+        final double latitude;
+        final double longitude;
+        final double latRad;
+        final double lonRad;
+        final double cosLat;
+        final long epoch;
+
+        Reference(final double latitude, final double longitude, final long epoch){
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.latRad = toRad(latitude);
+            this.lonRad = toRad(longitude);
+            this.cosLat = Math.cos(latRad);
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Sanity check the arrays given to a batch call
+     */
+    private static void checkBatch(final double[] lats, final double[] lons, final double[] out, final int count) {
+        if(count < 0 || lats.length < count || lons.length < count || out.length < count){
+            throw new IllegalArgumentException("Batch arrays must hold at least " + count + " values.");
+        }
     }
 
     /**
@@ -57,12 +342,34 @@ public class DistanceCalculator {
         return distance/1.609344;
     }
 
+    /**
+     * Append a value to two decimal places, rounding half up as %.2f does
+     * @param out Where to append
+     * @param value The value
+     */
+    private static void appendHundredths(final StringBuilder out, final double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value)){
+            out.append(value);
+            return;
+        }
+        final long hundredths = Math.round(Math.abs(value) * 100);
+        if(value < 0 && hundredths != 0){
+            out.append('-');
+        }
+        out.append(hundredths / 100).append('.');
+        final long fraction = hundredths % 100;
+        if(fraction < 10){
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+
     /**
      * To Radians
      * @param value values to convert
      * @return radian value
      */
-    private static double toRad(final Double value) {
+    private static double toRad(final double value) {
         return value * Math.PI / 180;
     }
 
@@ -76,4 +383,46 @@ public class DistanceCalculator {
         return (int) km;
     }
 
+    /**
+     * Splits a batch in half until it is small enough
+     * to run directly, then runs the halves in parallel
+     */
+    private static class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double refLatRad;
+        private final double refLonRad;
+        private final double cosRefLat;
+        private final double[] lats;
+        private final double[] lons;
+        private final double[] out;
+        private final int from;
+        private final int to;
+
+        BatchTask(final double refLatRad, final double refLonRad, final double cosRefLat,
+                  final double[] lats, final double[] lons, final double[] out,
+                  final int from, final int to) {
+            this.refLatRad = refLatRad;
+            this.refLonRad = refLonRad;
+            this.cosRefLat = cosRefLat;
+            this.lats = lats;
+            this.lons = lons;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= PARALLEL_THRESHOLD){
+                haversine(refLatRad, refLonRad, cosRefLat, lats, lons, out, from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new BatchTask(refLatRad, refLonRad, cosRefLat, lats, lons, out, from, mid),
+                    new BatchTask(refLatRad, refLonRad, cosRefLat, lats, lons, out, mid, to));
+        }
+    }
+
 }
@@ -0,0 +1,128 @@
+package dja33.msc.ukc.myapplication;
+
+import static dja33.msc.ukc.myapplication.DistanceCalculator.EARTH_RADIUS;
+
+/**
+ *
+ * Distance Metric
+ *
+ * The different ways a distance can be calculated between two
+ * locations, trading accuracy for speed. All results are in km.
+ *
+ * Error bounds are given against the WGS-84 ellipsoid, which is
+ * what the lat/lon values from the feed and Google Maps refer to.
+ *
+ * Cheap metrics are intended for ranking and culling candidates,
+ * precise metrics for the values that are reported to the user.
+ */
+public enum DistanceMetric {
+
+    /**
+     * Flat earth approximation, projects both points onto a plane using
+     * the cosine of their mean latitude. A single cos and sqrt per call.
+     *
+     * On top of the spherical error of haversine (up to 0.5%) this adds
+     * under 0.1% for distances below ~100km away from the poles, growing
+     * with distance and latitude. Only suitable for ranking nearby points.
+     */
+    EQUIRECTANGULAR {
+        @Override
+        public double distance(double lat1, double lon1, double lat2, double lon2) {
+            final double phi1 = Math.toRadians(lat1);
+            final double phi2 = Math.toRadians(lat2);
+            double dLambda = Math.toRadians(lon2 - lon1);
+            // Take the short way around the antimeridian
+            if(dLambda > Math.PI){
+                dLambda -= 2 * Math.PI;
+            }else if(dLambda < -Math.PI){
+                dLambda += 2 * Math.PI;
+            }
+            final double x = dLambda * Math.cos((phi1 + phi2) / 2);
+            final double y = phi2 - phi1;
+            return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+        }
+    },
+
+    /**
+     * Great-circle distance on a sphere of the mean earth radius.
+     * Treats the earth as a sphere so is off by up to 0.5% (typically
+     * around 0.3%) against the ellipsoid, at any distance.
+     */
+    HAVERSINE {
+        @Override
+        public double distance(double lat1, double lon1, double lat2, double lon2) {
+            final double phi1 = Math.toRadians(lat1);
+            return DistanceCalculator.haversine(phi1, Math.toRadians(lon1), Math.cos(phi1), lat2, lon2);
+        }
+    },
+
+    /**
+     * Vincenty's inverse formula on the WGS-84 ellipsoid, iterative and
+     * the most expensive of the three. Accurate to within 0.5mm.
+     *
+     * May fail to converge for nearly antipodal points, in which case
+     * the haversine result is returned instead.
+     */
+    VINCENTY {
+        @Override
+        public double distance(double lat1, double lon1, double lat2, double lon2) {
+            final double a = 6378137.0;
+            final double f = 1 / 298.257223563;
+            final double b = (1 - f) * a;
+
+            final double L = Math.toRadians(lon2 - lon1);
+            final double U1 = Math.atan((1 - f) * Math.tan(Math.toRadians(lat1)));
+            final double U2 = Math.atan((1 - f) * Math.tan(Math.toRadians(lat2)));
+            final double sinU1 = Math.sin(U1), cosU1 = Math.cos(U1);
+            final double sinU2 = Math.sin(U2), cosU2 = Math.cos(U2);
+
+            double lambda = L, lambdaPrev;
+            double sinSigma, cosSigma, sigma, cos2Alpha, cos2SigmaM;
+            int iterations = 0;
+
+            do {
+                final double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+                final double t1 = cosU2 * sinLambda;
+                final double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+                sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+                if(sinSigma == 0){
+                    // Coincident points
+                    return 0;
+                }
+                cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+                sigma = Math.atan2(sinSigma, cosSigma);
+                final double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+                cos2Alpha = 1 - sinAlpha * sinAlpha;
+                // Equatorial line when cos2Alpha is zero
+                cos2SigmaM = cos2Alpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cos2Alpha : 0;
+                final double C = f / 16 * cos2Alpha * (4 + f * (4 - 3 * cos2Alpha));
+                lambdaPrev = lambda;
+                lambda = L + (1 - C) * f * sinAlpha
+                        * (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            } while(Math.abs(lambda - lambdaPrev) > 1e-12 && ++iterations < 200);
+
+            if(iterations >= 200){
+                return HAVERSINE.distance(lat1, lon1, lat2, lon2);
+            }
+
+            final double uSq = cos2Alpha * (a * a - b * b) / (b * b);
+            final double A = 1 + uSq / 16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+            final double B = uSq / 1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+            final double deltaSigma = B * sinSigma * (cos2SigmaM + B / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)
+                    - B / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+
+            return b * A * (sigma - deltaSigma) / 1000;
+        }
+    };
+
+    /**
+     * Calculate the distance between two locations
+     * @param lat1 Latitude of the first location
+     * @param lon1 Longitude of the first location
+     * @param lat2 Latitude of the second location
+     * @param lon2 Longitude of the second location
+     * @return distance in km
+     */
+    public abstract double distance(double lat1, double lon1, double lat2, double lon2);
+
+}
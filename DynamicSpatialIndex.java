@@ -0,0 +1,252 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ *
+ * Dynamic Spatial Index
+ *
+ * A SpatialIndex that can be changed in place. The built tree is left as
+ * it is, items that are removed or have moved are marked as dead in it and
+ * items that are added or have moved are kept in a small overflow list that
+ * queries scan directly. Once the changes outgrow the square root of the
+ * tree's size the next query rebuilds it from the live items, so the lists
+ * a query scans stay short, a poll that moves a few friends doesn't rebuild
+ * everything and one that moves many rebuilds only once.
+ *
+ * Items are matched by identity. An item that moves in place must be
+ * passed to {@link #update(Object)} after its location changes.
+ *
+ * Not thread safe, only use from one thread.
+ *
+ * @param <T> The item type being indexed
+ */
+public class DynamicSpatialIndex<T> {
+
+    /* Changes allowed before a query rebuilds, the larger of this and the square root of the tree's size */
+    private static final int MIN_PENDING = 32;
+
+    private final SpatialIndex.Locator<T> locator;
+
+    private SpatialIndex<T> base;
+    // Everything the tree was built from, alive or not
+    private Set<T> built;
+    // Built items that have since been removed or moved
+    private final Set<T> dead = newIdentitySet();
+    // Items not in the tree, scanned on every query
+    private final Set<T> overflow = newIdentitySet();
+
+    private int rebuilds;
+
+    /**
+     * Build the index over the given items
+     * @param source The items to index, not modified
+     * @param locator Used to read the lat/lon of each item
+     */
+    public DynamicSpatialIndex(final List<? extends T> source, final SpatialIndex.Locator<T> locator){
+        this.locator = locator;
+        rebuild(new ArrayList<T>(source));
+    }
+
+    /**
+     * Number of live items in the index
+     * @return size
+     */
+    public int size(){
+        return base.size() - dead.size() + overflow.size();
+    }
+
+    /**
+     * How many times the tree has been rebuilt to absorb changes
+     * @return rebuild count
+     */
+    public int getRebuildCount(){
+        return rebuilds;
+    }
+
+    /**
+     * Add an item
+     * @param item The item, must not already be indexed
+     */
+    public void add(final T item){
+        if(built.contains(item) && !dead.contains(item)){
+            return;
+        }
+        overflow.add(item);
+    }
+
+    /**
+     * Remove an item
+     * @param item The item
+     * @return true if it was indexed
+     */
+    public boolean remove(final T item){
+        if(overflow.remove(item)){
+            return true;
+        }
+        if(built.contains(item) && dead.add(item)){
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tell the index an item has moved, its location is read again
+     * @param item The item, already indexed
+     */
+    public void update(final T item){
+        if(overflow.contains(item)){
+            // Overflow is read live, nothing to do
+            return;
+        }
+        if(built.contains(item) && dead.add(item)){
+            overflow.add(item);
+        }
+    }
+
+    /**
+     * Find the k closest items to a location, closest first
+     * @see SpatialIndex#nearest(double, double, int)
+     */
+    public List<T> nearest(final double latitude, final double longitude, final int k){
+        if(k <= 0){
+            return Collections.emptyList();
+        }
+        rebuildIfStale();
+
+        // Ask for extra in case some of the closest are dead
+        final List<T> closest = base.nearest(latitude, longitude, k + dead.size());
+        if(overflow.isEmpty()){
+            final List<T> result = live(closest);
+            return result.size() > k ? new ArrayList<>(result.subList(0, k)) : result;
+        }
+
+        // Keep the k closest in a heap with the furthest on top, each distance is measured once
+        final PriorityQueue<Candidate<T>> heap = new PriorityQueue<>(k + 1, FURTHEST_FIRST);
+        for(T item : closest){
+            if(!dead.contains(item)){
+                offer(heap, k, item, latitude, longitude);
+            }
+        }
+        for(T item : overflow){
+            offer(heap, k, item, latitude, longitude);
+        }
+
+        final List<T> result = new ArrayList<>(Collections.<T>nCopies(heap.size(), null));
+        for(int i = heap.size() - 1; i >= 0; i--){
+            result.set(i, heap.poll().item);
+        }
+        return result;
+    }
+
+    private void offer(final PriorityQueue<Candidate<T>> heap, final int k, final T item,
+                       final double latitude, final double longitude){
+        final double distance = DistanceMetric.HAVERSINE.distance(latitude, longitude,
+                locator.latitude(item), locator.longitude(item));
+        if(heap.size() < k){
+            heap.add(new Candidate<>(item, distance));
+        }else if(distance < heap.peek().distance){
+            heap.poll();
+            heap.add(new Candidate<>(item, distance));
+        }
+    }
+
+    /**
+     * Find all items within a radius of a location, in no particular order
+     * @see SpatialIndex#withinRadius(double, double, double)
+     */
+    public List<T> withinRadius(final double latitude, final double longitude, final double km){
+        rebuildIfStale();
+        final List<T> result = live(base.withinRadius(latitude, longitude, km));
+        for(T item : overflow){
+            if(DistanceMetric.HAVERSINE.distance(latitude, longitude,
+                    locator.latitude(item), locator.longitude(item)) <= km){
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find all items within a lat/lon bounding box, in no particular order
+     * @see SpatialIndex#withinBounds(double, double, double, double)
+     */
+    public List<T> withinBounds(final double south, final double west, final double north, final double east){
+        rebuildIfStale();
+        final List<T> result = live(base.withinBounds(south, west, north, east));
+        for(T item : overflow){
+            final double lat = locator.latitude(item);
+            final double lon = locator.longitude(item);
+            if(lat >= south && lat <= north && (west <= east ? lon >= west && lon <= east : lon >= west || lon <= east)){
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private List<T> live(final List<T> found){
+        if(dead.isEmpty()){
+            return found;
+        }
+        final List<T> result = new ArrayList<>(found.size());
+        for(T item : found){
+            if(!dead.contains(item)){
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private void rebuildIfStale(){
+        if(dead.size() + overflow.size() <= Math.max(MIN_PENDING, (int) Math.sqrt(base.size()))){
+            return;
+        }
+        final List<T> items = new ArrayList<>(size());
+        for(T item : built){
+            if(!dead.contains(item)){
+                items.add(item);
+            }
+        }
+        items.addAll(overflow);
+        rebuild(items);
+        rebuilds++;
+    }
+
+    private void rebuild(final List<T> items){
+        base = new SpatialIndex<>(items, locator);
+        built = newIdentitySet();
+        built.addAll(items);
+        dead.clear();
+        overflow.clear();
+    }
+
+    private static <T> Set<T> newIdentitySet(){
+        return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    }
+
+    private static final Comparator<Candidate<?>> FURTHEST_FIRST = new Comparator<Candidate<?>>() {
+        @Override
+        public int compare(Candidate<?> a, Candidate<?> b) {
+            return Double.compare(b.distance, a.distance);
+        }
+    };
+
+    /**
+     * An item and its distance from the location being searched around
+     */
+    private static final class Candidate<T> {
+        final T item;
+        final double distance;
+
+        Candidate(final T item, final double distance){
+            this.item = item;
+            this.distance = distance;
+        }
+    }
+}
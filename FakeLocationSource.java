@@ -0,0 +1,67 @@
+package dja33.msc.ukc.myapplication;
+
+/**
+ *
+ * Fake Location Source
+ *
+ * A UserLocationSource that is moved by hand, used for testing and the
+ * emulator. Fixes are delivered on the thread that sets the location,
+ * for the MapHandler that must be the main thread.
+ */
+public class FakeLocationSource implements UserLocationSource {
+
+    private Listener listener;
+    private double latitude;
+    private double longitude;
+
+    /**
+     * Create the source at the given location
+     * @param latitude Starting latitude
+     * @param longitude Starting longitude
+     */
+    public FakeLocationSource(final double latitude, final double longitude){
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        this.listener = listener;
+        listener.onLocationChanged(latitude, longitude);
+    }
+
+    @Override
+    public synchronized void stop() {
+        listener = null;
+    }
+
+    /**
+     * Move to a new location, delivered straight away if started
+     * @param latitude New latitude
+     * @param longitude New longitude
+     */
+    public synchronized void setLocation(final double latitude, final double longitude){
+        this.latitude = latitude;
+        this.longitude = longitude;
+        if(listener != null){
+            listener.onLocationChanged(latitude, longitude);
+        }
+    }
+
+    /**
+     * Move by the given offset, i.e to simulate walking
+     * @param dLatitude Change in latitude
+     * @param dLongitude Change in longitude
+     */
+    public synchronized void moveBy(final double dLatitude, final double dLongitude){
+        setLocation(latitude + dLatitude, longitude + dLongitude);
+    }
+
+    public synchronized double getLatitude(){
+        return latitude;
+    }
+
+    public synchronized double getLongitude(){
+        return longitude;
+    }
+}
@@ -0,0 +1,296 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Feed Fan Out
+ *
+ * Fetches a feed that is sharded over several endpoints, i.e by region,
+ * all at once on a bounded pool of threads and merges the shards into one
+ * feed. Each endpoint has its own HTTPHandler, so its conditional fetches
+ * and transfer stats are kept apart from the others.
+ *
+ * Every endpoint is given the same timeout from the start of a fetch, an
+ * endpoint that hasn't answered by then is left to finish in the background
+ * and the last records it gave are used in its place, so one slow shard
+ * can't hold back the rest and its friends don't vanish from the map. An
+ * endpoint is not fetched again until its last fetch has finished.
+ *
+ * Shards are merged in the order the endpoints were given, a name that
+ * appears in more than one shard is only taken from the first.
+ *
+ * Only use from one thread at a time, i.e the polling thread.
+ */
+public class FeedFanOut {
+
+    /* Most fetches run at once, Java 7 has no virtual threads so shards share a small pool */
+    private static final int MAX_THREADS = 8;
+
+    /* Response given for an endpoint that didn't answer in time */
+    public static final int TIMED_OUT = -2;
+
+    /**
+     * Outcome of fetching every endpoint once
+     */
+    public static final class Result {
+
+        // Per endpoint, TIMED_OUT if it was late or still busy with the last fetch
+        private final int[] responses;
+        private final boolean[] changed;
+        private int records;
+        private long bytes;
+
+        private Result(final int endpoints){
+            responses = new int[endpoints];
+            changed = new boolean[endpoints];
+        }
+
+        /**
+         * Response of an endpoint
+         * @param endpoint Index of the endpoint
+         * @return the response code, -1 if the connection failed, {@link #TIMED_OUT} if it didn't answer in time
+         */
+        public int getResponse(final int endpoint){
+            return responses[endpoint];
+        }
+
+        /**
+         * Whether an endpoint gave a new feed that was parsed
+         * @param endpoint Index of the endpoint
+         * @return true if it did
+         */
+        public boolean isChanged(final int endpoint){
+            return changed[endpoint];
+        }
+
+        /**
+         * Whether an endpoint failed, timed out or sent a malformed feed
+         * @param endpoint Index of the endpoint
+         * @return true if its last good records were used, if any
+         */
+        public boolean isFailed(final int endpoint){
+            return responses[endpoint] != 304 && !changed[endpoint];
+        }
+
+        /**
+         * Response for the fetch as a whole, for recording
+         * @return the first failed response, otherwise 200 if any endpoint gave a new feed or 304
+         */
+        public int getResponse(){
+            boolean anyChanged = false;
+            for(int i = 0; i < responses.length; i++){
+                if(isFailed(i)){
+                    return responses[i];
+                }
+                anyChanged |= changed[i];
+            }
+            return anyChanged ? 200 : 304;
+        }
+
+        /**
+         * Whether every endpoint failed, nothing was merged
+         * @return true if so
+         */
+        public boolean isFailed(){
+            for(int i = 0; i < responses.length; i++){
+                if(!isFailed(i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Records passed to the sink after merging
+         * @return record count
+         */
+        public int getRecordCount(){
+            return records;
+        }
+
+        /**
+         * Body bytes received from every endpoint that answered in time
+         * @return bytes received
+         */
+        public long getBytesReceived(){
+            return bytes;
+        }
+    }
+
+    private final Endpoint[] endpoints;
+    private final long timeout;
+    private ExecutorService pool;
+
+    /**
+     * Create the fan out, no threads are started until the first fetch
+     * @param urls The endpoints, one per shard
+     * @param timeout How long each endpoint is given in ms
+     */
+    public FeedFanOut(final List<String> urls, final long timeout){
+        if(urls.isEmpty()){
+            throw new IllegalArgumentException("At least one endpoint is needed.");
+        }
+        this.endpoints = new Endpoint[urls.size()];
+        for(int i = 0; i < endpoints.length; i++){
+            endpoints[i] = new Endpoint(new HTTPHandler(urls.get(i)));
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Number of endpoints
+     * @return endpoint count
+     */
+    public int size(){
+        return endpoints.length;
+    }
+
+    /**
+     * The handler of an endpoint, for reading its URL and transfer stats
+     * @param endpoint Index of the endpoint
+     * @return the handler
+     */
+    public HTTPHandler getHTTPHandler(final int endpoint){
+        return endpoints[endpoint].handler;
+    }
+
+    /**
+     * Fetch every endpoint at once and pass the merged records to the sink
+     * on the calling thread, blocks for at most the timeout. Nothing is
+     * passed to the sink if every endpoint failed.
+     * @param sink Where to send each user
+     * @return the outcome
+     */
+    public Result fetch(final UserFeedParser.Sink sink){
+        final Result result = new Result(endpoints.length);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final ExecutorService executor = pool();
+
+        for(Endpoint endpoint : endpoints){
+            // A fetch that outlived the last timeout still has the handler
+            if(endpoint.inFlight == null || endpoint.inFlight.isDone()){
+                endpoint.inFlight = executor.submit(endpoint);
+            }else{
+                endpoint.busy = true;
+            }
+        }
+
+        for(int i = 0; i < endpoints.length; i++){
+            final Endpoint endpoint = endpoints[i];
+            if(endpoint.busy){
+                endpoint.busy = false;
+                result.responses[i] = TIMED_OUT;
+                continue;
+            }
+            try {
+                final FeedRecords records = endpoint.inFlight.get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                result.responses[i] = endpoint.handler.getResponse();
+                result.bytes += endpoint.handler.getLastBytesReceived();
+                result.changed[i] = records != null;
+            } catch (TimeoutException e) {
+                result.responses[i] = TIMED_OUT;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.responses[i] = TIMED_OUT;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                result.responses[i] = -1;
+            }
+        }
+
+        if(!result.isFailed()){
+            result.records = merge(sink);
+        }
+        return result;
+    }
+
+    /**
+     * Stop the threads, fetches still running are interrupted.
+     * Fetching again starts new threads.
+     */
+    public void shutdown(){
+        if(pool != null){
+            pool.shutdownNow();
+            pool = null;
+        }
+        for(Endpoint endpoint : endpoints){
+            endpoint.inFlight = null;
+        }
+    }
+
+    private int merge(final UserFeedParser.Sink sink){
+        final Set<String> names = new HashSet<>();
+        int count = 0;
+        for(Endpoint endpoint : endpoints){
+            final FeedRecords records = endpoint.last;
+            if(records == null){
+                continue;
+            }
+            count += records.replay(names, sink);
+        }
+        return count;
+    }
+
+    private ExecutorService pool(){
+        if(pool == null){
+            final AtomicInteger created = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(Math.min(MAX_THREADS, endpoints.length), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "feed-fetch-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * One endpoint and the last records it gave
+     */
+    private static final class Endpoint implements Callable<FeedRecords> {
+
+        final HTTPHandler handler;
+        // Last records parsed, written by the fetching thread
+        volatile FeedRecords last;
+        // Only touched by the thread calling fetch
+        Future<FeedRecords> inFlight;
+        boolean busy;
+
+        Endpoint(final HTTPHandler handler){
+            this.handler = handler;
+        }
+
+        /**
+         * Fetch the endpoint on a pool thread, keeping the records if
+         * they were parsed even if the fetch has already timed out, the
+         * handler only sends back the validators of a feed it parsed
+         * @return the new records, null if unchanged or failed
+         */
+        @Override
+        public FeedRecords call() {
+            final FeedRecords records = new FeedRecords();
+            final int response = handler.fetch(records);
+            if(response == 200 && handler.isParsed()){
+                records.trim();
+                last = records;
+                return records;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Feed Poller
+ *
+ * Polls the friend feed on a background thread, making a fresh request
+ * with the HTTPHandler on every tick. Results are delivered through the
+ * callback Executor, which for the application posts them to the main thread.
+ *
+ * The delay between ticks comes from a PollInterval, so polling speeds
+ * up while the feed is changing and backs off while it is not or while
+ * the website is failing. Changes are spotted on the polling thread by
+ * fingerprinting every record, an identical feed is never delivered so
+ * costs the main thread nothing.
+ *
+ * A feed sharded over several endpoints is polled through a FeedFanOut,
+ * which fetches the shards at once and merges them into one feed per tick.
+ * A tiled feed is polled through a TileFeed, which only fetches the tiles
+ * in view, call {@link #pollNow()} when the view changes.
+ *
+ * Can be started, paused, resumed and stopped to follow the lifecycle
+ * of the activity. Results from a tick that finishes after the poller
+ * was paused or stopped are dropped rather than delivered.
+ *
+ * @param <T> The type each user record is turned into
+ */
+public class FeedPoller<T> {
+
+    /**
+     * Turns a parsed user record into an item, called on the polling thread
+     * @param <T> The item type
+     */
+    public interface RecordFactory<T> {
+        T create(double lat, double lon, String name);
+    }
+
+    /**
+     * Receives the outcome of each poll, called through the callback Executor
+     * @param <T> The item type
+     */
+    public interface Listener<T> {
+        void onPollResult(List<T> users);
+        void onPollFailed(HTTPNoResponseException e);
+    }
+
+    private final HTTPHandler httpHandler;
+    // Null unless the feed is sharded over several endpoints
+    private final FeedFanOut fanOut;
+    // Null unless the feed is fetched by tile
+    private final TileFeed tiles;
+    private final RecordFactory<T> factory;
+    private final Listener<T> listener;
+    private final Executor callbacks;
+    private final PollInterval interval;
+    private final PollMetrics metrics;
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> task;
+    private boolean paused;
+
+    // Fingerprint of the last feed given to the listener, null until one is. Set on the
+    // callback thread so a feed dropped for a pause or stop is delivered again after
+    private volatile Long lastFingerprint;
+
+    // Bumped whenever polling is paused or stopped so late results can be dropped
+    private volatile int generation;
+
+    /**
+     * Create the poller, does not start polling
+     * @param httpHandler The handler to fetch the feed with
+     * @param factory Turns each record into an item
+     * @param listener Receives the results
+     * @param callbacks Where to run the listener, i.e the main thread
+     * @param interval Decides the delay between the end of one poll and the start of the next
+     * @param metrics Where to record fetch and parse timings
+     */
+    public FeedPoller(final HTTPHandler httpHandler, final RecordFactory<T> factory, final Listener<T> listener,
+                      final Executor callbacks, final PollInterval interval, final PollMetrics metrics){
+        this(httpHandler, null, null, factory, listener, callbacks, interval, metrics);
+    }
+
+    /**
+     * Create a poller for a feed sharded over several endpoints, does not start polling
+     * @param fanOut Fetches and merges the shards
+     * @param factory Turns each record into an item
+     * @param listener Receives the merged results, and a failure for each endpoint that failed
+     * @param callbacks Where to run the listener, i.e the main thread
+     * @param interval Decides the delay between the end of one poll and the start of the next
+     * @param metrics Where to record fetch and parse timings
+     */
+    public FeedPoller(final FeedFanOut fanOut, final RecordFactory<T> factory, final Listener<T> listener,
+                      final Executor callbacks, final PollInterval interval, final PollMetrics metrics){
+        this(fanOut.getHTTPHandler(0), fanOut, null, factory, listener, callbacks, interval, metrics);
+    }
+
+    /**
+     * Create a poller for a feed fetched by tile, does not start polling
+     * @param tiles Fetches the tiles in view
+     * @param factory Turns each record into an item
+     * @param listener Receives the users in view
+     * @param callbacks Where to run the listener, i.e the main thread
+     * @param interval Decides the delay between the end of one poll and the start of the next
+     * @param metrics Where to record fetch timings
+     */
+    public FeedPoller(final TileFeed tiles, final RecordFactory<T> factory, final Listener<T> listener,
+                      final Executor callbacks, final PollInterval interval, final PollMetrics metrics){
+        this(null, null, tiles, factory, listener, callbacks, interval, metrics);
+    }
+
+    private FeedPoller(final HTTPHandler httpHandler, final FeedFanOut fanOut, final TileFeed tiles,
+                       final RecordFactory<T> factory, final Listener<T> listener, final Executor callbacks,
+                       final PollInterval interval, final PollMetrics metrics){
+        this.httpHandler = httpHandler;
+        this.fanOut = fanOut;
+        this.tiles = tiles;
+        this.factory = factory;
+        this.listener = listener;
+        this.callbacks = callbacks;
+        this.interval = interval;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start polling immediately, does nothing if already started
+     */
+    public synchronized void start(){
+        if(executor != null){
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor();
+        paused = false;
+        schedule();
+    }
+
+    /**
+     * Stop polling until resumed, i.e when the app is not visible
+     */
+    public synchronized void pause(){
+        if(executor == null || paused){
+            return;
+        }
+        paused = true;
+        cancel();
+    }
+
+    /**
+     * Resume polling after a pause, polls immediately
+     */
+    public synchronized void resume(){
+        if(executor == null || !paused){
+            return;
+        }
+        paused = false;
+        schedule();
+    }
+
+    /**
+     * Stop polling and release the background thread,
+     * can be started again afterwards
+     */
+    public synchronized void stop(){
+        if(executor == null){
+            return;
+        }
+        cancel();
+        executor.shutdownNow();
+        executor = null;
+        paused = false;
+        if(fanOut != null){
+            fanOut.shutdown();
+        }
+        if(tiles != null){
+            tiles.shutdown();
+        }
+    }
+
+    /**
+     * Poll straight away rather than waiting for the next tick,
+     * i.e when the view of a tiled feed has changed. Does nothing
+     * unless polling.
+     */
+    public synchronized void pollNow(){
+        if(executor == null || paused){
+            return;
+        }
+        cancel();
+        schedule();
+    }
+
+    /**
+     * Whether the poller is started and not paused
+     * @return true if polling
+     */
+    public synchronized boolean isRunning(){
+        return executor != null && !paused;
+    }
+
+    /**
+     * The adaptive interval, for reading the current delay and stats
+     * @return the interval
+     */
+    public PollInterval getInterval(){
+        return interval;
+    }
+
+    /**
+     * The handler used for fetching, for reading its transfer stats
+     * @return the handler, of the first endpoint if the feed is sharded, null if it is tiled
+     */
+    public HTTPHandler getHTTPHandler(){
+        return httpHandler;
+    }
+
+    private void schedule(){
+        reschedule(++generation, 0);
+    }
+
+    /**
+     * Schedule the next tick, unless polling was paused or
+     * stopped since the given generation was scheduled
+     */
+    private synchronized void reschedule(final int current, final long delay){
+        if(executor == null || current != generation){
+            return;
+        }
+        task = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll(current);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancel(){
+        generation++;
+        if(task != null){
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * The endpoints of a sharded feed, for reading each one's transfer stats
+     * @return the fan out, null if there is a single endpoint
+     */
+    public FeedFanOut getFanOut(){
+        return fanOut;
+    }
+
+    /**
+     * The tiles of a tiled feed, for setting the view and reading the cache stats
+     * @return the tiles, null if the feed isn't tiled
+     */
+    public TileFeed getTileFeed(){
+        return tiles;
+    }
+
+    /**
+     * A single tick, runs on the polling thread
+     * @param current The generation this tick was scheduled under
+     */
+    private void poll(final int current){
+        if(fanOut != null){
+            pollShards(current);
+            return;
+        }
+        if(tiles != null){
+            pollTiles(current);
+            return;
+        }
+        long next = interval.getCurrentInterval();
+        final List<T> users = new ArrayList<>();
+        try {
+            final long[] fingerprint = { 17 };
+            final int response = httpHandler.fetch(new UserFeedParser.Sink() {
+                @Override
+                public void onUser(double lat, double lon, String name) {
+                    users.add(factory.create(lat, lon, name));
+                    fingerprint[0] = fingerprint(fingerprint[0], lat, lon, name);
+                }
+            });
+
+            // Only record the parse stage when there was a body to parse
+            metrics.record(PollMetrics.Stage.FETCH, httpHandler.getLastConnectNanos());
+            if(response == 200){
+                metrics.record(PollMetrics.Stage.PARSE, httpHandler.getLastParseNanos());
+            }
+
+            if(response == 304){
+                // The website says nothing has changed since the last feed, nothing was parsed
+                next = interval.onUnchanged();
+            }else if(response != 200){
+                // We didn't receive the OK from the website
+                next = interval.onFailure();
+                fail(current, new HTTPNoResponseException(httpHandler.getURL(), response, "No response from website."));
+            }else if(!httpHandler.isParsed()){
+                next = interval.onFailure();
+                fail(current, new HTTPNoResponseException(httpHandler.getURL(), response, "Malformed feed from website."));
+            }else{
+                next = parsed(current, fingerprint[0], users);
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception escape, polling would silently stop
+            e.printStackTrace();
+        } finally {
+            metrics.recordPoll(httpHandler.getResponse(), httpHandler.getLastBytesReceived(),
+                    httpHandler.isParsed() ? users.size() : 0, next);
+            metrics.maybeExport();
+            reschedule(current, next);
+        }
+    }
+
+    /**
+     * A single tick of a sharded feed, runs on the polling thread. Every
+     * endpoint that fails is reported, the merged feed is still delivered
+     * unless they all failed.
+     * @param current The generation this tick was scheduled under
+     */
+    private void pollShards(final int current){
+        long next = interval.getCurrentInterval();
+        final List<T> users = new ArrayList<>();
+        FeedFanOut.Result result = null;
+        try {
+            final long[] fingerprint = { 17 };
+            result = fanOut.fetch(new UserFeedParser.Sink() {
+                @Override
+                public void onUser(double lat, double lon, String name) {
+                    users.add(factory.create(lat, lon, name));
+                    fingerprint[0] = fingerprint(fingerprint[0], lat, lon, name);
+                }
+            });
+
+            for(int i = 0; i < fanOut.size(); i++){
+                final HTTPHandler handler = fanOut.getHTTPHandler(i);
+                final int response = result.getResponse(i);
+                if(response == FeedFanOut.TIMED_OUT){
+                    // Still running, its timings aren't final
+                    fail(current, new HTTPNoResponseException(handler.getURL(), response, "Timed out waiting for website."));
+                    continue;
+                }
+                metrics.record(PollMetrics.Stage.FETCH, handler.getLastConnectNanos());
+                if(response == 200){
+                    metrics.record(PollMetrics.Stage.PARSE, handler.getLastParseNanos());
+                }
+                if(result.isChanged(i)){
+                    continue;
+                }
+                if(response == 200){
+                    fail(current, new HTTPNoResponseException(handler.getURL(), response, "Malformed feed from website."));
+                }else if(response != 304){
+                    fail(current, new HTTPNoResponseException(handler.getURL(), response, "No response from website."));
+                }
+            }
+
+            if(result.isFailed()){
+                next = interval.onFailure();
+            }else{
+                // Merged even when every shard was unchanged, a late one may have finished since
+                next = parsed(current, fingerprint[0], users);
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception escape, polling would silently stop
+            e.printStackTrace();
+        } finally {
+            if(result != null){
+                metrics.recordPoll(result.getResponse(), result.getBytesReceived(), result.getRecordCount(), next);
+            }
+            metrics.maybeExport();
+            reschedule(current, next);
+        }
+    }
+
+    /**
+     * A single tick of a tiled feed, runs on the polling thread. Only
+     * tiles in view that have expired are fetched, the users of every
+     * tile in view are delivered unless they all failed.
+     * @param current The generation this tick was scheduled under
+     */
+    private void pollTiles(final int current){
+        long next = interval.getCurrentInterval();
+        final List<T> users = new ArrayList<>();
+        TileFeed.Result result = null;
+        final long start = metrics.start();
+        try {
+            final long[] fingerprint = { 17 };
+            result = tiles.fetch(new UserFeedParser.Sink() {
+                @Override
+                public void onUser(double lat, double lon, String name) {
+                    users.add(factory.create(lat, lon, name));
+                    fingerprint[0] = fingerprint(fingerprint[0], lat, lon, name);
+                }
+            });
+            // Tiles are fetched and parsed together, the whole fetch is timed
+            metrics.stop(PollMetrics.Stage.FETCH, start);
+
+            if(result.getVisibleTiles() == 0){
+                // No view yet, nothing to fetch
+                next = interval.onUnchanged();
+            }else if(result.isFailed()){
+                next = interval.onFailure();
+                fail(current, new HTTPNoResponseException(tiles.getURL(), result.getResponse(), "No tiles from website."));
+            }else{
+                next = parsed(current, fingerprint[0], users);
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception escape, polling would silently stop
+            e.printStackTrace();
+        } finally {
+            if(result != null){
+                metrics.recordPoll(result.getResponse(), result.getBytesReceived(), result.getRecordCount(), next);
+            }
+            metrics.maybeExport();
+            reschedule(current, next);
+        }
+    }
+
+    /**
+     * Deliver a feed that was parsed, unless it is identical to the last one delivered
+     * @return the delay until the next poll
+     */
+    private long parsed(final int current, final long fingerprint, final List<T> users){
+        final Long last = lastFingerprint;
+        if(last == null || fingerprint != last){
+            final long next = interval.onChanged();
+            deliver(current, fingerprint, users);
+            return next;
+        }
+        // Identical feed, nothing for the listener to do
+        return interval.onUnchanged();
+    }
+
+    /**
+     * Mix a record into the running fingerprint of the feed, order sensitive
+     */
+    private static long fingerprint(long hash, final double lat, final double lon, final String name){
+        hash = hash * 31 + Double.doubleToLongBits(lat);
+        hash = hash * 31 + Double.doubleToLongBits(lon);
+        hash = hash * 31 + name.hashCode();
+        return hash;
+    }
+
+    private void deliver(final int current, final long fingerprint, final List<T> users){
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(current == generation){
+                    lastFingerprint = fingerprint;
+                    listener.onPollResult(users);
+                }else if(fanOut == null && tiles == null){
+                    // Dropped, without this the next fetch would get a 304 and the feed would never arrive.
+                    // Shards and tiles keep their records, so a 304 there still delivers them
+                    httpHandler.clearValidators();
+                }
+            }
+        });
+    }
+
+    private void fail(final int current, final HTTPNoResponseException e){
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(current == generation){
+                    listener.onPollFailed(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,62 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ *
+ * Feed Records
+ *
+ * The users of part of a feed held as parallel arrays, kept so they can
+ * be merged with other parts later without being fetched again, i.e one
+ * shard of a sharded feed or one tile of a tiled feed.
+ *
+ * Filled on one thread and then only read, hand it over safely.
+ */
+final class FeedRecords implements UserFeedParser.Sink {
+
+    double[] lats = new double[64];
+    double[] lons = new double[64];
+    String[] names = new String[64];
+    int size;
+
+    @Override
+    public void onUser(final double lat, final double lon, final String name) {
+        if(size == names.length){
+            final int grown = size + (size >> 1);
+            lats = Arrays.copyOf(lats, grown);
+            lons = Arrays.copyOf(lons, grown);
+            names = Arrays.copyOf(names, grown);
+        }
+        lats[size] = lat;
+        lons[size] = lon;
+        names[size] = name;
+        size++;
+    }
+
+    /**
+     * Drop the spare room once filled
+     */
+    void trim(){
+        lats = Arrays.copyOf(lats, size);
+        lons = Arrays.copyOf(lons, size);
+        names = Arrays.copyOf(names, size);
+    }
+
+    /**
+     * Pass every user not already seen to the sink
+     * @param seen Names already passed on, the names passed are added
+     * @param sink Where to send each user
+     * @return how many were passed on
+     */
+    int replay(final Set<String> seen, final UserFeedParser.Sink sink){
+        int count = 0;
+        for(int i = 0; i < size; i++){
+            if(seen.add(names[i])){
+                sink.onUser(lats[i], lons[i], names[i]);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,431 @@
+package dja33.msc.ukc.myapplication;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ * Feed Stream
+ *
+ * Receives the friend feed as a stream of server-sent events rather than
+ * polling for it, so changes arrive as they happen and only the users that
+ * changed are sent. Each event carries its users in the same JSON format
+ * as the polled feed:
+ *
+ *   snapshot  every user, replacing whatever was had before
+ *   upsert    users that were added or have moved
+ *   delete    users that have gone
+ *
+ * Events are read on a background thread and handed to the listener
+ * through the callback Executor. Events that arrive together are merged
+ * into one batch, later events for a user replacing earlier ones, so a
+ * burst costs the main thread a single update.
+ *
+ * A dropped stream is reconnected with the id of the last event received,
+ * so the server only sends what was missed. Failed connections back off
+ * exponentially and after a few in a row the listener is told the stream
+ * is down so it can fall back to polling, it is told again once the stream
+ * is back. A stream that goes quiet for longer than the server's heartbeat
+ * is treated as dropped.
+ *
+ * Can be started and stopped to follow the lifecycle of the activity,
+ * the position in the stream is kept so starting again resumes it.
+ *
+ * @param <T> The type each user record is turned into
+ */
+public class FeedStream<T> {
+
+    /**
+     * Receives the events, called through the callback Executor
+     * @param <T> The item type
+     */
+    public interface Listener<T> {
+        /** Every user, anyone not in it has gone */
+        void onSnapshot(List<T> users);
+        /** Users added or moved and the names of users that have gone */
+        void onEvents(List<T> upserts, Set<String> deletes);
+        /** The stream is up, or down and polling should take over */
+        void onStreamStateChanged(boolean streaming);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Connect timeout, and longest a stream may stay silent, well over the server's heartbeat */
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 45000;
+
+    /* Bounds on the delay before reconnecting, doubled on every failure */
+    private static final long MIN_RECONNECT = 1000;
+    private static final long MAX_RECONNECT = 60000;
+
+    /* Failed connections in a row before falling back to polling */
+    private static final int FALLBACK_AFTER = 3;
+
+    /* Most users in a batch before it is handed over regardless */
+    private static final int MAX_BATCH = 1024;
+
+    private final URL target;
+    private final FeedPoller.RecordFactory<T> factory;
+    private final Listener<T> listener;
+    private final Executor callbacks;
+
+    private ExecutorService executor;
+    private HttpURLConnection connection;
+
+    // Bumped whenever the stream is stopped so late events can be dropped
+    private volatile int generation;
+
+    // Only touched on the streaming thread
+    private String lastEventId;
+    private long retry = MIN_RECONNECT;
+    private int failures;
+    // What the listener was last told, null if nothing yet
+    private Boolean streaming;
+
+    private volatile long eventCount;
+    private volatile long connectCount;
+
+    /**
+     * Create the stream, does not connect
+     * @param url The event stream
+     * @param factory Turns each record into an item
+     * @param listener Receives the events
+     * @param callbacks Where to run the listener, i.e the main thread
+     */
+    public FeedStream(final String url, final FeedPoller.RecordFactory<T> factory, final Listener<T> listener,
+                      final Executor callbacks){
+        try{
+            this.target = new URL(url);
+        }catch(MalformedURLException e){
+            throw new IllegalArgumentException("Invalid URL given.");
+        }
+        this.factory = factory;
+        this.listener = listener;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Connect and start receiving events, does nothing if already started
+     */
+    public synchronized void start(){
+        if(executor != null){
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor();
+        final int current = ++generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loop(current);
+            }
+        });
+    }
+
+    /**
+     * Disconnect and release the background thread, the
+     * position in the stream is kept for when it is started again
+     */
+    public synchronized void stop(){
+        if(executor == null){
+            return;
+        }
+        generation++;
+        if(connection != null){
+            // Unblocks the read
+            connection.disconnect();
+        }
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Whether the stream is started
+     * @return true if started
+     */
+    public synchronized boolean isRunning(){
+        return executor != null;
+    }
+
+    /**
+     * Number of events received so far
+     * @return event count
+     */
+    public long getEventCount(){
+        return eventCount;
+    }
+
+    /**
+     * Number of times the stream has been connected
+     * @return connect count
+     */
+    public long getConnectCount(){
+        return connectCount;
+    }
+
+    /**
+     * Connect, read until the stream drops and reconnect, on the streaming thread
+     */
+    private void loop(final int current){
+        while(current == generation){
+            try {
+                read(current);
+            } catch (IOException e) {
+                // Dropped, or couldn't connect
+                if(current == generation){
+                    e.printStackTrace();
+                }
+            } catch (RuntimeException e) {
+                // Never let an exception escape, streaming would silently stop
+                e.printStackTrace();
+            }
+
+            if(current != generation){
+                return;
+            }
+            if(++failures >= FALLBACK_AFTER && streaming != Boolean.FALSE){
+                // Let polling take over until we're back
+                streaming = Boolean.FALSE;
+                state(current, false);
+            }
+            try {
+                Thread.sleep(retry);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retry = Math.min(MAX_RECONNECT, retry * 2);
+        }
+    }
+
+    /**
+     * Open the stream and dispatch its events until it ends
+     */
+    private void read(final int current) throws IOException {
+        final HttpURLConnection c = (HttpURLConnection) target.openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT);
+        c.setReadTimeout(READ_TIMEOUT);
+        c.setRequestProperty("Accept", "text/event-stream");
+        c.setRequestProperty("Cache-Control", "no-cache");
+        if(lastEventId != null){
+            c.setRequestProperty("Last-Event-ID", lastEventId);
+        }
+        synchronized (this){
+            if(current != generation){
+                return;
+            }
+            connection = c;
+        }
+
+        try {
+            final int code = c.getResponseCode();
+            final String type = c.getContentType();
+            if(code != HttpURLConnection.HTTP_OK || type == null || !type.startsWith("text/event-stream")){
+                throw new IOException("No event stream from website, response = " + code + ".");
+            }
+
+            connectCount++;
+            failures = 0;
+            retry = MIN_RECONNECT;
+            if(streaming != Boolean.TRUE){
+                streaming = Boolean.TRUE;
+                state(current, true);
+            }
+
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), UTF_8))) {
+                readEvents(current, in);
+            }
+        } finally {
+            c.disconnect();
+            synchronized (this){
+                if(connection == c){
+                    connection = null;
+                }
+            }
+        }
+    }
+
+    private void readEvents(final int current, final BufferedReader in) throws IOException {
+        final Batch batch = new Batch();
+        final StringBuilder data = new StringBuilder();
+        String event = null;
+        String id = null;
+        String line;
+
+        while((line = in.readLine()) != null){
+            if(line.isEmpty()){
+                // End of an event
+                if(data.length() > 0){
+                    dispatch(current, event, data.toString(), batch);
+                    eventCount++;
+                }
+                if(id != null){
+                    lastEventId = id;
+                }
+                event = id = null;
+                data.setLength(0);
+                // Hand over what we have once nothing else is waiting
+                if(batch.size() >= MAX_BATCH || (!batch.isEmpty() && !in.ready())){
+                    deliver(current, batch.take());
+                }
+                continue;
+            }
+            if(line.charAt(0) == ':'){
+                // Comment, i.e a heartbeat
+                continue;
+            }
+
+            final int colon = line.indexOf(':');
+            final String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if(value.startsWith(" ")){
+                value = value.substring(1);
+            }
+            switch(field){
+                case "event": event = value; break;
+                case "id": id = value; break;
+                case "data":
+                    if(data.length() > 0){
+                        data.append('\n');
+                    }
+                    data.append(value);
+                    break;
+                case "retry":
+                    try {
+                        retry = Math.max(MIN_RECONNECT, Long.parseLong(value));
+                    } catch (NumberFormatException e) {
+                        // Ignored as the spec says
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if(!batch.isEmpty()){
+            deliver(current, batch.take());
+        }
+        // The server ended the stream, reconnect
+        throw new IOException("Event stream closed.");
+    }
+
+    /**
+     * Apply one event to the batch being built
+     */
+    private void dispatch(final int current, final String event, final String data, final Batch batch) throws IOException {
+        if("snapshot".equals(event)){
+            final List<T> users = new ArrayList<>();
+            UserFeedParser.parse(new StringReader(data), new UserFeedParser.Sink() {
+                @Override
+                public void onUser(double lat, double lon, String name) {
+                    users.add(factory.create(lat, lon, name));
+                }
+            });
+            // Replaces everything before it
+            batch.take();
+            snapshot(current, users);
+        }else if("upsert".equals(event)){
+            UserFeedParser.parse(new StringReader(data), new UserFeedParser.Sink() {
+                @Override
+                public void onUser(double lat, double lon, String name) {
+                    batch.upsert(name, factory.create(lat, lon, name));
+                }
+            });
+        }else if("delete".equals(event)){
+            UserFeedParser.parse(new StringReader(data), new UserFeedParser.Sink() {
+                @Override
+                public void onUser(double lat, double lon, String name) {
+                    batch.delete(name);
+                }
+            });
+        }
+    }
+
+    private void snapshot(final int current, final List<T> users){
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(current == generation){
+                    listener.onSnapshot(users);
+                }
+            }
+        });
+    }
+
+    private void deliver(final int current, final Batch batch){
+        final List<T> upserts = new ArrayList<>(batch.upserts.values());
+        final Set<String> deletes = batch.deletes;
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(current == generation){
+                    listener.onEvents(upserts, deletes);
+                }
+            }
+        });
+    }
+
+    private void state(final int current, final boolean up){
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(current == generation){
+                    listener.onStreamStateChanged(up);
+                }
+            }
+        });
+    }
+
+    /**
+     * Events merged by user, only the last event for each user is kept
+     */
+    private class Batch {
+
+        Map<String, T> upserts = new LinkedHashMap<>();
+        Set<String> deletes = new LinkedHashSet<>();
+
+        void upsert(final String name, final T item){
+            deletes.remove(name);
+            upserts.put(name, item);
+        }
+
+        void delete(final String name){
+            upserts.remove(name);
+            deletes.add(name);
+        }
+
+        int size(){
+            return upserts.size() + deletes.size();
+        }
+
+        boolean isEmpty(){
+            return upserts.isEmpty() && deletes.isEmpty();
+        }
+
+        /**
+         * Hand over the contents and start afresh
+         * @return the old contents
+         */
+        Batch take(){
+            final Batch taken = new Batch();
+            taken.upserts = upserts;
+            taken.deletes = deletes;
+            upserts = new LinkedHashMap<>();
+            deletes = new LinkedHashSet<>();
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Friend Diff
+ *
+ * The difference between two snapshots of friends, keyed by a stable
+ * identity (their name). Friends are either added, removed, moved or
+ * unchanged, only the first three are recorded so that whatever holds
+ * the friends (ClusterManager, indexes) only has to deal with changes.
+ *
+ * Unchanged and moved friends keep the instance from the previous
+ * snapshot so anything already holding them stays valid. A moved friend
+ * is still at its old location until the caller moves it in place to the
+ * location of the matching latest instance, see {@link #getMovedTo()}.
+ *
+ * @param <T> The friend type
+ */
+public final class FriendDiff<T> {
+
+    /**
+     * Reads the stable key and location of a friend
+     * @param <T> The friend type
+     */
+    public interface Identity<T> extends SpatialIndex.Locator<T> {
+        String key(T item);
+    }
+
+    private final Map<String, T> snapshot;
+    private final List<T> added;
+    private final List<T> removed;
+    private final List<T> movedFrom;
+    private final List<T> movedTo;
+
+    private FriendDiff(final Map<String, T> snapshot, final List<T> added, final List<T> removed,
+                       final List<T> movedFrom, final List<T> movedTo){
+        this.snapshot = snapshot;
+        this.added = added;
+        this.removed = removed;
+        this.movedFrom = movedFrom;
+        this.movedTo = movedTo;
+    }
+
+    /**
+     * Compare the latest poll against the previous snapshot. The previous
+     * snapshot is consumed, use {@link #getSnapshot()} in its place.
+     *
+     * If a key appears more than once in the latest poll only the first is used.
+     * @param previous The previous snapshot keyed on identity, emptied by this call
+     * @param latest Every friend from the latest poll
+     * @param identity Reads the key and location of each friend
+     * @return the diff between the two
+     */
+    public static <T> FriendDiff<T> compute(final Map<String, T> previous, final Collection<? extends T> latest,
+                                            final Identity<T> identity){
+        final Map<String, T> next = new LinkedHashMap<>(Math.max(16, (int) (latest.size() / 0.75f) + 1));
+        final List<T> added = new ArrayList<>();
+        final List<T> movedFrom = new ArrayList<>();
+        final List<T> movedTo = new ArrayList<>();
+
+        for(T item : latest){
+            final String key = identity.key(item);
+            if(next.containsKey(key)){
+                continue;
+            }
+
+            // Whatever is left in previous afterwards has been removed
+            final T old = previous.remove(key);
+            if(old == null){
+                added.add(item);
+                next.put(key, item);
+            }else if(identity.latitude(old) != identity.latitude(item)
+                    || identity.longitude(old) != identity.longitude(item)){
+                movedFrom.add(old);
+                movedTo.add(item);
+                next.put(key, old);
+            }else{
+                next.put(key, old);
+            }
+        }
+
+        final List<T> removed = previous.isEmpty()
+                ? Collections.<T>emptyList() : new ArrayList<>(previous.values());
+        previous.clear();
+
+        return new FriendDiff<>(next, added, removed, movedFrom, movedTo);
+    }
+
+    /**
+     * Apply changes that arrived one by one, i.e from a FeedStream, to a
+     * snapshot in place. The snapshot is kept and returned by {@link #getSnapshot()}.
+     * @param snapshot The current snapshot keyed on identity, changed by this call
+     * @param upserts Friends that were added or may have moved
+     * @param deletes Keys of friends that have gone, none of them also upserted
+     * @param identity Reads the key and location of each friend
+     * @return the changes made
+     */
+    public static <T> FriendDiff<T> apply(final Map<String, T> snapshot, final Collection<? extends T> upserts,
+                                          final Collection<String> deletes, final Identity<T> identity){
+        final List<T> added = new ArrayList<>();
+        final List<T> removed = new ArrayList<>();
+        final List<T> movedFrom = new ArrayList<>();
+        final List<T> movedTo = new ArrayList<>();
+
+        for(String key : deletes){
+            final T old = snapshot.remove(key);
+            if(old != null){
+                removed.add(old);
+            }
+        }
+        for(T item : upserts){
+            final String key = identity.key(item);
+            final T old = snapshot.get(key);
+            if(old == null){
+                added.add(item);
+                snapshot.put(key, item);
+            }else if(identity.latitude(old) != identity.latitude(item)
+                    || identity.longitude(old) != identity.longitude(item)){
+                movedFrom.add(old);
+                movedTo.add(item);
+            }
+        }
+
+        return new FriendDiff<>(snapshot, added, removed, movedFrom, movedTo);
+    }
+
+    /**
+     * Whether nothing changed between the snapshots
+     * @return true if there are no changes
+     */
+    public boolean isEmpty(){
+        return added.isEmpty() && removed.isEmpty() && movedTo.isEmpty();
+    }
+
+    /**
+     * The new snapshot keyed on identity, to be passed in as previous next time
+     * @return the latest snapshot
+     */
+    public Map<String, T> getSnapshot(){
+        return snapshot;
+    }
+
+    /**
+     * Friends that were not in the previous snapshot
+     * @return added friends
+     */
+    public List<T> getAdded(){
+        return added;
+    }
+
+    /**
+     * Friends that are no longer in the latest poll
+     * @return removed friends
+     */
+    public List<T> getRemoved(){
+        return removed;
+    }
+
+    /**
+     * The previous instances of friends that have moved, these are the
+     * instances kept in the snapshot. Matches up index for index with
+     * {@link #getMovedTo()}
+     * @return moved friends as they were
+     */
+    public List<T> getMovedFrom(){
+        return movedFrom;
+    }
+
+    /**
+     * The latest instances of friends that have moved, only their
+     * location is of use. Matches up index for index with {@link #getMovedFrom()}
+     * @return moved friends as they are now
+     */
+    public List<T> getMovedTo(){
+        return movedTo;
+    }
+}
@@ -0,0 +1,418 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Friend Store
+ *
+ * Compact store of friends for very large feeds. Rather than an object per
+ * friend, each friend is a slot in parallel primitive arrays holding its
+ * location, its distance from the user and the id of its name, so a
+ * hundred thousand friends cost a few megabytes and no garbage is made
+ * when a poll moves them. Names are kept once in a table and shared by
+ * every poll that mentions them.
+ *
+ * A friend is known by the int id of its slot. Ids of removed friends are
+ * reused, so each slot also has a generation that changes whenever it is
+ * given to another friend, anything keeping an id can tell it is stale.
+ *
+ * It backs the headless engine, the app itself still keeps a Person per
+ * friend for the ClusterManager.
+ *
+ * Polls are applied in place with an {@link Update}, which the parser can
+ * write into directly, friends are matched by name as in FriendDiff.
+ *
+ * Every method locks the store, so the clustering thread can read from it
+ * while a poll is being applied.
+ */
+public class FriendStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Held in seen by slots not in use
+    private static final int FREE = -1;
+
+    // Per slot
+    private double[] latitudes;
+    private double[] longitudes;
+    // Distance from the reference location in km, NaN until measured
+    private double[] distances;
+    private int[] nameIds;
+    private int[] generations;
+    // Number of the last update that mentioned each slot, FREE if not in use
+    private int[] seen;
+
+    // Slots handed out so far and the free ones among them
+    private int slots;
+    private int[] free = new int[16];
+    private int freeCount;
+    private int size;
+
+    // Name table, each name once and the slot of the friend with it. A name
+    // goes when its friend does and its id is reused, so the table never
+    // holds more names than there have been friends at once
+    private final Map<String, Integer> nameTable = new HashMap<>();
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] slotOfName = new int[INITIAL_CAPACITY];
+    private int nameCount;
+    private int[] freeNames = new int[16];
+    private int freeNameCount;
+
+    // Reference epoch the distances were measured against
+    private long distanceEpoch = -1;
+    private int updates;
+
+    public FriendStore(){
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create an empty store
+     * @param capacity How many friends to make room for up front
+     */
+    public FriendStore(final int capacity){
+        final int n = Math.max(1, capacity);
+        latitudes = new double[n];
+        longitudes = new double[n];
+        distances = new double[n];
+        nameIds = new int[n];
+        generations = new int[n];
+        seen = new int[n];
+    }
+
+    /**
+     * Number of friends in the store
+     * @return size
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * One past the highest id in use, ids below it may be free
+     * @return id limit
+     */
+    public synchronized int getIdLimit(){
+        return slots;
+    }
+
+    /**
+     * Number of distinct names kept, one per friend in the store
+     * @return name count
+     */
+    public synchronized int getNameCount(){
+        return nameTable.size();
+    }
+
+    /**
+     * Whether an id belongs to a friend
+     * @param id The id
+     * @return true if it's in use
+     */
+    public synchronized boolean contains(final int id){
+        return id >= 0 && id < slots && seen[id] != FREE;
+    }
+
+    /**
+     * The next id in use, for walking every friend without allocating
+     * @param from The first id to look at
+     * @return the id, or -1 if there are none left
+     */
+    public synchronized int nextId(final int from){
+        for(int id = Math.max(0, from); id < slots; id++){
+            if(seen[id] != FREE){
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The id of the friend with a name
+     * @param name The name
+     * @return the id, or -1 if there is no such friend
+     */
+    public synchronized int find(final String name){
+        final Integer nameId = nameTable.get(name);
+        return nameId == null ? -1 : slotOfName[nameId];
+    }
+
+    public synchronized double getLatitude(final int id){
+        return latitudes[id];
+    }
+
+    public synchronized double getLongitude(final int id){
+        return longitudes[id];
+    }
+
+    public synchronized String getName(final int id){
+        return names[nameIds[id]];
+    }
+
+    public synchronized int getGeneration(final int id){
+        return generations[id];
+    }
+
+    /**
+     * Distance of a friend from the reference location, every distance is
+     * measured again in one batch the first time one is asked for after
+     * the reference has moved
+     * @param id The id
+     * @return distance in km
+     */
+    public synchronized double getDistance(final int id){
+        final long epoch = DistanceCalculator.getReferenceEpoch();
+        if(epoch != distanceEpoch){
+            DistanceCalculator.calculateDistances(DistanceCalculator.getReferenceLatitude(),
+                    DistanceCalculator.getReferenceLongitude(), latitudes, longitudes, distances, slots);
+            distanceEpoch = epoch;
+        }else if(Double.isNaN(distances[id])){
+            distances[id] = DistanceMetric.HAVERSINE.distance(DistanceCalculator.getReferenceLatitude(),
+                    DistanceCalculator.getReferenceLongitude(), latitudes[id], longitudes[id]);
+        }
+        return distances[id];
+    }
+
+    /**
+     * Add a friend, or move the friend with the same name
+     * @param latitude Latitude of the friend
+     * @param longitude Longitude of the friend
+     * @param name Name of the friend
+     * @return the id
+     */
+    public synchronized int put(final double latitude, final double longitude, final String name){
+        final int nameId = intern(name);
+        final int id = slotOfName[nameId];
+        if(id == -1){
+            return allocate(nameId, latitude, longitude);
+        }
+        move(id, latitude, longitude);
+        return id;
+    }
+
+    /**
+     * Remove a friend, its id may be handed to another friend later
+     * @param id The id
+     * @return true if it was in use
+     */
+    public synchronized boolean remove(final int id){
+        if(!contains(id)){
+            return false;
+        }
+        release(nameIds[id]);
+        seen[id] = FREE;
+        if(freeCount == free.length){
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = id;
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove every friend along with their names
+     */
+    public synchronized void clear(){
+        Arrays.fill(names, 0, nameCount, null);
+        nameTable.clear();
+        slots = freeCount = size = nameCount = freeNameCount = 0;
+    }
+
+    /**
+     * Start applying a poll, every friend it doesn't mention is removed
+     * when it is finished
+     * @return the update, pass it to the parser as the sink
+     */
+    public synchronized Update beginUpdate(){
+        return new Update(++updates);
+    }
+
+    private int intern(final String name){
+        final Integer known = nameTable.get(name);
+        if(known != null){
+            return known;
+        }
+        final int nameId;
+        if(freeNameCount > 0){
+            nameId = freeNames[--freeNameCount];
+        }else{
+            if(nameCount == names.length){
+                final int grown = grow(names.length);
+                names = Arrays.copyOf(names, grown);
+                slotOfName = Arrays.copyOf(slotOfName, grown);
+            }
+            nameId = nameCount++;
+        }
+        names[nameId] = name;
+        slotOfName[nameId] = -1;
+        nameTable.put(name, nameId);
+        return nameId;
+    }
+
+    /**
+     * Forget the name of a friend being removed, its id is reused by the next new name
+     */
+    private void release(final int nameId){
+        nameTable.remove(names[nameId]);
+        names[nameId] = null;
+        slotOfName[nameId] = -1;
+        if(freeNameCount == freeNames.length){
+            freeNames = Arrays.copyOf(freeNames, freeNames.length * 2);
+        }
+        freeNames[freeNameCount++] = nameId;
+    }
+
+    private int allocate(final int nameId, final double latitude, final double longitude){
+        final int id;
+        if(freeCount > 0){
+            id = free[--freeCount];
+        }else{
+            if(slots == latitudes.length){
+                final int grown = grow(slots);
+                latitudes = Arrays.copyOf(latitudes, grown);
+                longitudes = Arrays.copyOf(longitudes, grown);
+                distances = Arrays.copyOf(distances, grown);
+                nameIds = Arrays.copyOf(nameIds, grown);
+                generations = Arrays.copyOf(generations, grown);
+                seen = Arrays.copyOf(seen, grown);
+            }
+            id = slots++;
+        }
+        // Views of whoever had the slot before must not match the new friend
+        generations[id]++;
+        latitudes[id] = latitude;
+        longitudes[id] = longitude;
+        distances[id] = Double.NaN;
+        nameIds[id] = nameId;
+        seen[id] = 0;
+        slotOfName[nameId] = id;
+        size++;
+        return id;
+    }
+
+    private boolean move(final int id, final double latitude, final double longitude){
+        if(latitudes[id] == latitude && longitudes[id] == longitude){
+            return false;
+        }
+        latitudes[id] = latitude;
+        longitudes[id] = longitude;
+        distances[id] = Double.NaN;
+        return true;
+    }
+
+    private static int grow(final int length){
+        return Math.max(INITIAL_CAPACITY, length + (length >> 1));
+    }
+
+    /**
+     * One poll being applied to the store. Remembers the ids it added,
+     * moved and removed so anything built over the store, such as a
+     * FriendStoreTree, can follow the changes.
+     */
+    public final class Update implements UserFeedParser.Sink {
+
+        private final int number;
+        private IdList added = new IdList();
+        private IdList moved = new IdList();
+        private IdList removed = new IdList();
+        private boolean finished;
+
+        private Update(final int number){
+            this.number = number;
+        }
+
+        /**
+         * Add or move one friend, if a name appears more than once
+         * in the poll only the first is used
+         */
+        @Override
+        public void onUser(final double lat, final double lon, final String name) {
+            synchronized (FriendStore.this){
+                if(finished){
+                    throw new IllegalStateException("Update has already been finished.");
+                }
+                final int nameId = intern(name);
+                int id = slotOfName[nameId];
+                if(id == -1){
+                    id = allocate(nameId, lat, lon);
+                    added.add(id);
+                }else if(seen[id] == number){
+                    return;
+                }else if(move(id, lat, lon)){
+                    moved.add(id);
+                }
+                seen[id] = number;
+            }
+        }
+
+        /**
+         * Remove every friend the poll didn't mention
+         * @return this
+         */
+        public Update finish(){
+            synchronized (FriendStore.this){
+                if(!finished){
+                    finished = true;
+                    for(int id = 0; id < slots; id++){
+                        if(seen[id] != FREE && seen[id] != number){
+                            remove(id);
+                            removed.add(id);
+                        }
+                    }
+                }
+                return this;
+            }
+        }
+
+        public int getAddedCount(){
+            return added.size;
+        }
+
+        public int getAddedId(final int i){
+            return added.ids[i];
+        }
+
+        public int getMovedCount(){
+            return moved.size;
+        }
+
+        public int getMovedId(final int i){
+            return moved.ids[i];
+        }
+
+        public int getRemovedCount(){
+            return removed.size;
+        }
+
+        public int getRemovedId(final int i){
+            return removed.ids[i];
+        }
+
+        /**
+         * Friends added, moved or removed
+         * @return change count
+         */
+        public int getChangeCount(){
+            return added.size + moved.size + removed.size;
+        }
+    }
+
+    /**
+     * Growable list of ids
+     */
+    private static final class IdList {
+
+        int[] ids = new int[16];
+        int size;
+
+        void add(final int id){
+            if(size == ids.length){
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+}
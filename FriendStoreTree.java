@@ -0,0 +1,150 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Friend Store Tree
+ *
+ * Places the friends of a FriendStore in a ClusterQuadtree by id, at their
+ * Web Mercator coordinates, and follows the store as updates are applied.
+ * Where each friend was placed is remembered, so a friend that has moved
+ * in the store can still be found in the tree and moved.
+ *
+ * Free of any Android types so the headless engine can run it on a JVM.
+ *
+ * Not thread safe, guard with the same lock as the tree. The store is
+ * locked while it is read.
+ */
+public class FriendStoreTree {
+
+    private final FriendStore store;
+    private final ClusterQuadtree<Integer> tree;
+
+    // Per id, the boxed id held in the tree (null if not placed) and where it was placed
+    private Integer[] boxes = new Integer[0];
+    private double[] placedX = new double[0];
+    private double[] placedY = new double[0];
+    private int placed;
+
+    /**
+     * Create the placement, nothing is placed until loaded
+     * @param store The store
+     * @param tree The tree to place the ids in
+     */
+    public FriendStoreTree(final FriendStore store, final ClusterQuadtree<Integer> tree){
+        this.store = store;
+        this.tree = tree;
+    }
+
+    /**
+     * Empty the tree and place every friend in the store
+     */
+    public void load(){
+        clear();
+        synchronized (store){
+            for(int id = store.nextId(0); id != -1; id = store.nextId(id + 1)){
+                place(id);
+            }
+        }
+    }
+
+    /**
+     * Follow the changes of a poll, only the friends it touched are moved in the tree
+     * @param update The finished update
+     */
+    public void apply(final FriendStore.Update update){
+        synchronized (store){
+            for(int i = 0; i < update.getRemovedCount(); i++){
+                unplace(update.getRemovedId(i));
+            }
+            for(int i = 0; i < update.getMovedCount(); i++){
+                final int id = update.getMovedId(i);
+                unplace(id);
+                place(id);
+            }
+            for(int i = 0; i < update.getAddedCount(); i++){
+                place(update.getAddedId(i));
+            }
+        }
+    }
+
+    /**
+     * Empty the tree
+     */
+    public void clear(){
+        tree.clear();
+        Arrays.fill(boxes, null);
+        placed = 0;
+    }
+
+    /**
+     * Number of friends placed in the tree
+     * @return size
+     */
+    public int size(){
+        return placed;
+    }
+
+    /**
+     * One more than the highest id that may be placed
+     * @return the id limit
+     */
+    public int getIdLimit(){
+        return boxes.length;
+    }
+
+    /**
+     * Whether a friend is placed in the tree
+     * @param id The id
+     * @return true if placed
+     */
+    public boolean isPlaced(final int id){
+        return id >= 0 && id < boxes.length && boxes[id] != null;
+    }
+
+    /**
+     * Place a friend where the store says it is
+     * @param id The id, must be in use
+     * @return true if it wasn't already placed
+     */
+    public boolean place(final int id){
+        if(id >= boxes.length){
+            final int grown = Math.max(id + 1, boxes.length + (boxes.length >> 1));
+            boxes = Arrays.copyOf(boxes, grown);
+            placedX = Arrays.copyOf(placedX, grown);
+            placedY = Arrays.copyOf(placedY, grown);
+        }
+        if(boxes[id] != null){
+            return false;
+        }
+        final Integer box = id;
+        final double x;
+        final double y;
+        synchronized (store){
+            x = WebMercator.toX(store.getLongitude(id));
+            y = WebMercator.toY(store.getLatitude(id));
+        }
+        boxes[id] = box;
+        placedX[id] = x;
+        placedY[id] = y;
+        tree.insert(box, x, y);
+        placed++;
+        return true;
+    }
+
+    /**
+     * Take a friend out of the tree, wherever it was placed
+     * @param id The id
+     * @return true if it was placed
+     */
+    public boolean unplace(final int id){
+        if(!isPlaced(id)){
+            return false;
+        }
+        tree.remove(boxes[id], placedX[id], placedY[id]);
+        boxes[id] = null;
+        placed--;
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.Arrays;
+
+import static dja33.msc.ukc.myapplication.DistanceCalculator.EARTH_RADIUS;
+
+/**
+ *
+ * Geofence
+ *
+ * An area that friends are watched entering and leaving, either a circle
+ * of a radius around a point or a polygon of lat/lon vertices. Each knows
+ * its lat/lon bounding box, which the GeofenceEngine indexes it by and
+ * checks first so the exact test only runs for locations near the fence.
+ *
+ * Circles are measured with the haversine, polygons are treated as flat
+ * in lat/lon which is close enough for areas of a few km. Neither may
+ * cross the antimeridian, the bounds are clipped to it.
+ *
+ * Immutable, move a fence by adding one with the same id.
+ */
+public final class Geofence {
+
+    private final String id;
+    // Circle centre and radius in km, NaN radius for a polygon
+    private final double latitude;
+    private final double longitude;
+    private final double radius;
+    // Polygon vertices, null for a circle
+    private final double[] lats;
+    private final double[] lons;
+
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+
+    private Geofence(final String id, final double latitude, final double longitude, final double radius,
+                     final double[] lats, final double[] lons,
+                     final double minLat, final double maxLat, final double minLon, final double maxLon){
+        if(id == null){
+            throw new IllegalArgumentException("A geofence needs an id.");
+        }
+        this.id = id;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+        this.lats = lats;
+        this.lons = lons;
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLon = minLon;
+        this.maxLon = maxLon;
+    }
+
+    /**
+     * A circle around a point
+     * @param id Identifies the fence in events
+     * @param latitude Latitude of the centre
+     * @param longitude Longitude of the centre
+     * @param radius Radius in km
+     * @return the fence
+     */
+    public static Geofence circle(final String id, final double latitude, final double longitude,
+                                  final double radius){
+        if(!(radius > 0)){
+            throw new IllegalArgumentException("Radius must be positive.");
+        }
+        final double dLat = Math.toDegrees(radius / EARTH_RADIUS);
+        final double cos = Math.cos(Math.toRadians(latitude));
+        // Near a pole every longitude is close by
+        final double dLon = cos * 180 <= dLat ? 180 : dLat / cos;
+        return new Geofence(id, latitude, longitude, radius, null, null,
+                Math.max(-90, latitude - dLat), Math.min(90, latitude + dLat),
+                Math.max(-180, longitude - dLon), Math.min(180, longitude + dLon));
+    }
+
+    /**
+     * A polygon of at least three vertices, closed between the last and first
+     * @param id Identifies the fence in events
+     * @param lats Latitude of each vertex
+     * @param lons Longitude of each vertex
+     * @return the fence
+     */
+    public static Geofence polygon(final String id, final double[] lats, final double[] lons){
+        if(lats.length < 3 || lats.length != lons.length){
+            throw new IllegalArgumentException("A polygon needs the same number of latitudes and longitudes, at least 3.");
+        }
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < lats.length; i++){
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+        return new Geofence(id, Double.NaN, Double.NaN, Double.NaN,
+                Arrays.copyOf(lats, lats.length), Arrays.copyOf(lons, lons.length),
+                minLat, maxLat, minLon, maxLon);
+    }
+
+    /**
+     * The id given when the fence was made
+     * @return the id
+     */
+    public String getId(){
+        return id;
+    }
+
+    /**
+     * Whether this is a circle rather than a polygon
+     * @return true for a circle
+     */
+    public boolean isCircle(){
+        return lats == null;
+    }
+
+    /* Bounding box of the fence */
+
+    public double getMinLatitude(){
+        return minLat;
+    }
+
+    public double getMaxLatitude(){
+        return maxLat;
+    }
+
+    public double getMinLongitude(){
+        return minLon;
+    }
+
+    public double getMaxLongitude(){
+        return maxLon;
+    }
+
+    /**
+     * Whether a location is inside the fence, the edge of a circle counts as inside
+     * @param lat Latitude of the location
+     * @param lon Longitude of the location
+     * @return true if inside
+     */
+    public boolean contains(final double lat, final double lon){
+        if(lat < minLat || lat > maxLat || lon < minLon || lon > maxLon){
+            return false;
+        }
+        if(isCircle()){
+            return DistanceMetric.HAVERSINE.distance(latitude, longitude, lat, lon) <= radius;
+        }
+        // Count the edges a ray heading east from the location crosses
+        boolean inside = false;
+        for(int i = 0, j = lats.length - 1; i < lats.length; j = i++){
+            if((lats[i] > lat) != (lats[j] > lat)
+                    && lon < lons[j] + (lat - lats[j]) * (lons[i] - lons[j]) / (lats[i] - lats[j])){
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
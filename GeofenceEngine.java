@@ -0,0 +1,441 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Geofence Engine
+ *
+ * Watches friends against a set of Geofences and reports when a friend
+ * enters one, leaves one, or has stayed inside one for the dwell time.
+ *
+ * Fences are filed in a uniform lat/lon grid under every cell their
+ * bounding box touches, so a friend's update is only tested against the
+ * fences filed under the one cell it is in, plus the few fences too large
+ * to file, and the cost doesn't grow with the number of fences elsewhere.
+ * Friends are filed in the same grid so a fence that is added or moved is
+ * only tested against the friends around it.
+ *
+ * Dwells are kept in a queue ordered by when they fall due, {@link #tick()}
+ * reports the ones that are due and {@link #getNextDwellDelay()} says when
+ * to call it next. A friend that leaves before then never dwells.
+ *
+ * Events are given to the listener straight away on the calling thread,
+ * exits before entries, the listener must not change the engine.
+ *
+ * Not thread safe, only use from one thread.
+ */
+public class GeofenceEngine {
+
+    /**
+     * What a friend did with respect to a fence
+     */
+    public enum Transition {
+        ENTER,
+        EXIT,
+        DWELL
+    }
+
+    /**
+     * Receives the events
+     */
+    public interface Listener {
+        void onGeofenceEvent(Geofence fence, String friend, Transition transition);
+    }
+
+    /* Grid cell size in degrees, around 2km of latitude */
+    private static final double CELL = 0.02;
+    private static final long COLUMNS = (long) Math.ceil(360 / CELL) + 1;
+
+    /* Fences covering more cells than this aren't filed, they're tested on every update */
+    private static final int MAX_FENCE_CELLS = 256;
+
+    private final long dwell;
+    private final Listener listener;
+
+    private final Map<String, Fence> fences = new HashMap<>();
+    private final Map<Long, List<Fence>> fenceCells = new HashMap<>();
+    private final List<Fence> large = new ArrayList<>();
+
+    private final Map<String, Friend> friends = new HashMap<>();
+    private final Map<Long, Set<Friend>> friendCells = new HashMap<>();
+
+    // Memberships yet to dwell, soonest first
+    private final PriorityQueue<Membership> dwelling = new PriorityQueue<>(16, new Comparator<Membership>() {
+        @Override
+        public int compare(Membership a, Membership b) {
+            return Long.compare(a.due, b.due);
+        }
+    });
+
+    private long checks;
+
+    /**
+     * Create the engine with no fences
+     * @param dwell How long a friend must stay inside a fence to dwell in ms, 0 for no dwell events
+     * @param listener Receives the events
+     */
+    public GeofenceEngine(final long dwell, final Listener listener){
+        this.dwell = TimeUnit.MILLISECONDS.toNanos(dwell);
+        this.listener = listener;
+    }
+
+    /**
+     * Add a fence, replacing the fence with the same id if there is one.
+     * Friends already inside it enter it, when replacing only the friends
+     * that are inside one but not the other enter or leave.
+     * @param geofence The fence
+     */
+    public void addFence(final Geofence geofence){
+        final long now = System.nanoTime();
+        Fence fence = fences.get(geofence.getId());
+        if(fence == null){
+            fence = new Fence();
+            fences.put(geofence.getId(), fence);
+        }else{
+            unfile(fence);
+        }
+        fence.shape = geofence;
+        file(fence);
+
+        // Those that were inside the old shape but not the new leave
+        for(Membership m : new ArrayList<>(fence.members)){
+            if(!test(geofence, m.friend.lat, m.friend.lon)){
+                exit(m);
+            }
+        }
+        for(Friend friend : near(geofence)){
+            if(friend.find(fence) == null && test(geofence, friend.lat, friend.lon)){
+                enter(friend, fence, now);
+            }
+        }
+    }
+
+    /**
+     * Remove a fence, friends inside it don't leave it
+     * @param id The id of the fence
+     * @return true if there was a fence with the id
+     */
+    public boolean removeFence(final String id){
+        final Fence fence = fences.remove(id);
+        if(fence == null){
+            return false;
+        }
+        unfile(fence);
+        for(Membership m : fence.members){
+            m.active = false;
+            m.friend.inside.remove(m);
+        }
+        fence.members.clear();
+        return true;
+    }
+
+    /**
+     * Set where a friend is, they enter the fences they are now inside and
+     * leave those they are not. A friend not seen before is added.
+     * @param name The friend
+     * @param lat Their latitude
+     * @param lon Their longitude
+     */
+    public void update(final String name, final double lat, final double lon){
+        final long now = System.nanoTime();
+        Friend friend = friends.get(name);
+        if(friend == null){
+            friend = new Friend(name);
+            friends.put(name, friend);
+        }else if(friend.lat == lat && friend.lon == lon){
+            return;
+        }else{
+            unfile(friend);
+        }
+        friend.lat = lat;
+        friend.lon = lon;
+        file(friend);
+
+        for(int i = friend.inside.size() - 1; i >= 0; i--){
+            final Membership m = friend.inside.get(i);
+            if(!test(m.fence.shape, lat, lon)){
+                exit(m);
+            }
+        }
+        final List<Fence> filed = fenceCells.get(cell(lat, lon));
+        if(filed != null){
+            enterAny(friend, filed, now);
+        }
+        enterAny(friend, large, now);
+    }
+
+    /**
+     * Forget a friend, i.e they've gone from the feed, they leave every fence they were inside
+     * @param name The friend
+     * @return true if the friend was known
+     */
+    public boolean remove(final String name){
+        final Friend friend = friends.remove(name);
+        if(friend == null){
+            return false;
+        }
+        unfile(friend);
+        for(int i = friend.inside.size() - 1; i >= 0; i--){
+            exit(friend.inside.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * Forget every friend without any events, the fences are kept
+     */
+    public void clearFriends(){
+        for(Fence fence : fences.values()){
+            for(Membership m : fence.members){
+                m.active = false;
+            }
+            fence.members.clear();
+        }
+        friends.clear();
+        friendCells.clear();
+        dwelling.clear();
+    }
+
+    /**
+     * Report the friends that have now stayed inside a fence for the dwell time
+     */
+    public void tick(){
+        final long now = System.nanoTime();
+        Membership m;
+        while((m = dwelling.peek()) != null && m.due <= now){
+            dwelling.poll();
+            if(m.active){
+                listener.onGeofenceEvent(m.fence.shape, m.friend.name, Transition.DWELL);
+            }
+        }
+    }
+
+    /**
+     * How long until the next dwell falls due
+     * @return delay in ms, -1 if nothing will dwell
+     */
+    public long getNextDwellDelay(){
+        // Those that left are only dropped once they reach the front
+        Membership m;
+        while((m = dwelling.peek()) != null && !m.active){
+            dwelling.poll();
+        }
+        return m == null ? -1 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(m.due - System.nanoTime() + 999999));
+    }
+
+    /**
+     * Whether a friend is inside a fence
+     * @param name The friend
+     * @param id The id of the fence
+     * @return true if inside
+     */
+    public boolean isInside(final String name, final String id){
+        final Friend friend = friends.get(name);
+        final Fence fence = fences.get(id);
+        return friend != null && fence != null && friend.find(fence) != null;
+    }
+
+    /**
+     * Number of fences
+     * @return fence count
+     */
+    public int getFenceCount(){
+        return fences.size();
+    }
+
+    /**
+     * Number of friends being watched
+     * @return friend count
+     */
+    public int getFriendCount(){
+        return friends.size();
+    }
+
+    /**
+     * Number of exact fence tests made so far, i.e to see
+     * how few fences each update is tested against
+     * @return test count
+     */
+    public long getCheckCount(){
+        return checks;
+    }
+
+    private boolean test(final Geofence shape, final double lat, final double lon){
+        checks++;
+        return shape.contains(lat, lon);
+    }
+
+    private void enterAny(final Friend friend, final List<Fence> candidates, final long now){
+        for(int i = 0; i < candidates.size(); i++){
+            final Fence fence = candidates.get(i);
+            if(friend.find(fence) == null && test(fence.shape, friend.lat, friend.lon)){
+                enter(friend, fence, now);
+            }
+        }
+    }
+
+    private void enter(final Friend friend, final Fence fence, final long now){
+        final Membership m = new Membership(friend, fence, now + dwell);
+        friend.inside.add(m);
+        fence.members.add(m);
+        if(dwell > 0){
+            dwelling.add(m);
+        }
+        listener.onGeofenceEvent(fence.shape, friend.name, Transition.ENTER);
+    }
+
+    private void exit(final Membership m){
+        m.active = false;
+        m.friend.inside.remove(m);
+        m.fence.members.remove(m);
+        listener.onGeofenceEvent(m.fence.shape, m.friend.name, Transition.EXIT);
+    }
+
+    /**
+     * The friends filed around a fence, every friend if it covers too many cells
+     */
+    private Collection<Friend> near(final Geofence shape){
+        if(cells(shape) > MAX_FENCE_CELLS){
+            return new ArrayList<>(friends.values());
+        }
+        final List<Friend> near = new ArrayList<>();
+        for(long row = row(shape.getMinLatitude()); row <= row(shape.getMaxLatitude()); row++){
+            for(long col = column(shape.getMinLongitude()); col <= column(shape.getMaxLongitude()); col++){
+                final Set<Friend> filed = friendCells.get(row * COLUMNS + col);
+                if(filed != null){
+                    near.addAll(filed);
+                }
+            }
+        }
+        return near;
+    }
+
+    private void file(final Fence fence){
+        final Geofence shape = fence.shape;
+        if(cells(shape) > MAX_FENCE_CELLS){
+            large.add(fence);
+            return;
+        }
+        for(long row = row(shape.getMinLatitude()); row <= row(shape.getMaxLatitude()); row++){
+            for(long col = column(shape.getMinLongitude()); col <= column(shape.getMaxLongitude()); col++){
+                final Long key = row * COLUMNS + col;
+                List<Fence> filed = fenceCells.get(key);
+                if(filed == null){
+                    filed = new ArrayList<>(2);
+                    fenceCells.put(key, filed);
+                }
+                filed.add(fence);
+            }
+        }
+    }
+
+    private void unfile(final Fence fence){
+        final Geofence shape = fence.shape;
+        if(cells(shape) > MAX_FENCE_CELLS){
+            large.remove(fence);
+            return;
+        }
+        for(long row = row(shape.getMinLatitude()); row <= row(shape.getMaxLatitude()); row++){
+            for(long col = column(shape.getMinLongitude()); col <= column(shape.getMaxLongitude()); col++){
+                final Long key = row * COLUMNS + col;
+                final List<Fence> filed = fenceCells.get(key);
+                filed.remove(fence);
+                if(filed.isEmpty()){
+                    fenceCells.remove(key);
+                }
+            }
+        }
+    }
+
+    private void file(final Friend friend){
+        final Long key = cell(friend.lat, friend.lon);
+        Set<Friend> filed = friendCells.get(key);
+        if(filed == null){
+            filed = new HashSet<>();
+            friendCells.put(key, filed);
+        }
+        filed.add(friend);
+    }
+
+    private void unfile(final Friend friend){
+        final Long key = cell(friend.lat, friend.lon);
+        final Set<Friend> filed = friendCells.get(key);
+        filed.remove(friend);
+        if(filed.isEmpty()){
+            friendCells.remove(key);
+        }
+    }
+
+    private static long cells(final Geofence shape){
+        return (row(shape.getMaxLatitude()) - row(shape.getMinLatitude()) + 1)
+                * (column(shape.getMaxLongitude()) - column(shape.getMinLongitude()) + 1);
+    }
+
+    private static long cell(final double lat, final double lon){
+        return row(lat) * COLUMNS + column(lon);
+    }
+
+    private static long row(final double lat){
+        return (long) Math.floor((lat + 90) / CELL);
+    }
+
+    private static long column(final double lon){
+        return (long) Math.floor((lon + 180) / CELL);
+    }
+
+    /**
+     * A fence, kept when it is replaced so the friends inside it stay inside
+     */
+    private static final class Fence {
+        Geofence shape;
+        final Set<Membership> members = new LinkedHashSet<>();
+    }
+
+    private static final class Friend {
+        final String name;
+        double lat;
+        double lon;
+        // Fences they are inside, only ever a few
+        final List<Membership> inside = new ArrayList<>(2);
+
+        Friend(final String name){
+            this.name = name;
+        }
+
+        Membership find(final Fence fence){
+            for(int i = 0; i < inside.size(); i++){
+                if(inside.get(i).fence == fence){
+                    return inside.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A friend being inside a fence, inactive once they leave
+     */
+    private static final class Membership {
+        final Friend friend;
+        final Fence fence;
+        final long due;
+        boolean active = true;
+
+        Membership(final Friend friend, final Fence fence, final long due){
+            this.friend = friend;
+            this.fence = fence;
+            this.due = due;
+        }
+    }
+}
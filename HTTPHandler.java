@@ -1,38 +1,85 @@
 package dja33.msc.ukc.myapplication;
 
-import android.os.AsyncTask;
-
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  *
  * HTTP Handler
  *
- * Used to handle raw interactions using GET with AsyncTask provided
- * to not throttle the main applications thread. Given a URL it will
+ * Used to handle raw interactions using GET. Given a URL it will
  * allow interactions with said website. Has some form of sanity checking
- * in the constructor to verify existence of website.
+ * in the constructor to verify the URL is well formed.
+ *
+ * Every request opens a fresh connection so repeated requests always
+ * see the latest data, the underlying sockets are pooled and reused by
+ * HttpURLConnection. Requests block and so must be made from a background
+ * thread, see FeedPoller.
+ *
+ * Using fetch the response is not stored at all, instead it is parsed
+ * straight from the connection and each user is handed to the sink as
+ * it is read.
+ *
+ * Fetches are conditional, the ETag and Last-Modified of the last good
+ * feed are sent back so an unchanged feed costs a 304 with no body and
+ * no parsing. Bodies are requested compressed and decoded transparently.
+ * The compact BinaryFeed is asked for ahead of JSON, a website that only
+ * has JSON simply sends that.
+ * Bytes received and the number of fetches skipped by a 304 are counted.
  *
  * Created by Dante on 15/03/2017.
  */
-public class HTTPHandler extends AsyncTask<Void, Void, Void> {
+public class HTTPHandler {
+
+    /* Timeouts so a dead website can't stall polling forever */
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
 
     private final String url;
+    private final URL target;
     private final List<String> rawContents;
     private final StringBuilder rawContentsString;
-    private final HttpURLConnection connection;
-    private int response;
+    private volatile int response;
+    private volatile boolean parsed;
+
+    /* Validators from the last successfully parsed feed, cleared if that feed was thrown away */
+    private volatile String etag;
+    private volatile String lastModified;
+
+    /* Transfer stats, bytes are counted as received on the wire i.e compressed */
+    private volatile long lastBytesReceived;
+    private volatile long totalBytesReceived;
+    private volatile long fetchCount;
+    private volatile long notModifiedCount;
+
+    /* Whether the binary feed is asked for, and whether the last feed parsed was binary */
+    private volatile boolean binaryAccepted = true;
+    private volatile boolean binary;
+
+    /* Reused for the body of a binary feed and the names it has seen, made on the first binary response, fetching thread only */
+    private byte[] body;
+    private BinaryFeed.Decoder binaryDecoder;
+
+    /* Timings of the last fetch, waiting on the headers and then reading and parsing the body */
+    private volatile long lastConnectNanos;
+    private volatile long lastParseNanos;
 
     /**
      * Create the Handler, providing the URL to be used
-     * will attempt to establish a connection to verify
-     * the connection is real(ish) and not breakable.
+     * will verify the URL is well formed.
      * @param url The url for the website
      */
     public HTTPHandler(final String url){
@@ -40,18 +87,17 @@ public class HTTPHandler extends AsyncTask<Void, Void, Void> {
         this.rawContents = new ArrayList<>();
         this.rawContentsString = new StringBuilder();
         try{
-            this.connection = (HttpURLConnection) new URL(url).openConnection();
-        }catch(IOException e){
+            this.target = new URL(url);
+        }catch(MalformedURLException e){
             throw new IllegalArgumentException("Invalid URL given.");
         }
     }
 
     @Deprecated
     /**
-     * Used to connect directly on the main applications thread,
-     * deprecated as Android does not explicitly allow for this although
-     * it can be disabled in the build configuration. Otherwise safer to
-     * use AsyncTask 'doInBackground'.
+     * Used to connect directly on the calling thread keeping
+     * the raw contents, deprecated as the whole response is held
+     * in memory twice. Otherwise use 'fetch' to stream it.
      *
      * Will attempt to connect to the website and scrape all information returned back
      * in raw format as a String.
@@ -60,25 +106,193 @@ public class HTTPHandler extends AsyncTask<Void, Void, Void> {
      * @return response -1 if error arose otherwise response code from site
      */
     public int connect() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+        try {
+            final HttpURLConnection connection = openConnection();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+
+                String next = null;
 
-            String next = null;
+                rawContents.clear();
+                rawContentsString.setLength(0);
+
+                while((next = in.readLine()) != null){
+                    rawContents.add(next);
+                    rawContentsString.append(next);
+                }
+
+                response = connection.getResponseCode();
+                return response;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            rawContents.clear();
-            rawContentsString.setLength(0);
+        response = -1;
+        return response;
+    }
 
-            while((next = in.readLine()) != null){
-                rawContents.add(next);
-                rawContentsString.append(next);
+    /**
+     * Fetch the feed using a fresh connection and parse it directly to
+     * the sink on the calling thread, only the record being parsed is held
+     * in memory. Nothing is parsed unless the website responds with a 200,
+     * a 304 means the feed is the same as the last one parsed.
+     *
+     * The binary feed is asked for ahead of JSON, see BinaryFeed, whichever
+     * the website sends is parsed. A binary body is read whole and decoded
+     * in place, JSON is parsed as it arrives.
+     *
+     * Use {@link #isParsed()} to check whether the feed was well formed.
+     * @param sink Where to send each user
+     * @return response -1 if error arose otherwise response code from site
+     */
+    public int fetch(final UserFeedParser.Sink sink) {
+        parsed = false;
+        binary = false;
+        lastBytesReceived = 0;
+        lastConnectNanos = 0;
+        lastParseNanos = 0;
+        fetchCount++;
+        final long start = System.nanoTime();
+        try {
+            final HttpURLConnection connection = openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            connection.setRequestProperty("Accept", binaryAccepted
+                    ? BinaryFeed.CONTENT_TYPE + ", application/json;q=0.9" : "application/json");
+            if(etag != null){
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if(lastModified != null){
+                connection.setRequestProperty("If-Modified-Since", lastModified);
             }
 
-            return connection.getResponseCode();
+            final int code = connection.getResponseCode();
+            final long headers = System.nanoTime();
+            lastConnectNanos = headers - start;
+            if(code == HttpURLConnection.HTTP_NOT_MODIFIED){
+                notModifiedCount++;
+                response = code;
+                return response;
+            }
+            if(code != HttpURLConnection.HTTP_OK){
+                response = code;
+                return response;
+            }
 
+            final CountingInputStream counter = new CountingInputStream(connection.getInputStream());
+            try (InputStream in = new BufferedInputStream(decode(counter, connection.getContentEncoding()))) {
+                try {
+                    final String type = connection.getContentType();
+                    if(type != null && type.startsWith(BinaryFeed.CONTENT_TYPE)){
+                        binary = true;
+                        if(binaryDecoder == null){
+                            binaryDecoder = new BinaryFeed.Decoder();
+                        }
+                        binaryDecoder.decode(readBody(in), sink);
+                    }else{
+                        UserFeedParser.parse(in, sink);
+                    }
+                    parsed = true;
+                    // Only remember validators for a feed we could actually use
+                    etag = connection.getHeaderField("ETag");
+                    lastModified = connection.getHeaderField("Last-Modified");
+                } catch (IOException e) {
+                    // Malformed feed, the connection itself was fine
+                    e.printStackTrace();
+                }
+            } finally {
+                lastBytesReceived = counter.count;
+                totalBytesReceived += counter.count;
+                lastParseNanos = System.nanoTime() - headers;
+            }
+            response = code;
         } catch (IOException e) {
+            response = -1;
             e.printStackTrace();
         }
+        return response;
+    }
+
+    /**
+     * Forget the validators of the last feed so the next fetch gets the
+     * whole feed rather than a 304, i.e because the last one was thrown away
+     */
+    public void clearValidators(){
+        etag = null;
+        lastModified = null;
+    }
 
-        return -1;
+    /**
+     * Whether the last fetched feed was parsed successfully
+     * @return true if every record was passed to the sink
+     */
+    public boolean isParsed(){
+        return parsed;
+    }
+
+    /**
+     * Ask for the binary feed ahead of JSON, on by default
+     * @param accepted false to only ask for JSON, i.e to compare the two
+     */
+    public void setBinaryAccepted(final boolean accepted){
+        binaryAccepted = accepted;
+    }
+
+    /**
+     * Whether the last feed parsed was in the binary format
+     * @return true if binary, false if JSON or nothing was parsed
+     */
+    public boolean isBinary(){
+        return binary;
+    }
+
+    /**
+     * Bytes of body received by the last fetch, as sent on the wire
+     * @return bytes received, 0 for a 304
+     */
+    public long getLastBytesReceived(){
+        return lastBytesReceived;
+    }
+
+    /**
+     * Bytes of body received by every fetch so far, as sent on the wire
+     * @return total bytes received
+     */
+    public long getTotalBytesReceived(){
+        return totalBytesReceived;
+    }
+
+    /**
+     * Time the last fetch spent connecting and waiting for the response headers
+     * @return time in ns
+     */
+    public long getLastConnectNanos(){
+        return lastConnectNanos;
+    }
+
+    /**
+     * Time the last fetch spent reading and parsing the body,
+     * including whatever the sink did with each user
+     * @return time in ns, 0 if there was no body
+     */
+    public long getLastParseNanos(){
+        return lastParseNanos;
+    }
+
+    /**
+     * Number of fetches made so far
+     * @return fetch count
+     */
+    public long getFetchCount(){
+        return fetchCount;
+    }
+
+    /**
+     * Number of fetches the website answered with 304,
+     * i.e downloading and parsing was skipped
+     * @return skipped fetch count
+     */
+    public long getNotModifiedCount(){
+        return notModifiedCount;
     }
 
     /**
@@ -105,55 +319,101 @@ public class HTTPHandler extends AsyncTask<Void, Void, Void> {
         return url;
     }
 
-    @Override
     /**
-     * AsyncTask to run in the background, safer that
-     * connect as does not throttle main thread.
-     *
-     * Everything provided is null, not expected and
-     * should not return any values.
-     *
-     * Will attempt to connect to the website and scrape all information returned back
-     * in raw format as a String.
-     *
-     * Sets the connection response field given the response from the website, or -1 if an error
-     * arose.
-     */
-    protected Void doInBackground(Void... params) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-            String next = null;
-
-            rawContents.clear();
-            rawContentsString.setLength(0);
-            while((next = in.readLine()) != null){
-                rawContents.add(next);
-                rawContentsString.append(next);
-            }
+     * Get the response given from the HTTPHandler upon it's last attempted connection
+     * @return response
+     */
+    public int getResponse(){
+        return response;
+    }
 
-            response =  connection.getResponseCode();
+    /**
+     * Open a new connection to the website
+     * @return the connection, not yet connected
+     * @throws IOException If the connection could not be opened
+     */
+    private HttpURLConnection openConnection() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection;
+    }
 
-        } catch (IOException e) {
-            response = -1;
-            e.printStackTrace();
+    /**
+     * Read the whole of a body into the reused buffer
+     * @param in The decoded body
+     * @return the body, only valid until the next fetch
+     * @throws IOException If reading fails
+     */
+    private ByteBuffer readBody(final InputStream in) throws IOException {
+        if(body == null){
+            body = new byte[8192];
         }
-
-        return null;
+        int length = 0;
+        for(int n; (n = in.read(body, length, body.length - length)) != -1; ){
+            length += n;
+            if(length == body.length){
+                body = Arrays.copyOf(body, body.length * 2);
+            }
+        }
+        return ByteBuffer.wrap(body, 0, length);
     }
 
-    @Override
     /**
-     * Unused, potential use for later.
+     * Wrap the body in a decoder for its content encoding
+     * @param in The raw body
+     * @param encoding Content-Encoding of the response, may be null
+     * @return the decoded body
+     * @throws IOException If the body is not valid for the encoding
      */
-    protected void onPostExecute(Void result) {
-
+    private static InputStream decode(final InputStream in, final String encoding) throws IOException {
+        if(encoding == null){
+            return in;
+        }
+        if(encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")){
+            return new GZIPInputStream(in);
+        }
+        if(encoding.equalsIgnoreCase("deflate")){
+            return new InflaterInputStream(in);
+        }
+        return in;
     }
 
     /**
-     * Get the response given from the HTTPHandler upon it's attempted connection
-     * @return response
+     * Counts the bytes read through it
      */
-    public int getResponse(){
-        return response;
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(final InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if(b >= 0){
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int n = super.read(buffer, offset, length);
+            if(n > 0){
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
     }
 
 }
@@ -5,22 +5,30 @@ package dja33.msc.ukc.myapplication;
  */
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
 import com.google.maps.android.clustering.ClusterItem;
 import com.google.maps.android.clustering.ClusterManager;
-import com.google.maps.android.clustering.algo.GridBasedAlgorithm;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Map Handler
@@ -30,43 +38,151 @@ import java.util.List;
  * to interact with the HTTPHandler in which it can
  * poll data and display it.
  *
- * Implements Runnable to allow for background interactions
- * with the HTTPHandler which uses AsyncTask to perform
- * web requests in a separate thread.
+ * Implements Runnable to start polling, the FeedPoller performs
+ * web requests with the HTTPHandler on a background thread and
+ * hands the results back on the main thread.
  *
  * Created by Dante on 15/03/2017.
  */
 public class MapHandler implements Runnable{
 
-    /* User lat and lon for senate building at the University */
-    public static final double USER_LAT = 51.297269;
-    public static final double USER_LON = 1.069740;
+    private static final String TAG = "MapHandler";
 
     private static final int DEFAULT_ZOOM = 14;
 
+    /* File in the app storage holding the last good set of friends */
+    private static final String SNAPSHOT_FILE = "friends.snapshot";
+
     /* URL for HTTPHandler */
     private static final String URL = "https://www.cs.kent.ac.uk/people/staff/iau/LocalUsers.php";
 
+    /* Time each endpoint of a sharded feed is given per poll, slower shards are used from their last poll */
+    private static final long ENDPOINT_TIMEOUT = 8000;
+
+    /* How long a tile of a tiled feed is used before it is fetched again, and most tiles kept */
+    private static final long TILE_TTL = 30000;
+    private static final int TILE_CACHE = 256;
+
+    /* How long a friend stays inside a geofence before they dwell in it, and the id of the zone around the user */
+    private static final long GEOFENCE_DWELL = 60000;
+    private static final String USER_ZONE = "user";
+
+    /* Most cluster and marker icons kept by the renderer, a few buckets in a few styles */
+    private static final int CLUSTER_ICON_CACHE = 32;
+
+    /* How long requests to recluster are gathered into one run, in ms */
+    private static final long CLUSTER_WINDOW = 100;
+
+    /* Trails kept for the most recently moved friends, the points kept for each and
+     * the window speeds are averaged over, 2MB held off the heap however long it runs */
+    private static final int TRAIL_FRIENDS = 1024;
+    private static final int TRAIL_POINTS = 128;
+    private static final long SPEED_WINDOW = 120000;
+
+    /* Trail line drawn for a friend */
+    private static final int TRAIL_COLOUR = 0xFF3F51B5;
+    private static final float TRAIL_WIDTH = 6;
+
+    /* Least time between saving snapshots, changes can arrive far more often while streaming */
+    private static final long SNAPSHOT_INTERVAL = 10000;
+
     /* User marker information */
     private static final String USER_TITLE = "You";
     private static final String USER_SNIPPET = "Your current location.";
     private static final float USER_COLOUR = BitmapDescriptorFactory.HUE_BLUE;
 
-    /* Delay between each attempt at GET request with HTTPHandler */
-    private static final long DELAY_BETWEEN_POLLING = 5000;
+    /* Closest friend search, how many to take from the index and measure precisely */
+    private static final int CLOSEST_CANDIDATES = 8;
+    /* Candidates kept around the user so small moves don't query the index */
+    private static final int CLOSEST_POOL = 32;
+
+    /* Bounds on the delay between each attempt at GET request with HTTPHandler,
+     * the delay adapts between them depending on how often the data changes */
+    private static final long MIN_DELAY_BETWEEN_POLLING = 2000;
+    private static final long MAX_DELAY_BETWEEN_POLLING = 60000;
+
+    /* Reads the identity and location of a Person for the SpatialIndex and FriendDiff */
+    private static final FriendDiff.Identity<Person> PERSON_IDENTITY = new FriendDiff.Identity<Person>() {
+        @Override
+        public String key(Person item) {
+            return item.name;
+        }
+
+        @Override
+        public double latitude(Person item) {
+            return item.position.latitude;
+        }
+
+        @Override
+        public double longitude(Person item) {
+            return item.position.longitude;
+        }
+    };
 
     /* Other constants set in the constructor for use */
     private final GoogleMap gmap;
     private final Context app;
-    private final List<Person> friends;
-    private final HTTPHandler httpHandler;
+    // Friends keyed on their name, replaced with the snapshot from each poll
+    private Map<String, Person> friends;
+    private FeedPoller<Person> poller;
+    // Runs callbacks from the background on the main thread
+    private final Executor mainThread;
+    // Turns each record from the feed into a Person
+    private final FeedPoller.RecordFactory<Person> personFactory;
+    // Pushes changes as they happen, null unless a stream URL is set
+    private FeedStream<Person> stream;
+    // Whether the stream is up, polling takes over while it is not
+    private boolean streamUp;
+    private final SnapshotCache snapshotCache;
+    private final PollMetrics metrics;
     private final MarkerOptions user;
+    private final Marker userMarker;
     private final ClusterManager<Person> clusterManager;
+    private final QuadtreeAlgorithm<Person> clusterAlgorithm;
+    private final CachingClusterRenderer<Person> clusterRenderer;
+    // Changes the items and clusters them on a worker, in place of the ClusterManager
+    private final ClusterScheduler<Person> clusterScheduler;
+
+    // Spatial index over friends, updated with the changes from every poll
+    private final DynamicSpatialIndex<Person> friendIndex;
+    // Closest friends to the user, kept up to date as the user moves
+    private final NearestTracker<Person> nearestTracker;
+    // Where the users location comes from, null if they stay put
+    private UserLocationSource locationSource;
+    // Watches friends entering and leaving zones, kept up to date with every change
+    private final GeofenceEngine geofences;
+    // Receives the geofence events, null if nobody is listening
+    private GeofenceEngine.Listener geofenceListener;
+    // Radius of the zone around the user in km, 0 if there is none
+    private double userZoneRadius;
+    private final Handler mainHandler;
+    // Reports the dwells that fall due, rescheduled for the next one
+    private final Runnable dwellCheck = new Runnable() {
+        @Override
+        public void run() {
+            geofences.tick();
+            scheduleDwellCheck();
+        }
+    };
+    // Where friends have been, recorded from every change
+    private final TrajectoryStore trajectories;
+    // Friend whose trail is drawn and the line, null if none is
+    private String trailFriend;
+    private Polyline trailLine;
+    // Changes from the last poll not yet given to the ClusterManager
+    private FriendDiff<Person> pendingDiff;
 
     // Whether our friends are visible
     private boolean friendsVisible;
-    // Whether the HTTPHandler is running in a thread
-    private boolean runHTTPHandler;
+    // Whether the first poll has been given to the ClusterManager
+    private boolean clustered;
+    // Zoom when the camera last stopped, only touched on the main thread
+    private float lastZoom = -1;
+    // Reused to build messages for the user, only touched on the main thread
+    private final StringBuilder message = new StringBuilder(96);
+    // When the snapshot was last saved and whether anything has changed since
+    private long lastSnapshotSave;
+    private boolean snapshotDirty;
 
     /**
      * Create the MapHandler which creates and defines
@@ -77,32 +193,102 @@ public class MapHandler implements Runnable{
      * @param gmap The GoogleMap reference
      */
     public MapHandler(final Context app, final GoogleMap gmap){
+        this(app, gmap, Collections.singletonList(URL));
+    }
+
+    /**
+     * Create the MapHandler polling a feed sharded over several
+     * endpoints, i.e by region, which are fetched at once and merged
+     * @param app The Application to be used for Context
+     * @param gmap The GoogleMap reference
+     * @param endpoints URLs of the feed, one per shard
+     */
+    public MapHandler(final Context app, final GoogleMap gmap, final List<String> endpoints){
         this.gmap = gmap;
         this.app = app;
-        // ClusterManager used to perform nice arrangements of markers
+        // ClusterManager holds the markers and dispatches their clicks, the
+        // clustering itself is done by the ClusterScheduler on the algorithm
         this.clusterManager = new ClusterManager<>(app, gmap);
-        this.clusterManager.setAlgorithm(new GridBasedAlgorithm<Person>());
+        this.clusterAlgorithm = new QuadtreeAlgorithm<>();
+        // Reuses markers and icons between re-clusters. Not given to the ClusterManager,
+        // which would cluster on its own, only the scheduler hands it clusters
+        this.clusterRenderer = new CachingClusterRenderer<>(app, gmap, clusterManager, CLUSTER_ICON_CACHE);
+        this.clusterRenderer.onAdd();
+        this.clusterAlgorithm.setMinClusterSize(clusterRenderer.getMinClusterSize());
 
         // Point the map's listeners at the listeners implemented by the cluster
-        // manager.
-        this.gmap.setOnCameraIdleListener(clusterManager);
+        // manager, the camera listener first tells the algorithm what is visible.
+        this.gmap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
+            @Override
+            public void onCameraIdle() {
+                onCameraMoved();
+            }
+        });
         this.gmap.setOnMarkerClickListener(clusterManager);
+        // Distances change as the user moves, so refresh the snippet before it is shown
+        this.clusterRenderer.setOnClusterItemClickListener(new ClusterManager.OnClusterItemClickListener<Person>() {
+            @Override
+            public boolean onClusterItemClick(Person person) {
+                final Marker marker = clusterRenderer.getMarker(person);
+                if(marker != null){
+                    marker.setSnippet(person.getSnippet());
+                }
+                // Carry on and show the info window
+                return false;
+            }
+        });
+
+        this.friends = new LinkedHashMap<>();
+        this.metrics = new PollMetrics();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.clusterScheduler = new ClusterScheduler<>(gmap, clusterAlgorithm, clusterRenderer, mainHandler,
+                CLUSTER_WINDOW, metrics);
+        this.mainThread = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        };
+        this.personFactory = new FeedPoller.RecordFactory<Person>() {
+            @Override
+            public Person create(double lat, double lon, String name) {
+                // Measured later, only if they turn out to be new
+                return new Person(lat, lon, name);
+            }
+        };
+        this.poller = createPoller(endpoints);
 
-        this.httpHandler = new HTTPHandler(URL);
-        this.httpHandler.execute();
-        this.friends = new ArrayList<>();
+        this.trajectories = new TrajectoryStore(TRAIL_FRIENDS, TRAIL_POINTS, true);
+
+        // Show the friends from last time straight away, the first poll reconciles them
+        this.snapshotCache = new SnapshotCache(new File(app.getFilesDir(), SNAPSHOT_FILE));
+        restoreSnapshot();
+        this.friendIndex = new DynamicSpatialIndex<>(new ArrayList<>(friends.values()), PERSON_IDENTITY);
+        this.nearestTracker = new NearestTracker<>(friendIndex, PERSON_IDENTITY, CLOSEST_CANDIDATES, CLOSEST_POOL);
+        this.geofences = new GeofenceEngine(GEOFENCE_DWELL, new GeofenceEngine.Listener() {
+            @Override
+            public void onGeofenceEvent(Geofence fence, String friend, GeofenceEngine.Transition transition) {
+                if(geofenceListener != null){
+                    geofenceListener.onGeofenceEvent(fence, friend, transition);
+                }
+            }
+        });
+        for(Person p : friends.values()){
+            geofences.update(p.name, p.position.latitude, p.position.longitude);
+        }
 
         // Set and add user data
         this.user = new MarkerOptions();
-        LatLng userLocation = new LatLng(USER_LAT, USER_LON);
+        LatLng userLocation = new LatLng(DistanceCalculator.getReferenceLatitude(),
+                DistanceCalculator.getReferenceLongitude());
 
         {
             this.user.position(userLocation);
             this.user.title(USER_TITLE);
             this.user.snippet(USER_SNIPPET);
             this.user.icon(BitmapDescriptorFactory.defaultMarker(USER_COLOUR));
-            this.gmap.addMarker(this.user);
         }
+        this.userMarker = this.gmap.addMarker(this.user);
 
         // Move the maps current camera to the users location
         this.gmap.moveCamera(CameraUpdateFactory.newLatLngZoom(userLocation, DEFAULT_ZOOM));
@@ -115,7 +301,7 @@ public class MapHandler implements Runnable{
      * @return String of the event
      */
     public String moveCameraToUser() {
-        this.gmap.moveCamera(CameraUpdateFactory.newLatLngZoom(new LatLng(USER_LAT, USER_LON), 15));
+        this.gmap.moveCamera(CameraUpdateFactory.newLatLngZoom(userMarker.getPosition(), 15));
         return "Moved camera to user position.";
     }
 
@@ -127,11 +313,12 @@ public class MapHandler implements Runnable{
      */
     public boolean toggleFriends() {
         if(friendsVisible){
-            clusterManager.clearItems();
+            clusterScheduler.clearItems();
         }else{
-            clusterManager.addItems(friends);
+            clusterScheduler.setItems(friends.values());
         }
-        clusterManager.cluster();
+        // Anything pending is already covered by adding or clearing everything
+        pendingDiff = null;
         friendsVisible = !friendsVisible;
         return friendsVisible;
     }
@@ -145,128 +332,619 @@ public class MapHandler implements Runnable{
      * @return String of the results
      */
     public String findClosestFriend() {
-        Person closest = null;
-        double distance = Double.MAX_VALUE;
-        for(Person p : friends){
-            if(p.distance < distance){
-                distance = p.distance;
-                closest = p;
-            }
-        }
+        // The index ranks on a sphere, the ellipsoid can reorder very close results
+        // so take a few candidates and let the precise metric settle it
+        final double lat = DistanceCalculator.getReferenceLatitude();
+        final double lon = DistanceCalculator.getReferenceLongitude();
+        List<Person> candidates = nearestTracker.nearest(lat, lon);
+        Person closest = DistanceCalculator.closest(candidates, PERSON_IDENTITY, lat, lon, DistanceMetric.VINCENTY);
 
         // If we found a friend and they are not hidden
         if(closest != null && friendsVisible) {
             this.gmap.moveCamera(CameraUpdateFactory.newLatLngZoom(closest.getPosition(), gmap.getCameraPosition().zoom >= 15 ? gmap.getCameraPosition().zoom : 15));
-            return closest.getTitle() + " is the closest friend ( " + DistanceCalculator.getDistance(closest.getPosition()) + ")";
+            message.setLength(0);
+            message.append(closest.getTitle()).append(" is the closest friend ( ");
+            DistanceCalculator.appendDistance(message,
+                    DistanceCalculator.calculateDistance(closest.getPosition().latitude,
+                            closest.getPosition().longitude, DistanceMetric.VINCENTY));
+            return message.append(')').toString();
         }
         return "No friends found :(";
     }
 
+    /**
+     * Find the k closest friends to the users location,
+     * closest first
+     * @param k The maximum amount of friends to return
+     * @return closest friends
+     */
+    public List<? extends ClusterItem> nearestFriends(final int k) {
+        return friendIndex.nearest(DistanceCalculator.getReferenceLatitude(),
+                DistanceCalculator.getReferenceLongitude(), k);
+    }
+
+    /**
+     * Find all friends within a radius of the users location
+     * @param km The radius in kilometres
+     * @return friends within the radius, in no particular order
+     */
+    public List<? extends ClusterItem> friendsWithinRadius(final double km) {
+        return friendIndex.withinRadius(DistanceCalculator.getReferenceLatitude(),
+                DistanceCalculator.getReferenceLongitude(), km);
+    }
+
+    /**
+     * Find all friends within a bounding box, such as the
+     * visible region of the map
+     * @param bounds The bounds to search
+     * @return friends within the bounds, in no particular order
+     */
+    public List<? extends ClusterItem> friendsWithin(final LatLngBounds bounds) {
+        return friendIndex.withinBounds(bounds.southwest.latitude, bounds.southwest.longitude,
+                bounds.northeast.latitude, bounds.northeast.longitude);
+    }
+
     @Deprecated
     /**
      * Add all friends to the map as markers,
      * unused and deprecated due to Cluster implementation
      */
     public void addAllPeople(){
-        for(Person p : friends){
+        for(Person p : friends.values()){
             gmap.addMarker(new MarkerOptions().position(p.getPosition()).title(p.getTitle()));
         }
     }
 
     /**
-     * Add all friends to the ClusterManager
-     * will not duplicate and instead first removes
-     * all friends to then add all them again sets
-     * friends to be visible by default
+     * Add all friends to the ClusterScheduler, the first
+     * time adds everyone and sets friends to be visible by default.
+     * After that only the changes from the last poll are queued for
+     * the algorithm, friends that moved are moved in the algorithm
+     * and the renderer moves their marker. If nothing changed or
+     * friends are hidden nothing is done.
      */
     public void addCluster(){
 
-        clusterManager.clearItems();
-        clusterManager.addItems(friends);
+        final FriendDiff<Person> diff = pendingDiff;
+        pendingDiff = null;
 
-        friendsVisible = true;
+        if(!clustered){
+            clusterScheduler.setItems(friends.values());
+            friendsVisible = true;
+            clustered = true;
+            return;
+        }
+
+        if(!friendsVisible || diff == null || diff.isEmpty()){
+            return;
+        }
+
+        // The renderer moves the markers of friends that moved, the snippet is refreshed when tapped
+        clusterScheduler.applyChanges(diff.getRemoved(), diff.getMovedFrom(), diff.getAdded());
 
     }
 
     @Override
     /**
-     * Threading element of the MapHandler, will run
-     * until pollData returns successfully or throws
-     * an exception otherwise which is outside the control
-     * of the application.
+     * Starts polling the website in the background, returns
+     * immediately. Each result is handed back on the main thread
+     * and given to the ClusterManager.
      *
      * Tries to retrieve all content from the HTTPHandler
      * given the URL and previous information.
+     *
+     * With a stream set the stream is started instead, polling
+     * only starts if it can't be connected.
      */
     public void run() {
-        runHTTPHandler = true;
-        while(runHTTPHandler){
-            try {
-                Thread.sleep(DELAY_BETWEEN_POLLING);
-                runHTTPHandler = !pollData();
-                addCluster();
-            }catch(InterruptedException ie){
-                // We were interrupted outside of the application
-                runHTTPHandler = false;
-            } catch (HTTPNoResponseException e) {
-                // Alternatively use a SnackBar to display an error or the alike.
-                //System.out.println("No response from '" + e.getURL() + "'... response = " + e.getResponseCode());
-            }
+        if(stream != null){
+            stream.start();
+        }else{
+            poller.start();
+        }
+    }
+
+    /**
+     * Receive changes pushed from an event stream instead of polling
+     * for them, see FeedStream. Polling takes over while the stream
+     * is down. Must be set before polling is started with {@link #run()}.
+     * @param url The event stream, null to only poll
+     */
+    public void setStreamURL(final String url){
+        if(stream != null){
+            stream.stop();
+        }
+        stream = url == null ? null : createStream(url);
+        streamUp = false;
+    }
+
+    /**
+     * Fetch only the friends in view from a tiled feed rather than every
+     * friend, see TileFeed. The friends shown follow the camera, those out
+     * of view are dropped once it moves away from them. Must be set before
+     * polling is started with {@link #run()}.
+     * @param url The tile endpoint, the tile is added as query parameters
+     */
+    public void setTileURL(final String url){
+        final PollInterval interval = poller.getInterval();
+        poller.stop();
+        poller = new FeedPoller<>(new TileFeed(url, TILE_TTL, ENDPOINT_TIMEOUT, TILE_CACHE), personFactory,
+                createPollListener(), mainThread, interval, metrics);
+        // Tiles can't be chosen until the camera has settled once
+        if(lastZoom >= 0){
+            setTileViewport();
+        }
+    }
+
+    /**
+     * Pause polling, i.e while the application is not visible
+     */
+    public void pausePolling(){
+        poller.pause();
+        if(stream != null){
+            stream.stop();
+        }
+    }
+
+    /**
+     * Resume polling after it was paused, the stream resumes
+     * from the last change it received
+     */
+    public void resumePolling(){
+        if(stream != null){
+            stream.start();
+        }
+        // Only resumes if polling was started and not left to the stream
+        if(stream == null || !streamUp){
+            poller.resume();
         }
     }
 
     /**
-     * Unused but here for potential, stops the HTTPHandler
-     * if needed.
+     * Stops the HTTPHandler polling and releases
+     * its background thread.
      */
     public void stopHTTPHandler(){
-        runHTTPHandler = false;
+        poller.stop();
+        if(stream != null){
+            stream.stop();
+        }
     }
 
     /**
-     * Unused but here for potential, returns whether the HTTPHandler
-     * is running or not
-     * @return true if running
+     * Stop polling and release everything running in the
+     * background, the MapHandler can't be used afterwards
      */
-    public boolean isHTTPHandlerRunning() { return runHTTPHandler; }
+    public void close(){
+        pauseLocationUpdates();
+        mainHandler.removeCallbacks(dwellCheck);
+        clusterScheduler.shutdown();
+        stopHTTPHandler();
+        if(snapshotDirty){
+            saveSnapshot();
+        }
+        snapshotCache.close();
+    }
 
     /**
-     * Polls the HTTPHandler to fetch all data from URL, assumes JSON
-     * format of the URL using GET. Will fill the friends collection with
-     * data polled from the website.
-     * @return true if successful, false if JSON was malformed
-     * @throws HTTPNoResponseException If the website requested will not respond beyond response 200
+     * Returns whether the HTTPHandler is polling or not
+     * @return true if polling or streaming
      */
-    public boolean pollData() throws HTTPNoResponseException{
+    public boolean isHTTPHandlerRunning() { return poller.isRunning() || (stream != null && stream.isRunning()); }
 
-        int response = httpHandler.getResponse();
+    /**
+     * The adaptive delay between polls, for reading the
+     * current interval and how polls have gone so far
+     * @return the poll interval
+     */
+    public PollInterval getPollInterval() { return poller.getInterval(); }
+
+    /**
+     * The renderer of the friends markers, for reading how
+     * often its icon cache is hit and markers are reused
+     * @return the cluster renderer
+     */
+    public CachingClusterRenderer<?> getClusterRenderer() { return clusterRenderer; }
 
-        if(response != 200){
-            // We didn't receive the OK from the website
-            throw new HTTPNoResponseException(httpHandler.getURL(), response, "No response from website.");
+    /**
+     * Timings and counts for the poll pipeline, disabled until
+     * enabled here along with an exporter, see MetricsExporters
+     * @return the metrics
+     */
+    public PollMetrics getMetrics() { return metrics; }
+
+    /**
+     * Receive an event whenever a friend enters, leaves or dwells in a
+     * geofence, events arrive on the main thread as the changes are applied
+     * @param listener The listener, null to stop receiving them
+     */
+    public void setGeofenceListener(final GeofenceEngine.Listener listener){
+        geofenceListener = listener;
+    }
+
+    /**
+     * Watch friends against a fence, i.e around a point of interest,
+     * replacing any fence with the same id. Friends already inside enter it.
+     * @param fence The fence
+     */
+    public void addGeofence(final Geofence fence){
+        geofences.addFence(fence);
+        scheduleDwellCheck();
+    }
+
+    /**
+     * Stop watching friends against a fence
+     * @param id The id of the fence
+     */
+    public void removeGeofence(final String id){
+        geofences.removeFence(id);
+        scheduleDwellCheck();
+    }
+
+    /**
+     * Draw where a friend has been, kept up to date as they move
+     * and simplified for the zoom, replacing any trail already drawn
+     * @param name The friend
+     * @return true if they have a trail to draw
+     */
+    public boolean showTrail(final String name){
+        trailFriend = name;
+        return drawTrail();
+    }
+
+    /**
+     * Stop drawing the trail of a friend
+     */
+    public void hideTrail(){
+        trailFriend = null;
+        if(trailLine != null){
+            trailLine.remove();
+            trailLine = null;
         }
+    }
 
-        String raw = httpHandler.getRawContentsAsString();
+    /**
+     * How fast a friend has been moving lately
+     * @param name The friend
+     * @return speed in km/h, NaN if not seen moving
+     */
+    public double getFriendSpeed(final String name){
+        return trajectories.getSpeed(name, System.currentTimeMillis(), SPEED_WINDOW);
+    }
 
-        try {
+    /**
+     * Which way a friend is heading
+     * @param name The friend
+     * @return bearing in degrees clockwise from north, NaN if not known
+     */
+    public double getFriendHeading(final String name){
+        return trajectories.getHeading(name);
+    }
 
-            // Parse JSON into an Array
-            JSONArray array = new JSONObject(raw).getJSONArray("Users");
+    /**
+     * Watch friends coming within a distance of the user, the zone follows
+     * the user as they move. Its events carry the fence id "user".
+     * @param radius Radius of the zone in km, 0 to remove it
+     */
+    public void setUserZone(final double radius){
+        userZoneRadius = radius;
+        if(radius > 0){
+            addGeofence(Geofence.circle(USER_ZONE, DistanceCalculator.getReferenceLatitude(),
+                    DistanceCalculator.getReferenceLongitude(), radius));
+        }else{
+            removeGeofence(USER_ZONE);
+        }
+    }
+
+    /**
+     * Follow the users location from the given source, replacing any
+     * previous source. Fixes must arrive on the main thread.
+     * @param source Where the users location comes from, null to stay put
+     */
+    public void setLocationSource(final UserLocationSource source){
+        pauseLocationUpdates();
+        locationSource = source;
+        resumeLocationUpdates();
+    }
+
+    /**
+     * Stop following the users location, i.e while the application is not visible
+     */
+    public void pauseLocationUpdates(){
+        if(locationSource != null){
+            locationSource.stop();
+        }
+    }
+
+    /**
+     * Follow the users location again after pausing
+     */
+    public void resumeLocationUpdates(){
+        if(locationSource != null){
+            locationSource.start(new UserLocationSource.Listener() {
+                @Override
+                public void onLocationChanged(double latitude, double longitude) {
+                    moveUser(latitude, longitude);
+                }
+            });
+        }
+    }
+
+    /**
+     * Move the user, every friend's distance goes stale and is measured
+     * again when next needed. The closest friends are ranked again from
+     * the few candidates around the user unless the move was large.
+     * @param latitude The users latitude
+     * @param longitude The users longitude
+     */
+    private void moveUser(final double latitude, final double longitude){
+        DistanceCalculator.setReference(latitude, longitude);
+        userMarker.setPosition(new LatLng(latitude, longitude));
+        nearestTracker.nearest(latitude, longitude);
+        if(userZoneRadius > 0){
+            addGeofence(Geofence.circle(USER_ZONE, latitude, longitude, userZoneRadius));
+        }
+    }
+
+    /**
+     * Called when the camera stops moving, gives the algorithm the visible
+     * bounds and reclusters if the zoom changed or a pan left the area
+     * already clustered. Rapid pans are gathered by the ClusterScheduler.
+     */
+    private void onCameraMoved(){
+        final float zoom = gmap.getCameraPosition().zoom;
+        final boolean moved = clusterAlgorithm.setVisibleBounds(gmap.getProjection().getVisibleRegion().latLngBounds);
+        if(moved || zoom != lastZoom){
+            clusterScheduler.cluster();
+        }
+        if(zoom != lastZoom && trailFriend != null){
+            drawTrail();
+        }
+        lastZoom = zoom;
+        if(poller.getTileFeed() != null){
+            setTileViewport();
+        }
+    }
 
-            // For all elements add them to the friends collection
-            for(int i = 0; i < array.length(); i++){
-                JSONObject js = array.getJSONObject(i);
-                friends.add(new Person(js.getDouble("lat"), js.getDouble("lon"), js.getString("name"), null));
+    /**
+     * Draw the trail of the friend it is shown for at the current zoom,
+     * reusing the line if there is one
+     * @return true if there was a trail to draw
+     */
+    private boolean drawTrail(){
+        final TrajectoryStore.Trail trail = trajectories.getTrail(trailFriend, 0)
+                .simplify(gmap.getCameraPosition().zoom);
+        if(trail.size() < 2){
+            if(trailLine != null){
+                trailLine.remove();
+                trailLine = null;
             }
+            return false;
+        }
+        final List<LatLng> points = new ArrayList<>(trail.size());
+        for(int i = 0; i < trail.size(); i++){
+            points.add(new LatLng(trail.getLatitude(i), trail.getLongitude(i)));
+        }
+        if(trailLine == null){
+            trailLine = gmap.addPolyline(new PolylineOptions().addAll(points).color(TRAIL_COLOUR).width(TRAIL_WIDTH));
+        }else{
+            trailLine.setPoints(points);
+        }
+        return true;
+    }
 
-            return true;
+    /**
+     * Give the tiled feed the visible region, polling straight
+     * away if different tiles came into view
+     */
+    private void setTileViewport(){
+        final LatLngBounds bounds = gmap.getProjection().getVisibleRegion().latLngBounds;
+        if(poller.getTileFeed().setViewport(bounds.southwest.latitude, bounds.southwest.longitude,
+                bounds.northeast.latitude, bounds.northeast.longitude, gmap.getCameraPosition().zoom)){
+            poller.pollNow();
+        }
+    }
 
-        }catch(JSONException jsonExc){
-            // Malformed JSON
-            jsonExc.printStackTrace();
+    /**
+     * Create the poller which fetches from the endpoints using a fresh
+     * request each time and hands results back on the main thread
+     * @param endpoints URLs of the feed, fetched at once if there is more than one
+     * @return the poller, not yet started
+     */
+    private FeedPoller<Person> createPoller(final List<String> endpoints){
+        final FeedPoller.Listener<Person> listener = createPollListener();
+        final PollInterval interval = new PollInterval(MIN_DELAY_BETWEEN_POLLING, MAX_DELAY_BETWEEN_POLLING);
+
+        if(endpoints.size() == 1){
+            return new FeedPoller<>(new HTTPHandler(endpoints.get(0)), personFactory, listener, mainThread,
+                    interval, metrics);
         }
+        return new FeedPoller<>(new FeedFanOut(endpoints, ENDPOINT_TIMEOUT), personFactory, listener, mainThread,
+                interval, metrics);
+    }
 
-        return false;
+    /**
+     * Listener for the poller, replaces the friends with each poll
+     * @return the listener
+     */
+    private FeedPoller.Listener<Person> createPollListener(){
+        return new FeedPoller.Listener<Person>() {
+            @Override
+            public void onPollResult(List<Person> users) {
+                final long start = metrics.start();
+                pollData(users);
+                metrics.stop(PollMetrics.Stage.DIFF, start);
+
+                addCluster();
+            }
+
+            @Override
+            public void onPollFailed(HTTPNoResponseException e) {
+                // The poller already counts the failure and backs off, the map keeps the last friends
+                Log.w(TAG, "No response from '" + e.getURL() + "', response = " + e.getResponseCode());
+            }
+        };
+    }
+
+    /**
+     * Create the stream which pushes changes as they happen, falling
+     * back to the poller whenever it is down
+     * @param url The event stream
+     * @return the stream, not yet started
+     */
+    private FeedStream<Person> createStream(final String url){
+        return new FeedStream<>(url, personFactory, new FeedStream.Listener<Person>() {
+            @Override
+            public void onSnapshot(List<Person> users) {
+                final long start = metrics.start();
+                pollData(users);
+                metrics.stop(PollMetrics.Stage.DIFF, start);
+
+                addCluster();
+            }
+
+            @Override
+            public void onEvents(List<Person> upserts, Set<String> deletes) {
+                final long start = metrics.start();
+                final FriendDiff<Person> diff = FriendDiff.apply(friends, upserts, deletes, PERSON_IDENTITY);
+                metrics.recordChanges(diff.getAdded().size() + diff.getRemoved().size() + diff.getMovedTo().size());
+                applyDiff(diff);
+                metrics.stop(PollMetrics.Stage.DIFF, start);
+
+                addCluster();
+            }
+
+            @Override
+            public void onStreamStateChanged(boolean streaming) {
+                streamUp = streaming;
+                if(streaming){
+                    poller.pause();
+                }else{
+                    // Whichever it needs, the first fall back starts it
+                    poller.start();
+                    poller.resume();
+                }
+            }
+        }, mainThread);
+    }
+
+    /**
+     * Check for dwells again when the next one falls due
+     */
+    private void scheduleDwellCheck(){
+        mainHandler.removeCallbacks(dwellCheck);
+        final long delay = geofences.getNextDwellDelay();
+        if(delay >= 0){
+            mainHandler.postDelayed(dwellCheck, delay);
+        }
+    }
+
+    /**
+     * Takes the users polled from the website, assumes JSON
+     * format of the URL using GET. Will replace the friends collection with
+     * the polled data, keeping track of what changed for {@link #addCluster()}.
+     *
+     * Friends that moved keep their instance and are moved in place, only
+     * new and moved friends need their distance measuring and the index is
+     * updated with just the changes.
+     * @param polled Every user from the latest poll
+     */
+    private void pollData(final List<Person> polled){
+
+        // Compare everything polled against what we had
+        final FriendDiff<Person> diff = FriendDiff.compute(friends, polled, PERSON_IDENTITY);
+        metrics.recordChanges(diff.getAdded().size() + diff.getRemoved().size() + diff.getMovedTo().size());
+        applyDiff(diff);
+    }
+
+    /**
+     * Take the changes from a poll or from the stream, the friends
+     * are replaced with the diff's snapshot and the index is updated
+     * @param diff The changes
+     */
+    private void applyDiff(final FriendDiff<Person> diff){
+        friends = diff.getSnapshot();
+        if(diff.isEmpty()){
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        for(Person p : diff.getRemoved()){
+            friendIndex.remove(p);
+            geofences.remove(p.name);
+            trajectories.remove(p.name);
+        }
+        final List<Person> movedFrom = diff.getMovedFrom();
+        final List<Person> movedTo = diff.getMovedTo();
+        for(int i = 0; i < movedFrom.size(); i++){
+            final Person p = movedFrom.get(i);
+            p.moveTo(movedTo.get(i).position);
+            friendIndex.update(p);
+            geofences.update(p.name, p.position.latitude, p.position.longitude);
+            trajectories.record(p.name, now, p.position.latitude, p.position.longitude);
+        }
+        for(Person p : diff.getAdded()){
+            friendIndex.add(p);
+            geofences.update(p.name, p.position.latitude, p.position.longitude);
+            trajectories.record(p.name, now, p.position.latitude, p.position.longitude);
+        }
+        nearestTracker.invalidate();
+        scheduleDwellCheck();
+        if(trailFriend != null){
+            drawTrail();
+        }
+
+        pendingDiff = diff;
+        snapshotDirty = true;
+        if(lastSnapshotSave == 0 || System.nanoTime() - lastSnapshotSave >= SNAPSHOT_INTERVAL * 1000000L){
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Fill the friends and ClusterManager from the snapshot saved
+     * by a previous run, if there is a valid one
+     */
+    private void restoreSnapshot(){
+        final SnapshotCache.Snapshot snapshot = snapshotCache.load();
+        if(snapshot == null || snapshot.size() == 0){
+            return;
+        }
+
+        for(int i = 0; i < snapshot.size(); i++){
+            final String name = snapshot.name(i);
+            if(!friends.containsKey(name)){
+                // The saved distance was measured from where the user was last time, measure again when needed
+                friends.put(name, new Person(snapshot.latitude(i), snapshot.longitude(i), name));
+            }
+        }
+
+        clusterScheduler.setItems(friends.values());
+        friendsVisible = true;
+        clustered = true;
+    }
+
+    /**
+     * Save the current friends in the background for the next run
+     */
+    private void saveSnapshot(){
+        final int count = friends.size();
+        final double[] lats = new double[count];
+        final double[] lons = new double[count];
+        final double[] distances = new double[count];
+        final String[] names = new String[count];
+
+        int i = 0;
+        for(Person p : friends.values()){
+            lats[i] = p.position.latitude;
+            lons[i] = p.position.longitude;
+            distances[i] = p.getDistance();
+            names[i] = p.name;
+            i++;
+        }
+        snapshotCache.saveAsync(lats, lons, distances, names, count);
+        lastSnapshotSave = System.nanoTime();
+        snapshotDirty = false;
     }
 
     /**
@@ -274,35 +952,62 @@ public class MapHandler implements Runnable{
      * ClusterManager, stores generic data including the
      * distance from the User location to the friends.
      *
-     * This class assumes that the Person never changes location
-     * and is a shortcoming of the given implementation, however
-     * this is ASSUMED of the assessment - if given the knowledge
-     * that the friends may move around this implementation would
-     * either of allowed for an update functionality or rather
-     * used listener events to update the distance.
+     * Friends move around, their location is updated in place with
+     * {@link #moveTo(LatLng)}. Anything holding a Person must be told
+     * when it moves, i.e the index and the ClusterManager. Only changed
+     * on the main thread, the location is volatile as the ClusterManager
+     * reads it from the background.
+     *
+     * The user moves too, so the distance is measured when asked for and
+     * kept until either the friend or the user moves. The snippet is only
+     * needed when the marker is tapped so it is formatted then and kept
+     * for as long as the distance it describes.
      */
     private class Person implements ClusterItem {
 
-        private final LatLng position;
+        private volatile LatLng position;
         private final String name;
-        private final String mSnippet;
-        private final double distance;
+        private volatile String mSnippet;
+        private double distance;
+        // Epoch of the users location the distance was measured from, -1 if not measured
+        private long distanceEpoch = -1;
+        // Epoch of the distance the snippet describes, -1 if not formatted
+        private long snippetEpoch = -1;
 
         /**
-         * Create person or 'friend' with provided parameters to be
-         * used in the ClusterManager
+         * Create person or 'friend' from a poll, their distance
+         * is not measured until it is needed
          * @param lat Their latitude
          * @param lng Their longitude
          * @param title Their name or 'title'
-         * @param snippet Their subtitle
          */
-        public Person(final double lat, final double lng, final String title, final String snippet) {
+        public Person(final double lat, final double lng, final String title) {
             position = new LatLng(lat, lng);
             name = title;
-            /* Set the subtitle snippet to a description of the distance
-            * from the users location */
-            mSnippet = DistanceCalculator.getDistance(position);
-            distance = DistanceCalculator.calculateDistance(position);
+        }
+
+        /**
+         * Distance from the users location, measured again
+         * if either has moved since it was last measured
+         * @return distance in km
+         */
+        public double getDistance() {
+            final long epoch = DistanceCalculator.getReferenceEpoch();
+            if(distanceEpoch != epoch){
+                distance = DistanceCalculator.calculateDistance(position.latitude, position.longitude);
+                distanceEpoch = epoch;
+            }
+            return distance;
+        }
+
+        /**
+         * Move to a new location, the distance is measured again when next needed
+         * @param to Their new location
+         */
+        public void moveTo(final LatLng to) {
+            position = to;
+            distanceEpoch = -1;
+            snippetEpoch = -1;
         }
 
         @Override
@@ -315,8 +1020,18 @@ public class MapHandler implements Runnable{
             return name;
         }
 
+        /**
+         * The subtitle snippet, a description of the distance
+         * from the users location, formatted on first use
+         * @return the snippet
+         */
         @Override
         public String getSnippet() {
+            final double km = getDistance();
+            if(snippetEpoch != distanceEpoch){
+                mSnippet = DistanceCalculator.formatDistance(km);
+                snippetEpoch = distanceEpoch;
+            }
             return mSnippet;
         }
     }
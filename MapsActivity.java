@@ -1,8 +1,12 @@
 package dja33.msc.ukc.myapplication;
 
+import android.Manifest;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
+import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentActivity;
+import android.support.v4.content.ContextCompat;
 import android.view.View;
 import android.widget.Button;
 
@@ -16,6 +20,9 @@ import com.google.android.gms.maps.SupportMapFragment;
  */
 public class MapsActivity extends FragmentActivity implements OnMapReadyCallback {
 
+    /* Request code for asking the user for their location */
+    private static final int LOCATION_REQUEST = 1;
+
     private Snackbar notification;
 
     /**
@@ -121,8 +128,67 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
         // the app as well as the GoogleMap reference
         map = new MapHandler(this, googleMap);
 
-        // Start retrieving JSON data using HTTPHandler
+        // Follow the users location from the device, once they allow it
+        if(ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED){
+            map.setLocationSource(new AndroidLocationSource(this));
+        }else{
+            ActivityCompat.requestPermissions(this, new String[]{ Manifest.permission.ACCESS_FINE_LOCATION },
+                    LOCATION_REQUEST);
+        }
+
+        // Start retrieving JSON data using HTTPHandler, returns immediately
         map.run();
     }
 
+    /**
+     * Start following the user if they allowed their location to be read,
+     * otherwise they stay at the default location
+     */
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if(requestCode == LOCATION_REQUEST && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED && map != null){
+            map.setLocationSource(new AndroidLocationSource(this));
+        }
+    }
+
+    /**
+     * Resume polling and following the user once the application is visible again
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if(map != null){
+            map.resumePolling();
+            map.resumeLocationUpdates();
+        }
+    }
+
+    /**
+     * Pause polling and following the user while the application is not visible
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if(map != null){
+            map.pausePolling();
+            map.pauseLocationUpdates();
+        }
+    }
+
+    /**
+     * Stop polling and any background work entirely,
+     * the MapHandler is recreated along with the map
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(map != null){
+            map.close();
+            map = null;
+        }
+    }
+
 }
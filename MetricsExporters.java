@@ -0,0 +1,83 @@
+package dja33.msc.ukc.myapplication;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ *
+ * Metrics Exporters
+ *
+ * The places a PollMetrics report can be sent: logcat, a TextView
+ * drawn over the map for debugging, or appended to a dump file.
+ */
+public final class MetricsExporters {
+
+    private MetricsExporters(){
+    }
+
+    /**
+     * Log each report to logcat at debug level
+     * @param tag The log tag
+     * @return the exporter
+     */
+    public static PollMetrics.Exporter logcat(final String tag){
+        return new PollMetrics.Exporter() {
+            @Override
+            public void export(String report) {
+                Log.d(tag, report);
+            }
+        };
+    }
+
+    /**
+     * Show the latest report in a TextView, i.e a debug overlay on the
+     * map, always updated on the main thread
+     * @param overlay The view to show it in
+     * @return the exporter
+     */
+    public static PollMetrics.Exporter overlay(final TextView overlay){
+        final Handler main = new Handler(Looper.getMainLooper());
+        return new PollMetrics.Exporter() {
+            @Override
+            public void export(final String report) {
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        overlay.setText(report);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Append each report to a file with a timestamp, the file is
+     * only opened while writing
+     * @param file The file to append to
+     * @return the exporter
+     */
+    public static PollMetrics.Exporter file(final File file){
+        return new PollMetrics.Exporter() {
+            @Override
+            public void export(String report) {
+                try (Writer out = new FileWriter(file, true)) {
+                    out.write(DateFormat.getDateTimeInstance().format(new Date()));
+                    out.write('\n');
+                    out.write(report);
+                    out.write("\n\n");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+}
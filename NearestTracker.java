@@ -0,0 +1,180 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Nearest Tracker
+ *
+ * Keeps the k nearest items to a moving location up to date without
+ * querying the index on every fix. A query takes a pool of candidates,
+ * more than k, and remembers how far the furthest of them was. When the
+ * location moves by some distance, nothing outside the pool can have got
+ * closer than that boundary less the distance moved (triangle inequality),
+ * so while the k-th best candidate is still within it only the pool needs
+ * ranking again. Larger moves fall back to a fresh query.
+ *
+ * The items themselves must not change between fixes, call
+ * {@link #invalidate()} whenever the index is changed.
+ *
+ * Not thread safe, only use from one thread.
+ *
+ * @param <T> The item type
+ */
+public class NearestTracker<T> {
+
+    private final DynamicSpatialIndex<T> index;
+    private final SpatialIndex.Locator<T> locator;
+    private final int k;
+    private final int poolSize;
+
+    // Candidates from the last query and where it was made
+    private List<T> pool;
+    private double anchorLat;
+    private double anchorLon;
+    // Distance from the anchor to the furthest candidate, infinite if the pool holds every item
+    private double boundary;
+
+    // Last answer and where it was asked for
+    private List<T> result;
+    private double lastLat;
+    private double lastLon;
+
+    // Scratch space for ranking the pool
+    private double[] distances = new double[0];
+    private int[] order = new int[0];
+
+    private long queries;
+    private long reranks;
+
+    /**
+     * Create the tracker, nothing is queried until the first fix
+     * @param index The items
+     * @param locator Reads the location of each item
+     * @param k How many nearest items to track
+     * @param poolSize How many candidates to take from the index, the
+     *                 larger the further the location can move before a query
+     */
+    public NearestTracker(final DynamicSpatialIndex<T> index, final SpatialIndex.Locator<T> locator,
+                          final int k, final int poolSize){
+        if(k <= 0 || poolSize < k){
+            throw new IllegalArgumentException("Pool size must be at least k, which must be positive.");
+        }
+        this.index = index;
+        this.locator = locator;
+        this.k = k;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * The k nearest items to a location, closest first
+     * @param latitude Latitude of the location
+     * @param longitude Longitude of the location
+     * @return nearest items, fewer than k if the index is smaller
+     */
+    public List<T> nearest(final double latitude, final double longitude){
+        if(result != null && latitude == lastLat && longitude == lastLon){
+            return result;
+        }
+
+        if(pool != null){
+            final double moved = DistanceMetric.HAVERSINE.distance(anchorLat, anchorLon, latitude, longitude);
+            final int found = rank(latitude, longitude);
+            // Everything outside the pool is at least this far from the new location
+            if(found < k || distances[order[k - 1]] <= boundary - moved){
+                reranks++;
+                return answer(latitude, longitude, found);
+            }
+        }
+
+        query(latitude, longitude);
+        return answer(latitude, longitude, rank(latitude, longitude));
+    }
+
+    /**
+     * Forget the candidates, the next fix queries the index
+     */
+    public void invalidate(){
+        pool = null;
+        result = null;
+    }
+
+    /**
+     * Number of fixes answered by querying the index
+     * @return query count
+     */
+    public long getQueryCount(){
+        return queries;
+    }
+
+    /**
+     * Number of fixes answered by ranking the candidates again
+     * @return rerank count
+     */
+    public long getRerankCount(){
+        return reranks;
+    }
+
+    private void query(final double latitude, final double longitude){
+        queries++;
+        pool = index.nearest(latitude, longitude, poolSize);
+        anchorLat = latitude;
+        anchorLon = longitude;
+        if(pool.size() < poolSize){
+            // The pool is everything, nothing can come from outside it
+            boundary = Double.POSITIVE_INFINITY;
+        }else{
+            final T furthest = pool.get(pool.size() - 1);
+            boundary = DistanceMetric.HAVERSINE.distance(latitude, longitude,
+                    locator.latitude(furthest), locator.longitude(furthest));
+        }
+        if(distances.length < pool.size()){
+            distances = new double[pool.size()];
+            order = new int[pool.size()];
+        }
+    }
+
+    /**
+     * Partially sort the pool by distance from a location,
+     * the k best end up at the front of order
+     * @return how many of the pool were ranked, at most k
+     */
+    private int rank(final double latitude, final double longitude){
+        final int size = pool.size();
+        for(int i = 0; i < size; i++){
+            final T item = pool.get(i);
+            distances[i] = DistanceMetric.HAVERSINE.distance(latitude, longitude,
+                    locator.latitude(item), locator.longitude(item));
+        }
+
+        // Insertion into the sorted front, the pool is small
+        int found = 0;
+        final int keep = Math.min(k, size);
+        for(int i = 0; i < size; i++){
+            final double d = distances[i];
+            if(found == keep && d >= distances[order[keep - 1]]){
+                continue;
+            }
+            int j = found < keep ? found++ : keep - 1;
+            while(j > 0 && distances[order[j - 1]] > d){
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return found;
+    }
+
+    private List<T> answer(final double latitude, final double longitude, final int found){
+        final List<T> nearest = new ArrayList<>(found);
+        for(int i = 0; i < found; i++){
+            nearest.add(pool.get(order[i]));
+        }
+        result = Collections.unmodifiableList(nearest);
+        lastLat = latitude;
+        lastLon = longitude;
+        return result;
+    }
+}
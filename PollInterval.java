@@ -0,0 +1,160 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.Random;
+
+/**
+ *
+ * Poll Interval
+ *
+ * Adaptive delay between polls. Drops straight back to the minimum
+ * whenever a poll returns changes so active data is never stale, grows
+ * gradually while nothing changes and backs off exponentially while the
+ * website is failing. The delay never leaves the configured bounds.
+ *
+ * Every delay handed out has random jitter applied so that many clients
+ * backing off at once don't all retry at the same moment.
+ *
+ * Safe to read the stats from any thread.
+ */
+public class PollInterval {
+
+    /* Growth while nothing changes, and while failing */
+    private static final double UNCHANGED_MULTIPLIER = 1.5;
+    private static final double FAILURE_MULTIPLIER = 2.0;
+
+    /* Fraction of the delay the jitter may add or remove */
+    private static final double JITTER = 0.2;
+
+    private final long min;
+    private final long max;
+    private final Random random;
+
+    private long current;
+    private long lastDelay;
+    private int consecutiveUnchanged;
+    private int consecutiveFailures;
+    private long changedPolls;
+    private long unchangedPolls;
+    private long failedPolls;
+
+    /**
+     * Create the interval, starts at the minimum
+     * @param min Smallest delay in ms
+     * @param max Largest delay in ms
+     */
+    public PollInterval(final long min, final long max){
+        this(min, max, new Random());
+    }
+
+    /**
+     * Create the interval with a given source of jitter
+     * @param min Smallest delay in ms
+     * @param max Largest delay in ms
+     * @param random Source of the jitter
+     */
+    public PollInterval(final long min, final long max, final Random random){
+        if(min <= 0 || max < min){
+            throw new IllegalArgumentException("Poll interval bounds must satisfy 0 < min <= max.");
+        }
+        this.min = min;
+        this.max = max;
+        this.random = random;
+        this.current = min;
+        this.lastDelay = min;
+    }
+
+    /**
+     * The last poll returned changes, go back to polling as fast as allowed
+     * @return the delay until the next poll in ms
+     */
+    public synchronized long onChanged(){
+        changedPolls++;
+        consecutiveUnchanged = 0;
+        consecutiveFailures = 0;
+        current = min;
+        return nextDelay();
+    }
+
+    /**
+     * The last poll returned the same data, slow down a little
+     * @return the delay until the next poll in ms
+     */
+    public synchronized long onUnchanged(){
+        unchangedPolls++;
+        consecutiveUnchanged++;
+        consecutiveFailures = 0;
+        current = grow(UNCHANGED_MULTIPLIER);
+        return nextDelay();
+    }
+
+    /**
+     * The last poll failed, back off
+     * @return the delay until the next poll in ms
+     */
+    public synchronized long onFailure(){
+        failedPolls++;
+        consecutiveFailures++;
+        current = grow(FAILURE_MULTIPLIER);
+        return nextDelay();
+    }
+
+    /**
+     * Current delay before jitter in ms
+     * @return current interval
+     */
+    public synchronized long getCurrentInterval(){
+        return current;
+    }
+
+    /**
+     * The last delay handed out, including jitter, in ms
+     * @return last delay
+     */
+    public synchronized long getLastDelay(){
+        return lastDelay;
+    }
+
+    public long getMinInterval(){
+        return min;
+    }
+
+    public long getMaxInterval(){
+        return max;
+    }
+
+    public synchronized int getConsecutiveUnchanged(){
+        return consecutiveUnchanged;
+    }
+
+    public synchronized int getConsecutiveFailures(){
+        return consecutiveFailures;
+    }
+
+    public synchronized long getChangedPolls(){
+        return changedPolls;
+    }
+
+    public synchronized long getUnchangedPolls(){
+        return unchangedPolls;
+    }
+
+    public synchronized long getFailedPolls(){
+        return failedPolls;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "PollInterval{current=" + current + "ms, last=" + lastDelay + "ms, bounds=[" + min + ", " + max
+                + "], changed=" + changedPolls + ", unchanged=" + unchangedPolls + ", failed=" + failedPolls + "}";
+    }
+
+    private long grow(final double multiplier){
+        return Math.min(max, Math.max(min, (long) (current * multiplier)));
+    }
+
+    private long nextDelay(){
+        final double jitter = (random.nextDouble() * 2 - 1) * JITTER;
+        lastDelay = Math.min(max, Math.max(min, (long) (current * (1 + jitter))));
+        return lastDelay;
+    }
+}
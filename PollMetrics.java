@@ -0,0 +1,265 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * Poll Metrics
+ *
+ * Records where the time goes in the poll pipeline, with a latency
+ * histogram per stage, the size of each payload, how many items each
+ * poll brought and changed, errors by response code and the delay
+ * between polls. A report can be pushed to a pluggable Exporter, see
+ * MetricsExporters for logcat, an on screen overlay or a dump file.
+ *
+ * Disabled by default, while disabled every record call returns after
+ * reading a single volatile flag, no clocks are read and nothing is locked.
+ *
+ * Safe to record from the polling thread and the main thread at once.
+ */
+public class PollMetrics {
+
+    /**
+     * Stages of the pipeline that are timed
+     */
+    public enum Stage {
+        /** Connecting and waiting for the response headers */
+        FETCH,
+        /** Reading and parsing the body, including creating each item */
+        PARSE,
+        /** Comparing the poll against the previous snapshot and rebuilding the index */
+        DIFF,
+        /** Clustering the friends at the camera zoom, on the cluster worker */
+        CLUSTER
+    }
+
+    /**
+     * Receives a report of the metrics
+     */
+    public interface Exporter {
+        void export(String report);
+    }
+
+    private volatile boolean enabled;
+
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final Map<Integer, Long> errors = new TreeMap<>();
+
+    private long polls;
+    private long lastBytes;
+    private long totalBytes;
+    private int lastItems;
+    private int lastChanges;
+    private long lastInterval;
+
+    private Exporter exporter;
+    private int exportEvery;
+
+    public PollMetrics(){
+        for(int i = 0; i < stages.length; i++){
+            stages[i] = new Histogram();
+        }
+    }
+
+    public void setEnabled(final boolean enabled){
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Set where reports go, a report is exported after every given
+     * number of polls
+     * @param exporter The exporter, or null for none
+     * @param everyPolls How many polls between reports
+     */
+    public synchronized void setExporter(final Exporter exporter, final int everyPolls){
+        this.exporter = exporter;
+        this.exportEvery = Math.max(1, everyPolls);
+    }
+
+    /**
+     * Start timing a stage
+     * @return a start time to pass to {@link #stop(Stage, long)}, 0 if disabled
+     */
+    public long start(){
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Finish timing a stage started with {@link #start()}
+     * @param stage The stage
+     * @param start What start returned
+     */
+    public void stop(final Stage stage, final long start){
+        if(!enabled || start == 0){
+            return;
+        }
+        record(stage, System.nanoTime() - start);
+    }
+
+    /**
+     * Record a stage that was timed elsewhere
+     * @param stage The stage
+     * @param nanos How long it took
+     */
+    public void record(final Stage stage, final long nanos){
+        if(!enabled){
+            return;
+        }
+        synchronized (this){
+            stages[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Record the outcome of a fetch
+     * @param response The response code
+     * @param bytes Body bytes received
+     * @param items Items parsed, 0 unless the feed was parsed
+     * @param interval The delay until the next poll in ms
+     */
+    public void recordPoll(final int response, final long bytes, final int items, final long interval){
+        if(!enabled){
+            return;
+        }
+        synchronized (this){
+            polls++;
+            lastBytes = bytes;
+            totalBytes += bytes;
+            lastItems = items;
+            lastInterval = interval;
+            if(response != 200 && response != 304){
+                final Long count = errors.get(response);
+                errors.put(response, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /**
+     * Record how many items the last poll changed
+     * @param changes Items added, removed or moved
+     */
+    public void recordChanges(final int changes){
+        if(!enabled){
+            return;
+        }
+        synchronized (this){
+            lastChanges = changes;
+        }
+    }
+
+    /**
+     * Export a report if one is due, called once per poll
+     */
+    public void maybeExport(){
+        if(!enabled){
+            return;
+        }
+        final Exporter target;
+        final String report;
+        synchronized (this){
+            if(exporter == null || polls == 0 || polls % exportEvery != 0){
+                return;
+            }
+            target = exporter;
+            report = report();
+        }
+        target.export(report);
+    }
+
+    /**
+     * Clear everything recorded so far
+     */
+    public synchronized void reset(){
+        for(Histogram h : stages){
+            h.reset();
+        }
+        errors.clear();
+        polls = lastBytes = totalBytes = lastInterval = 0;
+        lastItems = lastChanges = 0;
+    }
+
+    /**
+     * The metrics as human readable text
+     * @return the report
+     */
+    public synchronized String report(){
+        final StringBuilder out = new StringBuilder();
+        out.append("polls=").append(polls)
+                .append(" interval=").append(lastInterval).append("ms")
+                .append(" bytes=").append(lastBytes).append(" (total ").append(totalBytes).append(')')
+                .append(" items=").append(lastItems)
+                .append(" changed=").append(lastChanges).append('\n');
+        for(Stage stage : Stage.values()){
+            out.append(stage).append(' ');
+            stages[stage.ordinal()].appendTo(out);
+            out.append('\n');
+        }
+        out.append("errors=").append(errors);
+        return out.toString();
+    }
+
+    /**
+     * Latency histogram with power of two buckets in microseconds,
+     * bucket i holds latencies below 2^i us
+     */
+    private static class Histogram {
+
+        private final long[] buckets = new long[32];
+        private long count;
+        private long sum;
+        private long max;
+
+        void record(final long nanos){
+            final long micros = Math.max(0, nanos / 1000);
+            final int bucket = Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        void reset(){
+            for(int i = 0; i < buckets.length; i++){
+                buckets[i] = 0;
+            }
+            count = sum = max = 0;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile
+         * @return latency in ms
+         */
+        double percentile(final double p){
+            final long target = (long) Math.ceil(count * p);
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++){
+                seen += buckets[i];
+                if(seen >= target){
+                    return Math.min((1L << i) / 1000.0, max / 1e6);
+                }
+            }
+            return max / 1e6;
+        }
+
+        void appendTo(final StringBuilder out){
+            if(count == 0){
+                out.append("n=0");
+                return;
+            }
+            out.append("n=").append(count)
+                    .append(" mean=").append(round(sum / 1e6 / count)).append("ms")
+                    .append(" p50=").append(round(percentile(0.5))).append("ms")
+                    .append(" p95=").append(round(percentile(0.95))).append("ms")
+                    .append(" max=").append(round(max / 1e6)).append("ms");
+        }
+
+        private static double round(final double ms){
+            return Math.round(ms * 100) / 100.0;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package dja33.msc.ukc.myapplication;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Quadtree Algorithm
+ *
+ * Clustering algorithm for the ClusterManager holding the ClusterItems
+ * themselves in the quadtree, see ViewportClusterAlgorithm for how the
+ * clusters are found.
+ *
+ * Where each item was placed is remembered, so an item that has moved in
+ * place can still be removed, or moved in the tree with {@link #updateItem(ClusterItem)}.
+ *
+ * @param <T> The type of ClusterItem
+ */
+public class QuadtreeAlgorithm<T extends ClusterItem> extends ViewportClusterAlgorithm<T, T> {
+
+    // Where each item was placed in the tree, as x and y
+    private final Map<T, double[]> placed = new IdentityHashMap<>();
+
+    /**
+     * Add an item, does nothing if it has already been added
+     * @param item The item
+     */
+    @Override
+    public synchronized void addItem(final T item) {
+        if(placed.containsKey(item)){
+            return;
+        }
+        final LatLng p = item.getPosition();
+        final double[] at = {WebMercator.toX(p.longitude), WebMercator.toY(p.latitude)};
+        placed.put(item, at);
+        tree.insert(item, at[0], at[1]);
+        changed();
+    }
+
+    @Override
+    public synchronized void addItems(final Collection<T> items) {
+        for(T item : items){
+            addItem(item);
+        }
+    }
+
+    @Override
+    public synchronized void clearItems() {
+        tree.clear();
+        placed.clear();
+        changed();
+    }
+
+    /**
+     * Remove an item, it may have moved since it was added
+     * @param item The item
+     */
+    @Override
+    public synchronized void removeItem(final T item) {
+        final double[] at = placed.remove(item);
+        if(at != null && tree.remove(item, at[0], at[1])){
+            changed();
+        }
+    }
+
+    /**
+     * Move an item whose position has changed in place, only the
+     * cells along its old and new paths are touched
+     * @param item The item, added if it wasn't already
+     */
+    public synchronized void updateItem(final T item) {
+        removeItem(item);
+        addItem(item);
+    }
+
+    @Override
+    public synchronized Collection<T> getItems() {
+        return new ArrayList<>(placed.keySet());
+    }
+
+    @Override
+    protected T view(final T element) {
+        return element;
+    }
+}
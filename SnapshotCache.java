@@ -0,0 +1,276 @@
+package dja33.msc.ukc.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Snapshot Cache
+ *
+ * Persists the last good set of friends to a compact binary file so the
+ * map can be populated as soon as the application starts, rather than
+ * waiting on the first poll. The file is read back through a memory
+ * mapped buffer so loading costs no more than touching the records.
+ *
+ * Layout, big endian:
+ *   header  magic (int), version (short), flags (short), count (int),
+ *           string table size in bytes (int), CRC32 of the body (int)
+ *   body    lat (double) * count, lon (double) * count,
+ *           distance in km (double) * count, name offset (int) * count,
+ *           string table of (length (int), UTF-8 bytes) with names deduplicated
+ *
+ * Any file with the wrong magic, an unknown version, a length that does not
+ * match its header or a bad checksum is treated as corrupt and ignored.
+ * Writes go to a temporary file which replaces the old one once complete,
+ * so a crash mid write leaves the previous snapshot intact.
+ */
+public class SnapshotCache {
+
+    private static final String TAG = "SnapshotCache";
+
+    public static final int MAGIC = 0x46534E50; // "FSNP"
+    public static final short VERSION = 1;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final ExecutorService writer;
+
+    // Only the latest snapshot waiting to be written is kept
+    private final AtomicReference<Runnable> pending = new AtomicReference<>();
+
+    /**
+     * Create the cache for the given file, nothing is read or written yet
+     * @param file Where the snapshot lives
+     */
+    public SnapshotCache(final File file){
+        this.file = file;
+        this.writer = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Load the snapshot if there is a valid one
+     * @return the snapshot, or null if there is none or it is corrupt
+     */
+    public Snapshot load(){
+        if(!file.isFile()){
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Snapshot.read(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding snapshot '" + file + "'.", e);
+            if(!file.delete()){
+                Log.w(TAG, "Could not delete snapshot '" + file + "'.");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write a snapshot on the calling thread, replacing any existing one.
+     * All arrays are parallel and must hold at least count values.
+     * @param lats Latitudes
+     * @param lons Longitudes
+     * @param distances Distances from the user in km
+     * @param names Names
+     * @param count How many friends
+     * @throws IOException If the snapshot could not be written
+     */
+    public void save(final double[] lats, final double[] lons, final double[] distances,
+                     final String[] names, final int count) throws IOException {
+        // Deduplicate names into the string table
+        final Map<String, Integer> offsets = new HashMap<>();
+        final int[] nameOffsets = new int[count];
+        final byte[][] encoded = new byte[count][];
+        int tableSize = 0;
+        for(int i = 0; i < count; i++){
+            Integer offset = offsets.get(names[i]);
+            if(offset == null){
+                offset = tableSize;
+                offsets.put(names[i], offset);
+                encoded[i] = names[i].getBytes(UTF_8);
+                tableSize += 4 + encoded[i].length;
+            }
+            nameOffsets[i] = offset;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE + tableSize);
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(count).putInt(tableSize).putInt(0);
+        for(int i = 0; i < count; i++) buffer.putDouble(lats[i]);
+        for(int i = 0; i < count; i++) buffer.putDouble(lons[i]);
+        for(int i = 0; i < count; i++) buffer.putDouble(distances[i]);
+        for(int i = 0; i < count; i++) buffer.putInt(nameOffsets[i]);
+        for(int i = 0; i < count; i++){
+            if(encoded[i] != null){
+                buffer.putInt(encoded[i].length).put(encoded[i]);
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, buffer.capacity() - HEADER_SIZE);
+        buffer.putInt(HEADER_SIZE - 4, (int) crc.getValue());
+
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+        if(!temp.renameTo(file)){
+            throw new IOException("Could not replace snapshot '" + file + "'.");
+        }
+    }
+
+    /**
+     * Write a snapshot on the background thread, if several are saved
+     * before the thread gets to them only the latest is written. The
+     * arrays must not be modified afterwards.
+     * @see #save(double[], double[], double[], String[], int)
+     */
+    public void saveAsync(final double[] lats, final double[] lons, final double[] distances,
+                          final String[] names, final int count){
+        final Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    save(lats, lons, distances, names, count);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        if(pending.getAndSet(write) == null){
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Runnable latest = pending.getAndSet(null);
+                    if(latest != null){
+                        latest.run();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the background thread once any pending write is done
+     */
+    public void close(){
+        writer.shutdown();
+    }
+
+    /**
+     * A loaded snapshot, reads straight from the mapped file
+     */
+    public static final class Snapshot {
+
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int tableStart;
+
+        private Snapshot(final ByteBuffer buffer, final int count){
+            this.buffer = buffer;
+            this.count = count;
+            this.tableStart = HEADER_SIZE + count * RECORD_SIZE;
+        }
+
+        /**
+         * Validate the buffer and wrap it
+         * @throws IOException If the snapshot is corrupt or of an unknown version
+         */
+        static Snapshot read(final ByteBuffer buffer) throws IOException {
+            if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC){
+                throw new IOException("Not a snapshot.");
+            }
+            final short version = buffer.getShort(4);
+            if(version != VERSION){
+                throw new IOException("Unsupported snapshot version " + version + ".");
+            }
+            final int count = buffer.getInt(8);
+            final int tableSize = buffer.getInt(12);
+            if(count < 0 || tableSize < 0
+                    || (long) HEADER_SIZE + (long) count * RECORD_SIZE + tableSize != buffer.capacity()){
+                throw new IOException("Snapshot length does not match its header.");
+            }
+
+            final CRC32 crc = new CRC32();
+            final byte[] chunk = new byte[8192];
+            final ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_SIZE);
+            while(body.hasRemaining()){
+                final int n = Math.min(chunk.length, body.remaining());
+                body.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+            if((int) crc.getValue() != buffer.getInt(16)){
+                throw new IOException("Snapshot checksum mismatch.");
+            }
+
+            final Snapshot snapshot = new Snapshot(buffer, count);
+            for(int i = 0; i < count; i++){
+                final int offset = snapshot.nameOffset(i);
+                if(offset < 0 || offset + 4 > tableSize){
+                    throw new IOException("Snapshot name out of range.");
+                }
+                final int length = buffer.getInt(snapshot.tableStart + offset);
+                if(length < 0 || offset + 4 + length > tableSize){
+                    throw new IOException("Snapshot name out of range.");
+                }
+            }
+            return snapshot;
+        }
+
+        public int size(){
+            return count;
+        }
+
+        public double latitude(final int i){
+            return buffer.getDouble(HEADER_SIZE + i * 8);
+        }
+
+        public double longitude(final int i){
+            return buffer.getDouble(HEADER_SIZE + count * 8 + i * 8);
+        }
+
+        /**
+         * Distance from the user when the snapshot was saved
+         * @return distance in km
+         */
+        public double distance(final int i){
+            return buffer.getDouble(HEADER_SIZE + count * 16 + i * 8);
+        }
+
+        public String name(final int i){
+            final int at = tableStart + nameOffset(i);
+            final int length = buffer.getInt(at);
+            final byte[] bytes = new byte[length];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(at + 4);
+            view.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private int nameOffset(final int i){
+            return buffer.getInt(HEADER_SIZE + count * 24 + i * 4);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package dja33.msc.ukc.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static dja33.msc.ukc.myapplication.DistanceCalculator.EARTH_RADIUS;
+
+/**
+ *
+ * Spatial Index
+ *
+ * Static k-d tree over a snapshot of located items, used to answer
+ * nearest, radius and bounding box queries without scanning every
+ * item. Each item is projected onto the unit sphere so that the
+ * straight line (chord) distance between two points orders them
+ * exactly as the great-circle distance would, meaning the tree can
+ * prune using plain axis comparisons and still give haversine results.
+ *
+ * The tree is implicit, the median of every range is the node and the
+ * halves either side are its children, so no node objects are created.
+ * Every node also stores the lat/lon bounds of its subtree which are
+ * used for the bounding box queries.
+ *
+ * The index is immutable once built, rebuild it when the data changes
+ * or use a DynamicSpatialIndex which absorbs changes between rebuilds.
+ *
+ * @param <T> The item type being indexed
+ */
+public class SpatialIndex<T> {
+
+    /**
+     * Reads the location from an indexed item
+     * @param <T> The item type
+     */
+    public interface Locator<T> {
+        double latitude(T item);
+        double longitude(T item);
+    }
+
+    private final Object[] items;
+    private final double[][] coords;
+    private final double[] lat;
+    private final double[] lon;
+    private final byte[] axis;
+
+    /* Lat/lon bounds of the subtree rooted at each node */
+    private final double[] minLat;
+    private final double[] maxLat;
+    private final double[] minLon;
+    private final double[] maxLon;
+
+    private final int size;
+
+    /**
+     * Build the index over the given items
+     * @param source The items to index, not modified
+     * @param locator Used to read the lat/lon of each item
+     */
+    public SpatialIndex(final List<? extends T> source, final Locator<T> locator){
+        this.size = source.size();
+        this.items = new Object[size];
+        this.coords = new double[3][size];
+        this.lat = new double[size];
+        this.lon = new double[size];
+        this.axis = new byte[size];
+        this.minLat = new double[size];
+        this.maxLat = new double[size];
+        this.minLon = new double[size];
+        this.maxLon = new double[size];
+
+        // Project everything onto the unit sphere once
+        final double[][] raw = new double[3][size];
+        final double[] rawLat = new double[size];
+        final double[] rawLon = new double[size];
+        final int[] order = new int[size];
+        for(int i = 0; i < size; i++){
+            T item = source.get(i);
+            rawLat[i] = locator.latitude(item);
+            rawLon[i] = locator.longitude(item);
+            project(rawLat[i], rawLon[i], raw, i);
+            order[i] = i;
+        }
+
+        build(order, raw, 0, size);
+
+        // Lay the items out in tree order
+        for(int i = 0; i < size; i++){
+            int from = order[i];
+            items[i] = source.get(from);
+            coords[0][i] = raw[0][from];
+            coords[1][i] = raw[1][from];
+            coords[2][i] = raw[2][from];
+            lat[i] = rawLat[from];
+            lon[i] = rawLon[from];
+        }
+
+        computeBounds(0, size);
+    }
+
+    /**
+     * Number of items in the index
+     * @return size
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Find the k closest items to a location, closest first
+     * @param latitude Latitude of the reference location
+     * @param longitude Longitude of the reference location
+     * @param k The maximum amount of items to return
+     * @return closest items, may be fewer than k if the index is smaller
+     */
+    public List<T> nearest(final double latitude, final double longitude, final int k){
+        if(k <= 0 || size == 0){
+            return Collections.emptyList();
+        }
+
+        final double[] q = new double[3];
+        project(latitude, longitude, q);
+
+        final Heap heap = new Heap(Math.min(k, size));
+        nearest(q, 0, size, heap);
+
+        return heap.drainAscending();
+    }
+
+    /**
+     * Find all items within a radius of a location, in no particular order
+     * @param latitude Latitude of the reference location
+     * @param longitude Longitude of the reference location
+     * @param km The radius in kilometres
+     * @return items within the radius
+     */
+    public List<T> withinRadius(final double latitude, final double longitude, final double km){
+        final List<T> result = new ArrayList<>();
+        if(km < 0 || size == 0){
+            return result;
+        }
+
+        final double[] q = new double[3];
+        project(latitude, longitude, q);
+
+        // Convert the arc length to the equivalent chord on the unit sphere
+        final double angle = Math.min(km / EARTH_RADIUS, Math.PI);
+        final double chord = 2 * Math.sin(angle / 2);
+
+        withinRadius(q, chord * chord, 0, size, result);
+        return result;
+    }
+
+    /**
+     * Find all items within a lat/lon bounding box, in no particular order.
+     * If west is greater than east the box is taken to cross the antimeridian.
+     * @param south Southern latitude
+     * @param west Western longitude
+     * @param north Northern latitude
+     * @param east Eastern longitude
+     * @return items inside the box
+     */
+    public List<T> withinBounds(final double south, final double west, final double north, final double east){
+        final List<T> result = new ArrayList<>();
+        if(size == 0){
+            return result;
+        }
+
+        if(west <= east){
+            withinBounds(south, west, north, east, 0, size, result);
+        }else{
+            // Split into either side of the antimeridian
+            withinBounds(south, west, north, 180, 0, size, result);
+            withinBounds(south, -180, north, east, 0, size, result);
+        }
+        return result;
+    }
+
+    private void nearest(final double[] q, final int lo, final int hi, final Heap heap){
+        if(lo >= hi){
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+
+        heap.offer(mid, distance2(q, mid));
+
+        final int a = axis[mid];
+        final double diff = q[a] - coords[a][mid];
+
+        // Search the side the query falls on first, it is most likely to tighten the heap
+        if(diff < 0){
+            nearest(q, lo, mid, heap);
+            if(heap.accepts(diff * diff)){
+                nearest(q, mid + 1, hi, heap);
+            }
+        }else{
+            nearest(q, mid + 1, hi, heap);
+            if(heap.accepts(diff * diff)){
+                nearest(q, lo, mid, heap);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void withinRadius(final double[] q, final double r2, final int lo, final int hi, final List<T> result){
+        if(lo >= hi){
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+
+        if(distance2(q, mid) <= r2){
+            result.add((T) items[mid]);
+        }
+
+        final int a = axis[mid];
+        final double diff = q[a] - coords[a][mid];
+
+        if(diff < 0 || diff * diff <= r2){
+            withinRadius(q, r2, lo, mid, result);
+        }
+        if(diff >= 0 || diff * diff <= r2){
+            withinRadius(q, r2, mid + 1, hi, result);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void withinBounds(final double south, final double west, final double north, final double east,
+                              final int lo, final int hi, final List<T> result){
+        if(lo >= hi){
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+
+        // Skip the whole subtree if it does not touch the box
+        if(maxLat[mid] < south || minLat[mid] > north || maxLon[mid] < west || minLon[mid] > east){
+            return;
+        }
+
+        if(lat[mid] >= south && lat[mid] <= north && lon[mid] >= west && lon[mid] <= east){
+            result.add((T) items[mid]);
+        }
+
+        withinBounds(south, west, north, east, lo, mid, result);
+        withinBounds(south, west, north, east, mid + 1, hi, result);
+    }
+
+    /**
+     * Recursively arrange the order so every range has its
+     * median (on the widest axis) in the middle
+     */
+    private void build(final int[] order, final double[][] raw, final int lo, final int hi){
+        if(hi - lo <= 1){
+            return;
+        }
+
+        // Split on whichever axis has the widest spread in this range
+        int best = 0;
+        double bestSpread = -1;
+        for(int a = 0; a < 3; a++){
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for(int i = lo; i < hi; i++){
+                double v = raw[a][order[i]];
+                if(v < min) min = v;
+                if(v > max) max = v;
+            }
+            if(max - min > bestSpread){
+                bestSpread = max - min;
+                best = a;
+            }
+        }
+
+        final int mid = (lo + hi) >>> 1;
+        select(order, raw[best], lo, hi - 1, mid);
+        axis[mid] = (byte) best;
+
+        build(order, raw, lo, mid);
+        build(order, raw, mid + 1, hi);
+    }
+
+    /**
+     * Quickselect, places the k-th smallest value of the range at k
+     * with everything smaller to the left and larger to the right
+     */
+    private static void select(final int[] order, final double[] values, int left, int right, final int k){
+        while(right > left){
+            final double pivot = values[order[(left + right) >>> 1]];
+            int i = left, j = right;
+            while(i <= j){
+                while(values[order[i]] < pivot) i++;
+                while(values[order[j]] > pivot) j--;
+                if(i <= j){
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if(k <= j){
+                right = j;
+            }else if(k >= i){
+                left = i;
+            }else{
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fill in the subtree bounds bottom up
+     * @return the node index of the range or -1 if empty
+     */
+    private int computeBounds(final int lo, final int hi){
+        if(lo >= hi){
+            return -1;
+        }
+        final int mid = (lo + hi) >>> 1;
+        minLat[mid] = maxLat[mid] = lat[mid];
+        minLon[mid] = maxLon[mid] = lon[mid];
+
+        for(int child : new int[]{ computeBounds(lo, mid), computeBounds(mid + 1, hi) }){
+            if(child < 0){
+                continue;
+            }
+            minLat[mid] = Math.min(minLat[mid], minLat[child]);
+            maxLat[mid] = Math.max(maxLat[mid], maxLat[child]);
+            minLon[mid] = Math.min(minLon[mid], minLon[child]);
+            maxLon[mid] = Math.max(maxLon[mid], maxLon[child]);
+        }
+        return mid;
+    }
+
+    private double distance2(final double[] q, final int node){
+        final double dx = q[0] - coords[0][node];
+        final double dy = q[1] - coords[1][node];
+        final double dz = q[2] - coords[2][node];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static void project(final double latitude, final double longitude, final double[] out){
+        final double phi = Math.toRadians(latitude);
+        final double lambda = Math.toRadians(longitude);
+        final double cosPhi = Math.cos(phi);
+        out[0] = cosPhi * Math.cos(lambda);
+        out[1] = cosPhi * Math.sin(lambda);
+        out[2] = Math.sin(phi);
+    }
+
+    private static void project(final double latitude, final double longitude, final double[][] out, final int i){
+        final double phi = Math.toRadians(latitude);
+        final double lambda = Math.toRadians(longitude);
+        final double cosPhi = Math.cos(phi);
+        out[0][i] = cosPhi * Math.cos(lambda);
+        out[1][i] = cosPhi * Math.sin(lambda);
+        out[2][i] = Math.sin(phi);
+    }
+
+    /**
+     * Bounded max-heap of node indices keyed on squared chord distance,
+     * keeps the k best candidates seen so far
+     */
+    private class Heap {
+
+        private final int[] nodes;
+        private final double[] keys;
+        private int count;
+
+        Heap(final int capacity){
+            this.nodes = new int[capacity];
+            this.keys = new double[capacity];
+        }
+
+        /**
+         * Whether something at the given distance could still make the cut
+         */
+        boolean accepts(final double d2){
+            return count < nodes.length || d2 < keys[0];
+        }
+
+        void offer(final int node, final double d2){
+            if(count < nodes.length){
+                nodes[count] = node;
+                keys[count] = d2;
+                siftUp(count++);
+            }else if(d2 < keys[0]){
+                nodes[0] = node;
+                keys[0] = d2;
+                siftDown(0);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> drainAscending(){
+            final Object[] out = new Object[count];
+            // Popping the max repeatedly fills the result from the back
+            for(int i = count - 1; i >= 0; i--){
+                out[i] = items[nodes[0]];
+                count--;
+                nodes[0] = nodes[count];
+                keys[0] = keys[count];
+                siftDown(0);
+            }
+            final List<T> result = new ArrayList<>(out.length);
+            for(Object o : out){
+                result.add((T) o);
+            }
+            return result;
+        }
+
+        private void siftUp(int i){
+            while(i > 0){
+                int parent = (i - 1) >>> 1;
+                if(keys[parent] >= keys[i]){
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i){
+            while(true){
+                int l = 2 * i + 1, r = l + 1, largest = i;
+                if(l < count && keys[l] > keys[largest]) largest = l;
+                if(r < count && keys[r] > keys[largest]) largest = r;
+                if(largest == i){
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(final int a, final int b){
+            int n = nodes[a];
+            nodes[a] = nodes[b];
+            nodes[b] = n;
+            double k = keys[a];
+            keys[a] = keys[b];
+            keys[b] = k;
+        }
+    }
+}
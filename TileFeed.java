@@ -0,0 +1,447 @@
+package dja33.msc.ukc.myapplication;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Tile Feed
+ *
+ * Fetches only the part of the feed that is on screen. The visible region
+ * is split into Web Mercator tiles, the same grid the map's own tiles use,
+ * and each tile is requested on its own with its z/x/y and its bounding
+ * box as query parameters, so what is downloaded scales with the view and
+ * not with the number of users.
+ *
+ * Tiles are cached, least recently used first out, and are only fetched
+ * again once they are older than the time to live, conditionally so an
+ * unchanged tile costs a 304. The ring of tiles around the view is fetched
+ * in the background after the visible ones so a pan finds them ready.
+ *
+ * The tile size follows the camera zoom, coarser tiles are used when the
+ * view would otherwise need too many.
+ *
+ * Only fetch from one thread at a time, i.e the polling thread. The
+ * viewport may be set from any thread.
+ */
+public class TileFeed {
+
+    /* Tiles are this many zoom levels coarser than the camera, a phone screen spans two or three */
+    private static final int ZOOM_OFFSET = 1;
+    private static final int MAX_TILE_ZOOM = 16;
+
+    /* Most tiles fetched for one view, the tiles are made coarser beyond it */
+    private static final int MAX_VISIBLE_TILES = 16;
+
+    /* Most fetches run at once */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Outcome of fetching the visible tiles once
+     */
+    public static final class Result {
+
+        private int visible;
+        private int fetched;
+        private int cached;
+        private int failed;
+        private int response = 304;
+        private int records;
+        private long bytes;
+
+        /** Tiles in view */
+        public int getVisibleTiles(){
+            return visible;
+        }
+
+        /** Tiles downloaded with a new body */
+        public int getFetchedTiles(){
+            return fetched;
+        }
+
+        /** Tiles taken from the cache, fresh or confirmed by a 304 */
+        public int getCachedTiles(){
+            return cached;
+        }
+
+        /** Tiles that failed or timed out, their last records are used if cached */
+        public int getFailedTiles(){
+            return failed;
+        }
+
+        /**
+         * Response for the fetch as a whole, for recording
+         * @return the first failed response, otherwise 200 if any tile was downloaded or 304
+         */
+        public int getResponse(){
+            return response;
+        }
+
+        /**
+         * Whether every tile in view failed, nothing was merged
+         * @return true if so
+         */
+        public boolean isFailed(){
+            return visible > 0 && failed == visible;
+        }
+
+        /** Records passed to the sink after merging */
+        public int getRecordCount(){
+            return records;
+        }
+
+        /** Body bytes received for the tiles in view */
+        public long getBytesReceived(){
+            return bytes;
+        }
+    }
+
+    private final String url;
+    private final long ttl;
+    private final long timeout;
+    private final int maxTiles;
+
+    // Most recently used last
+    private final Map<Long, Tile> cache;
+    private ExecutorService pool;
+
+    // { west, north, east, south } in world coordinates and the camera zoom, null until set
+    private volatile double[] viewport;
+
+    private volatile long requests;
+    private volatile long cacheHits;
+    private volatile long prefetches;
+
+    /**
+     * Create the feed, nothing is fetched until the viewport is set
+     * @param url The tile endpoint, the tile is added as query parameters
+     * @param ttl How long a tile is used before it is fetched again, in ms
+     * @param timeout How long each tile in view is given per fetch, in ms
+     * @param maxTiles Most tiles kept in the cache, at least enough for a few views
+     */
+    public TileFeed(final String url, final long ttl, final long timeout, final int maxTiles){
+        try{
+            // Fail early on a bad URL rather than on every tile
+            new URL(url);
+        }catch(MalformedURLException e){
+            throw new IllegalArgumentException("Invalid URL given.");
+        }
+        this.url = url;
+        this.ttl = ttl;
+        this.timeout = timeout;
+        this.maxTiles = Math.max(MAX_VISIBLE_TILES * 4, maxTiles);
+        this.cache = new LinkedHashMap<Long, Tile>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                return size() > TileFeed.this.maxTiles;
+            }
+        };
+    }
+
+    /**
+     * Set the part of the map that is visible
+     * @param south Latitude of the bottom edge
+     * @param west Longitude of the left edge
+     * @param north Latitude of the top edge
+     * @param east Longitude of the right edge, less than west if the view crosses the antimeridian
+     * @param zoom The camera zoom
+     * @return true if different tiles are now in view, i.e it's worth fetching straight away
+     */
+    public boolean setViewport(final double south, final double west, final double north, final double east,
+                               final double zoom){
+        double left = WebMercator.toX(west);
+        final double right = WebMercator.toX(east);
+        if(left > right){
+            // Crosses the antimeridian, keep the area contiguous
+            left -= 1;
+        }
+        final double[] next = { left, WebMercator.toY(north), right, WebMercator.toY(south), zoom };
+        final double[] last = viewport;
+        viewport = next;
+        return last == null || !visibleTiles(last).equals(visibleTiles(next));
+    }
+
+    /**
+     * Fetch the tiles in view that aren't fresh in the cache and pass every
+     * user in view to the sink on the calling thread, blocks for at most the
+     * timeout. The tiles around the view are then fetched in the background.
+     * @param sink Where to send each user
+     * @return the outcome, with no tiles if the viewport hasn't been set
+     */
+    public Result fetch(final UserFeedParser.Sink sink){
+        final Result result = new Result();
+        final double[] view = viewport;
+        if(view == null){
+            return result;
+        }
+
+        final List<Long> visible = visibleTiles(view);
+        result.visible = visible.size();
+        final long now = System.nanoTime();
+        final long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final ExecutorService executor = pool();
+
+        // Start every fetch first so they all run at once
+        final List<Tile> tiles = new ArrayList<>(visible.size());
+        final List<Tile> fetching = new ArrayList<>(visible.size());
+        for(long key : visible){
+            final Tile tile = tile(key);
+            tiles.add(tile);
+            if(tile.isFresh(now)){
+                cacheHits++;
+                result.cached++;
+                continue;
+            }
+            fetching.add(tile);
+            if(tile.inFlight == null || tile.inFlight.isDone()){
+                tile.inFlight = executor.submit(tile);
+                requests++;
+            }
+        }
+
+        // Only the tiles that weren't fresh, one fetched meanwhile is fresh but not a cache hit
+        for(Tile tile : fetching){
+            try {
+                tile.inFlight.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                final int response = tile.handler.getResponse();
+                if(tile.fetchedAt == 0 || (response != 200 && response != 304) || !tile.isFresh(System.nanoTime())){
+                    fail(result, response);
+                }else if(response == 304){
+                    result.cached++;
+                }else{
+                    result.fetched++;
+                    result.bytes += tile.handler.getLastBytesReceived();
+                    result.response = result.response == 304 ? 200 : result.response;
+                }
+            } catch (TimeoutException e) {
+                fail(result, FeedFanOut.TIMED_OUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(result, FeedFanOut.TIMED_OUT);
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                fail(result, -1);
+            }
+        }
+
+        if(!result.isFailed()){
+            final Set<String> seen = new HashSet<>();
+            for(Tile tile : tiles){
+                final FeedRecords records = tile.records;
+                if(records != null){
+                    result.records += records.replay(seen, sink);
+                }
+            }
+        }
+
+        prefetch(view, visible);
+        return result;
+    }
+
+    /**
+     * Stop the threads, fetches still running are interrupted. The
+     * cache is kept, fetching again starts new threads.
+     */
+    public void shutdown(){
+        if(pool != null){
+            pool.shutdownNow();
+            pool = null;
+        }
+        for(Tile tile : cache.values()){
+            tile.inFlight = null;
+        }
+    }
+
+    /**
+     * The tile endpoint
+     * @return url
+     */
+    public String getURL(){
+        return url;
+    }
+
+    /**
+     * Number of tiles requested from the website, in view or prefetched
+     * @return request count
+     */
+    public long getRequestCount(){
+        return requests;
+    }
+
+    /**
+     * Number of tiles in view that were fresh in the cache
+     * @return hit count
+     */
+    public long getCacheHitCount(){
+        return cacheHits;
+    }
+
+    /**
+     * Number of tiles around the view requested ahead of a pan
+     * @return prefetch count
+     */
+    public long getPrefetchCount(){
+        return prefetches;
+    }
+
+    private static void fail(final Result result, final int response){
+        if(result.failed++ == 0){
+            result.response = response;
+        }
+    }
+
+    /**
+     * Fetch the ring of tiles around the view in the background, after the ones in view
+     */
+    private void prefetch(final double[] view, final List<Long> visible){
+        final int z = tileZoom(view);
+        final long n = 1L << z;
+        final double[] around = { view[0] - 1.0 / n, view[1] - 1.0 / n, view[2] + 1.0 / n, view[3] + 1.0 / n };
+        final long now = System.nanoTime();
+        final ExecutorService executor = pool();
+        for(long key : tiles(z, around)){
+            if(visible.contains(key)){
+                continue;
+            }
+            final Tile tile = tile(key);
+            if(!tile.isFresh(now) && (tile.inFlight == null || tile.inFlight.isDone())){
+                tile.inFlight = executor.submit(tile);
+                requests++;
+                prefetches++;
+            }
+        }
+    }
+
+    private List<Long> visibleTiles(final double[] view){
+        return tiles(tileZoom(view), view);
+    }
+
+    /**
+     * Tile zoom for a view, follows the camera but coarser while the view would need too many tiles
+     */
+    private static int tileZoom(final double[] view){
+        int z = (int) Math.max(0, Math.min(MAX_TILE_ZOOM, Math.round(view[4]) - ZOOM_OFFSET));
+        while(z > 0 && count(z, view) > MAX_VISIBLE_TILES){
+            z--;
+        }
+        return z;
+    }
+
+    private static long count(final int z, final double[] area){
+        final long n = 1L << z;
+        final long across = Math.min(n, (long) Math.floor(area[2] * n) - (long) Math.floor(area[0] * n) + 1);
+        final long down = cell(area[3], n) - cell(area[1], n) + 1;
+        return across * down;
+    }
+
+    /**
+     * Keys of the tiles at a zoom covering an area, wrapping around the antimeridian
+     */
+    private static List<Long> tiles(final int z, final double[] area){
+        final long n = 1L << z;
+        final long left = (long) Math.floor(area[0] * n);
+        final long right = Math.min(left + n - 1, (long) Math.floor(area[2] * n));
+        final long top = cell(area[1], n);
+        final long bottom = cell(area[3], n);
+        final List<Long> keys = new ArrayList<>((int) ((right - left + 1) * (bottom - top + 1)));
+        for(long x = left; x <= right; x++){
+            for(long y = top; y <= bottom; y++){
+                keys.add(key(z, ((x % n) + n) % n, y));
+            }
+        }
+        return keys;
+    }
+
+    private static long cell(final double v, final long n){
+        return Math.max(0, Math.min(n - 1, (long) Math.floor(v * n)));
+    }
+
+    private static long key(final int z, final long x, final long y){
+        return ((long) z << 56) | (x << 28) | y;
+    }
+
+    private Tile tile(final long key){
+        Tile tile = cache.get(key);
+        if(tile == null){
+            tile = new Tile((int) (key >>> 56), (key >>> 28) & 0xFFFFFFFL, key & 0xFFFFFFFL);
+            cache.put(key, tile);
+        }
+        return tile;
+    }
+
+    private ExecutorService pool(){
+        if(pool == null){
+            final AtomicInteger created = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "tile-fetch-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * One tile, its own handler keeps the validators for conditional fetches
+     */
+    private final class Tile implements Runnable {
+
+        final HTTPHandler handler;
+        // Last records parsed and when they were confirmed, written by the fetching thread
+        volatile FeedRecords records;
+        volatile long fetchedAt;
+        // Only touched by the thread calling fetch
+        Future<?> inFlight;
+
+        Tile(final int z, final long x, final long y){
+            final long n = 1L << z;
+            final double west = WebMercator.toLongitude((double) x / n);
+            final double east = WebMercator.toLongitude((double) (x + 1) / n);
+            final double north = WebMercator.toLatitude((double) y / n);
+            final double south = WebMercator.toLatitude((double) (y + 1) / n);
+            this.handler = new HTTPHandler(url + (url.indexOf('?') < 0 ? '?' : '&')
+                    + String.format(Locale.US, "z=%d&x=%d&y=%d&bbox=%.6f,%.6f,%.6f,%.6f",
+                    z, x, y, west, south, east, north));
+        }
+
+        boolean isFresh(final long now){
+            return fetchedAt != 0 && now - fetchedAt < TimeUnit.MILLISECONDS.toNanos(ttl);
+        }
+
+        /**
+         * Fetch on a pool thread, records are kept even if the fetch has
+         * already timed out, the handler only sends back the validators
+         * of a tile it parsed
+         */
+        @Override
+        public void run() {
+            final FeedRecords next = new FeedRecords();
+            final int response = handler.fetch(next);
+            if(response == 200 && handler.isParsed()){
+                next.trim();
+                records = next;
+                fetchedAt = System.nanoTime();
+            }else if(response == 304 && records != null){
+                fetchedAt = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package dja33.msc.ukc.myapplication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Trajectory Store
+ *
+ * Keeps the recent trail of where each friend has been, for drawing and
+ * for estimating their speed and heading, in memory fixed when it is made.
+ *
+ * Every friend gets a slot holding a ring of timestamped points, once the
+ * ring is full the oldest point is overwritten. Once every slot is in use
+ * the friend updated least recently loses theirs to the next new friend.
+ * All slots live in one ByteBuffer, on or off the heap, laid out as:
+ *
+ *   time  8 byte long, ms
+ *   lat   4 byte int, degrees x 10^7
+ *   lon   4 byte int, degrees x 10^7
+ *
+ * so however long the session runs the store holds no more than
+ * friends x points x 16 bytes and makes no garbage recording.
+ *
+ * A friend standing still only keeps the first and last point of the
+ * stop, the last one's time moving on, so a stop doesn't push their trail
+ * out of the ring.
+ *
+ * Every method locks the store.
+ */
+public class TrajectoryStore {
+
+    private static final int POINT_SIZE = 16;
+    private static final double E7 = 1e7;
+
+    /* Least distance in km between the points a heading is taken from, so jitter doesn't turn them around */
+    private static final double HEADING_DISTANCE = 0.01;
+
+    private final int capacity;
+    private final ByteBuffer points;
+
+    // Per slot, index of the oldest point and how many there are
+    private final int[] start;
+    private final int[] count;
+
+    // Slot of each friend, least recently updated first
+    private final LinkedHashMap<String, Integer> slots = new LinkedHashMap<>();
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+    /**
+     * Create the store, all of its memory is taken now
+     * @param friends Most friends with a trail
+     * @param capacity Most points kept per friend, at least 2
+     * @param offHeap Whether to hold the points in a direct buffer, off the Java heap
+     */
+    public TrajectoryStore(final int friends, final int capacity, final boolean offHeap){
+        if(friends <= 0 || capacity < 2){
+            throw new IllegalArgumentException("Need room for a friend and at least 2 points each.");
+        }
+        final long size = (long) friends * capacity * POINT_SIZE;
+        if(size > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Trajectory store of " + size + " bytes is too large.");
+        }
+        this.capacity = capacity;
+        this.points = offHeap ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+        this.start = new int[friends];
+        this.count = new int[friends];
+        for(int slot = 0; slot < friends; slot++){
+            free.add(slot);
+        }
+    }
+
+    /**
+     * Add where a friend is, ignored if older than the last point recorded for them
+     * @param name The friend
+     * @param time When they were there, ms
+     * @param lat Their latitude
+     * @param lon Their longitude
+     */
+    public synchronized void record(final String name, final long time, final double lat, final double lon){
+        final int latE7 = (int) Math.round(lat * E7);
+        final int lonE7 = (int) Math.round(lon * E7);
+
+        Integer slot = slots.remove(name);
+        if(slot == null){
+            slot = free.isEmpty() ? evict() : free.poll();
+            start[slot] = 0;
+            count[slot] = 0;
+        }
+        // Most recently updated last
+        slots.put(name, slot);
+
+        final int n = count[slot];
+        if(n > 0){
+            final int last = offset(slot, n - 1);
+            final long lastTime = points.getLong(last);
+            if(time < lastTime){
+                return;
+            }
+            final boolean still = points.getInt(last + 8) == latE7 && points.getInt(last + 12) == lonE7;
+            if(time == lastTime || (still && n > 1 && samePlace(offset(slot, n - 2), latE7, lonE7))){
+                // Same moment, or the stop goes on, only the last point changes
+                put(last, time, latE7, lonE7);
+                return;
+            }
+        }
+
+        if(n < capacity){
+            put(offset(slot, n), time, latE7, lonE7);
+            count[slot] = n + 1;
+        }else{
+            // Full, the oldest point makes way
+            put(offset(slot, 0), time, latE7, lonE7);
+            start[slot] = (start[slot] + 1) % capacity;
+        }
+    }
+
+    /**
+     * Forget a friend's trail, i.e they've gone from the feed
+     * @param name The friend
+     * @return true if they had a trail
+     */
+    public synchronized boolean remove(final String name){
+        final Integer slot = slots.remove(name);
+        if(slot == null){
+            return false;
+        }
+        free.add(slot);
+        return true;
+    }
+
+    /**
+     * Forget every trail
+     */
+    public synchronized void clear(){
+        for(Integer slot : slots.values()){
+            free.add(slot);
+        }
+        slots.clear();
+    }
+
+    /**
+     * Number of friends with a trail
+     * @return size
+     */
+    public synchronized int size(){
+        return slots.size();
+    }
+
+    /**
+     * Bytes held for points, the same for the life of the store
+     * @return capacity in bytes
+     */
+    public int getByteCapacity(){
+        return points.capacity();
+    }
+
+    /**
+     * A friend's trail from a time on, copied out of the store
+     * @param name The friend
+     * @param since Earliest time wanted, ms
+     * @return the trail, oldest first, empty if they have none
+     */
+    public synchronized Trail getTrail(final String name, final long since){
+        final Integer slot = slots.get(name);
+        if(slot == null){
+            return new Trail(new long[0], new double[0], new double[0]);
+        }
+        final int n = count[slot];
+        int first = n;
+        while(first > 0 && points.getLong(offset(slot, first - 1)) >= since){
+            first--;
+        }
+        final long[] times = new long[n - first];
+        final double[] lats = new double[n - first];
+        final double[] lons = new double[n - first];
+        for(int i = first; i < n; i++){
+            final int at = offset(slot, i);
+            times[i - first] = points.getLong(at);
+            lats[i - first] = points.getInt(at + 8) / E7;
+            lons[i - first] = points.getInt(at + 12) / E7;
+        }
+        return new Trail(times, lats, lons);
+    }
+
+    /**
+     * Average speed along a friend's trail over a recent window. Their last
+     * point before the window is included, so a friend who hasn't been
+     * recorded within the window has stood still.
+     * @param name The friend
+     * @param now The time the window ends, ms
+     * @param window Length of the window, ms
+     * @return speed in km/h, NaN if they have fewer than two points
+     */
+    public synchronized double getSpeed(final String name, final long now, final long window){
+        final Integer slot = slots.get(name);
+        if(slot == null || count[slot] < 2){
+            return Double.NaN;
+        }
+        final long from = now - window;
+        int i = count[slot] - 1;
+        int at = offset(slot, i);
+        final long last = points.getLong(at);
+        if(last < from){
+            return 0;
+        }
+        double distance = 0;
+        long earliest = last;
+        while(i > 0 && earliest >= from){
+            final int previous = offset(slot, --i);
+            distance += DistanceMetric.HAVERSINE.distance(points.getInt(previous + 8) / E7, points.getInt(previous + 12) / E7,
+                    points.getInt(at + 8) / E7, points.getInt(at + 12) / E7);
+            earliest = points.getLong(previous);
+            at = previous;
+        }
+        final long elapsed = last - earliest;
+        return elapsed <= 0 ? 0 : distance / (elapsed / 3600000.0);
+    }
+
+    /**
+     * Which way a friend is heading, from the latest point far enough back to their last
+     * @param name The friend
+     * @return bearing in degrees clockwise from north, NaN if they haven't moved far enough to tell
+     */
+    public synchronized double getHeading(final String name){
+        final Integer slot = slots.get(name);
+        if(slot == null){
+            return Double.NaN;
+        }
+        final int last = offset(slot, count[slot] - 1);
+        final double lat = points.getInt(last + 8) / E7;
+        final double lon = points.getInt(last + 12) / E7;
+        for(int i = count[slot] - 2; i >= 0; i--){
+            final int at = offset(slot, i);
+            final double fromLat = points.getInt(at + 8) / E7;
+            final double fromLon = points.getInt(at + 12) / E7;
+            if(DistanceMetric.EQUIRECTANGULAR.distance(fromLat, fromLon, lat, lon) >= HEADING_DISTANCE){
+                return bearing(fromLat, fromLon, lat, lon);
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Initial bearing of the great circle from one location to another
+     */
+    private static double bearing(final double lat1, final double lon1, final double lat2, final double lon2){
+        final double p1 = Math.toRadians(lat1);
+        final double p2 = Math.toRadians(lat2);
+        final double dLon = Math.toRadians(lon2 - lon1);
+        final double y = Math.sin(dLon) * Math.cos(p2);
+        final double x = Math.cos(p1) * Math.sin(p2) - Math.sin(p1) * Math.cos(p2) * Math.cos(dLon);
+        return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+    }
+
+    /**
+     * Free the slot of the friend updated least recently
+     */
+    private int evict(){
+        final Iterator<Map.Entry<String, Integer>> eldest = slots.entrySet().iterator();
+        final int slot = eldest.next().getValue();
+        eldest.remove();
+        return slot;
+    }
+
+    private boolean samePlace(final int at, final int latE7, final int lonE7){
+        return points.getInt(at + 8) == latE7 && points.getInt(at + 12) == lonE7;
+    }
+
+    private void put(final int at, final long time, final int latE7, final int lonE7){
+        points.putLong(at, time);
+        points.putInt(at + 8, latE7);
+        points.putInt(at + 12, lonE7);
+    }
+
+    /**
+     * Byte offset of a slot's point, counted from its oldest
+     */
+    private int offset(final int slot, final int index){
+        return (slot * capacity + (start[slot] + index) % capacity) * POINT_SIZE;
+    }
+
+    /**
+     * A trail copied out of the store, oldest point first
+     */
+    public static final class Trail {
+
+        /* Most a simplified trail may stray from the original, in pixels at the zoom it is simplified for */
+        private static final double TOLERANCE = 1.5;
+
+        private final long[] times;
+        private final double[] lats;
+        private final double[] lons;
+
+        private Trail(final long[] times, final double[] lats, final double[] lons){
+            this.times = times;
+            this.lats = lats;
+            this.lons = lons;
+        }
+
+        public int size(){
+            return times.length;
+        }
+
+        public long getTime(final int i){
+            return times[i];
+        }
+
+        public double getLatitude(final int i){
+            return lats[i];
+        }
+
+        public double getLongitude(final int i){
+            return lons[i];
+        }
+
+        /**
+         * The trail with the points dropped that wouldn't be seen at a
+         * zoom, by Douglas-Peucker on the Web Mercator coordinates so the
+         * tolerance is the same number of pixels anywhere on the map
+         * @param zoom The camera zoom
+         * @return the simplified trail, still starting and ending at the same points
+         */
+        public Trail simplify(final double zoom){
+            final int n = size();
+            if(n <= 2){
+                return this;
+            }
+            final double tolerance = TOLERANCE / (256 * Math.pow(2, zoom));
+            final double[] xs = new double[n];
+            final double[] ys = new double[n];
+            for(int i = 0; i < n; i++){
+                xs[i] = WebMercator.toX(lons[i]);
+                ys[i] = WebMercator.toY(lats[i]);
+            }
+
+            final boolean[] keep = new boolean[n];
+            keep[0] = true;
+            keep[n - 1] = true;
+            int kept = 2;
+            // Spans still to split, as pairs of first and last index, without recursing
+            final int[] spans = new int[2 * n];
+            int top = 0;
+            spans[top++] = 0;
+            spans[top++] = n - 1;
+            while(top > 0){
+                final int last = spans[--top];
+                final int first = spans[--top];
+                double furthest = -1;
+                int split = -1;
+                for(int i = first + 1; i < last; i++){
+                    final double d = segmentDistance(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                    if(d > furthest){
+                        furthest = d;
+                        split = i;
+                    }
+                }
+                if(split != -1 && furthest > tolerance){
+                    keep[split] = true;
+                    kept++;
+                    spans[top++] = first;
+                    spans[top++] = split;
+                    spans[top++] = split;
+                    spans[top++] = last;
+                }
+            }
+
+            if(kept == n){
+                return this;
+            }
+            final long[] t = new long[kept];
+            final double[] la = new double[kept];
+            final double[] lo = new double[kept];
+            for(int i = 0, j = 0; i < n; i++){
+                if(keep[i]){
+                    t[j] = times[i];
+                    la[j] = lats[i];
+                    lo[j] = lons[i];
+                    j++;
+                }
+            }
+            return new Trail(t, la, lo);
+        }
+
+        /**
+         * Distance of a point from the segment between two others
+         */
+        private static double segmentDistance(final double px, final double py, final double ax, final double ay,
+                                              final double bx, final double by){
+            final double dx = bx - ax;
+            final double dy = by - ay;
+            final double length = dx * dx + dy * dy;
+            double t = length == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / length;
+            t = Math.max(0, Math.min(1, t));
+            final double x = ax + t * dx - px;
+            final double y = ay + t * dy - py;
+            return Math.sqrt(x * x + y * y);
+        }
+    }
+}
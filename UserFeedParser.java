@@ -0,0 +1,333 @@
+package dja33.msc.ukc.myapplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ *
+ * User Feed Parser
+ *
+ * Streaming pull-parser for the friend feed, expects JSON in the form
+ * {"Users":[{"lat":..,"lon":..,"name":..}, ...]} and hands each record
+ * to a Sink as soon as it has been read. Nothing but the current record
+ * is held, so memory use does not grow with the size of the payload.
+ *
+ * Unknown keys, both at the top level and inside records, are skipped
+ * over. Like org.json, numbers given as strings and names given as
+ * numbers are accepted.
+ */
+public final class UserFeedParser {
+
+    /**
+     * Receives each user record as it is parsed
+     */
+    public interface Sink {
+        void onUser(double lat, double lon, String name);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String USERS = "Users";
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+
+    // Reused for keys, strings and numbers of the current record
+    private final StringBuilder text = new StringBuilder();
+
+    private UserFeedParser(final Reader in){
+        this.in = in;
+    }
+
+    /**
+     * Parse a feed from a UTF-8 stream, the stream is not closed
+     * @param in The stream to read
+     * @param sink Where to send each user
+     * @return the number of users read
+     * @throws IOException If reading fails or the feed is malformed
+     */
+    public static int parse(final InputStream in, final Sink sink) throws IOException {
+        return parse(new InputStreamReader(in, UTF_8), sink);
+    }
+
+    /**
+     * Parse a feed from a reader, the reader is not closed
+     * @param in The reader to read
+     * @param sink Where to send each user
+     * @return the number of users read
+     * @throws IOException If reading fails or the feed is malformed
+     */
+    public static int parse(final Reader in, final Sink sink) throws IOException {
+        return new UserFeedParser(in).readFeed(sink);
+    }
+
+    private int readFeed(final Sink sink) throws IOException {
+        expect('{');
+        int users = -1;
+        if(peek() == '}'){
+            pos++;
+        }else{
+            do{
+                readString();
+                expect(':');
+                if(textEquals(USERS)){
+                    users = readUsers(sink);
+                }else{
+                    skipValue();
+                }
+            }while(next(',', '}') == ',');
+        }
+
+        if(users < 0){
+            throw new IOException("No " + USERS + " array in feed.");
+        }
+        return users;
+    }
+
+    private int readUsers(final Sink sink) throws IOException {
+        expect('[');
+        if(peek() == ']'){
+            pos++;
+            return 0;
+        }
+        int count = 0;
+        do{
+            readUser(sink);
+            count++;
+        }while(next(',', ']') == ',');
+        return count;
+    }
+
+    private void readUser(final Sink sink) throws IOException {
+        expect('{');
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        String name = null;
+
+        if(peek() == '}'){
+            pos++;
+        }else{
+            do{
+                readString();
+                expect(':');
+                if(textEquals("lat")){
+                    lat = readDouble();
+                }else if(textEquals("lon")){
+                    lon = readDouble();
+                }else if(textEquals("name")){
+                    name = readScalar();
+                }else{
+                    skipValue();
+                }
+            }while(next(',', '}') == ',');
+        }
+
+        if(Double.isNaN(lat) || Double.isNaN(lon) || name == null){
+            throw new IOException("User record missing lat, lon or name.");
+        }
+        sink.onUser(lat, lon, name);
+    }
+
+    /**
+     * Read a number, or a string holding a number
+     */
+    private double readDouble() throws IOException {
+        if(peek() == '"'){
+            readString();
+        }else{
+            readLiteral();
+        }
+        try{
+            return Double.parseDouble(text.toString());
+        }catch(NumberFormatException e){
+            throw new IOException("Expected a number but was '" + text + "'.");
+        }
+    }
+
+    /**
+     * Read a string, number or literal as its text
+     */
+    private String readScalar() throws IOException {
+        final int c = peek();
+        if(c == '"'){
+            readString();
+        }else if(c == '{' || c == '['){
+            throw new IOException("Expected a value but was '" + (char) c + "'.");
+        }else{
+            readLiteral();
+        }
+        return text.toString();
+    }
+
+    /**
+     * Read a quoted string into the text buffer
+     */
+    private void readString() throws IOException {
+        expect('"');
+        text.setLength(0);
+        while(true){
+            int c = read();
+            if(c == '"'){
+                return;
+            }
+            if(c == '\\'){
+                c = read();
+                switch(c){
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u':
+                        int code = 0;
+                        for(int i = 0; i < 4; i++){
+                            int digit = Character.digit(read(), 16);
+                            if(digit < 0){
+                                throw new IOException("Malformed unicode escape.");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        c = code;
+                        break;
+                    case '"': case '\\': case '/':
+                        break;
+                    default:
+                        throw new IOException("Unknown escape '\\" + (char) c + "'.");
+                }
+            }
+            text.append((char) c);
+        }
+    }
+
+    /**
+     * Read an unquoted number or literal (true, false, null) into the text buffer
+     */
+    private void readLiteral() throws IOException {
+        skipWhitespace();
+        text.setLength(0);
+        while(true){
+            if(pos == limit && !fill()){
+                break;
+            }
+            final char c = buffer[pos];
+            if(c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)){
+                break;
+            }
+            text.append(c);
+            pos++;
+        }
+        if(text.length() == 0){
+            throw new IOException("Expected a value.");
+        }
+    }
+
+    /**
+     * Skip over any value, including nested objects and arrays
+     */
+    private void skipValue() throws IOException {
+        final int c = peek();
+        if(c == '"'){
+            readString();
+        }else if(c == '{' || c == '['){
+            pos++;
+            final char close = c == '{' ? '}' : ']';
+            if(peek() == close){
+                pos++;
+                return;
+            }
+            do{
+                if(close == '}'){
+                    readString();
+                    expect(':');
+                }
+                skipValue();
+            }while(next(',', close) == ',');
+        }else{
+            readLiteral();
+        }
+    }
+
+    private boolean textEquals(final String value){
+        if(text.length() != value.length()){
+            return false;
+        }
+        for(int i = 0; i < value.length(); i++){
+            if(text.charAt(i) != value.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consume the next non whitespace character, which must be one of the two given
+     */
+    private char next(final char a, final char b) throws IOException {
+        final int c = peek();
+        if(c != a && c != b){
+            throw unexpected(c, "'" + a + "' or '" + b + "'");
+        }
+        pos++;
+        return (char) c;
+    }
+
+    private void expect(final char expected) throws IOException {
+        final int c = peek();
+        if(c != expected){
+            throw unexpected(c, "'" + expected + "'");
+        }
+        pos++;
+    }
+
+    /**
+     * Look at the next non whitespace character without consuming it
+     */
+    private int peek() throws IOException {
+        skipWhitespace();
+        if(pos == limit && !fill()){
+            throw new IOException("Unexpected end of feed.");
+        }
+        return buffer[pos];
+    }
+
+    private int read() throws IOException {
+        if(pos == limit && !fill()){
+            throw new IOException("Unexpected end of feed.");
+        }
+        return buffer[pos++];
+    }
+
+    private void skipWhitespace() throws IOException {
+        while(true){
+            if(pos == limit && !fill()){
+                return;
+            }
+            if(!isWhitespace(buffer[pos])){
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        final int n = in.read(buffer, 0, buffer.length);
+        if(n <= 0){
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private static boolean isWhitespace(final char c){
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static IOException unexpected(final int c, final String expected){
+        return new IOException("Expected " + expected + " but was '" + (char) c + "'.");
+    }
+}
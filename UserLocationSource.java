@@ -0,0 +1,31 @@
+package dja33.msc.ukc.myapplication;
+
+/**
+ *
+ * User Location Source
+ *
+ * Where the users location comes from, i.e the device's GPS or a fake
+ * location for testing. Fixes are delivered to the listener as they
+ * arrive, on whatever thread the source documents.
+ */
+public interface UserLocationSource {
+
+    /**
+     * Receives each new fix of the users location
+     */
+    interface Listener {
+        void onLocationChanged(double latitude, double longitude);
+    }
+
+    /**
+     * Start delivering fixes, the last known location may be
+     * delivered straight away
+     * @param listener Receives each fix
+     */
+    void start(Listener listener);
+
+    /**
+     * Stop delivering fixes, can be started again
+     */
+    void stop();
+}
@@ -0,0 +1,255 @@
+package dja33.msc.ukc.myapplication;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.clustering.algo.Algorithm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static dja33.msc.ukc.myapplication.WebMercator.toLatitude;
+import static dja33.msc.ukc.myapplication.WebMercator.toLongitude;
+import static dja33.msc.ukc.myapplication.WebMercator.toX;
+import static dja33.msc.ukc.myapplication.WebMercator.toY;
+
+/**
+ *
+ * Viewport Cluster Algorithm
+ *
+ * Base of the clustering algorithms backed by a ClusterQuadtree. Elements
+ * are placed in the tree by their Web Mercator coordinates, so the cells of
+ * the tree line up with the map's tiles and each zoom level has its clusters
+ * ready in the nodes at the matching depth, updated as elements are added
+ * and removed rather than rebuilt on every camera change.
+ *
+ * Only the visible part of the map, plus a margin, is clustered. Give it
+ * the visible bounds on every camera change with {@link #setVisibleBounds(LatLngBounds)},
+ * until then the whole world is clustered. The ClusterManager only reclusters
+ * when the zoom changes, so the caller should also recluster when that
+ * reports the camera has left the clustered area.
+ *
+ * The last result is kept and handed back while the elements, zoom and
+ * visible area stay the same. Subclasses call {@link #changed()} whenever
+ * the tree is changed, always while holding the lock on this.
+ *
+ * Only clusters smaller than the renderer's fewest items per cluster have
+ * their items gathered when they are made, as those are drawn item by
+ * item. Larger ones are drawn from their size and position alone, so
+ * clustering doesn't walk every item in view, see {@link #setMinClusterSize(int)}.
+ *
+ * @param <E> The type held in the tree
+ * @param <T> The type of ClusterItem handed to the renderer
+ */
+public abstract class ViewportClusterAlgorithm<E, T extends ClusterItem> implements Algorithm<T> {
+
+    /* Same cluster size GridBasedAlgorithm uses by default */
+    private static final int DEFAULT_MAX_DISTANCE = 100;
+
+    /* Extra area clustered on each side, as a fraction of the visible width and height */
+    private static final double MARGIN = 0.25;
+
+    /* Same fewest items per cluster as the renderers use by default */
+    private static final int DEFAULT_MIN_CLUSTER_SIZE = 4;
+
+    protected final ClusterQuadtree<E> tree = new ClusterQuadtree<>();
+
+    private int maxDistance = DEFAULT_MAX_DISTANCE;
+    private int minClusterSize = DEFAULT_MIN_CLUSTER_SIZE;
+
+    // Area to cluster in world coordinates, null for the whole world
+    private volatile double[] visible;
+
+    // Area clustered by the last call, the camera can move within it without reclustering
+    private volatile double[] clustered;
+
+    // Bumped on every change so a cached result is never stale
+    private long version;
+    private long cachedVersion = -1;
+    private int cachedLevel = -1;
+    private Set<QuadCluster> cached;
+
+    /**
+     * The item to hand the renderer for an element of the tree
+     * @param element The element
+     * @return the item
+     */
+    protected abstract T view(E element);
+
+    /**
+     * Note the tree has changed so the next clustering is not taken from the cache
+     */
+    protected void changed(){
+        version++;
+    }
+
+    @Override
+    public synchronized void setMaxDistanceBetweenClusteredItems(final int maxDistance) {
+        this.maxDistance = Math.max(1, maxDistance);
+        cachedLevel = -1;
+    }
+
+    @Override
+    public synchronized int getMaxDistanceBetweenClusteredItems() {
+        return maxDistance;
+    }
+
+    /**
+     * Set the fewest items the renderer shows as a cluster, smaller clusters
+     * have their items gathered when they are made as they're always read
+     * @param minClusterSize Size, should match the renderer's
+     */
+    public synchronized void setMinClusterSize(final int minClusterSize) {
+        this.minClusterSize = minClusterSize;
+        cachedLevel = -1;
+    }
+
+    /**
+     * Set the part of the map that is visible, called on every camera change
+     * @param bounds The visible bounds, or null to cluster the whole world
+     * @return true if it has moved outside the area last clustered,
+     * i.e the clusters need to be recalculated
+     */
+    public boolean setVisibleBounds(final LatLngBounds bounds) {
+        if(bounds == null){
+            visible = null;
+            return clustered != null;
+        }
+
+        double west = toX(bounds.southwest.longitude);
+        final double east = toX(bounds.northeast.longitude);
+        if(west > east){
+            // Crosses the antimeridian, keep the area contiguous
+            west -= 1;
+        }
+        final double[] area = {west, toY(bounds.northeast.latitude), east, toY(bounds.southwest.latitude)};
+        visible = area;
+
+        final double[] last = clustered;
+        return last != null && !covers(last, area);
+    }
+
+    @Override
+    public synchronized Set<? extends Cluster<T>> getClusters(final double zoom) {
+        final int level = ClusterQuadtree.level(zoom, maxDistance);
+
+        final double[] view = visible;
+        final double[] last = clustered;
+        if(cached != null && cachedVersion == version && cachedLevel == level
+                && (last == null ? view == null : view != null && covers(last, view))){
+            return cached;
+        }
+
+        final double[] area;
+        if(view == null){
+            area = null;
+        }else{
+            final double mx = (view[2] - view[0]) * MARGIN;
+            final double my = (view[3] - view[1]) * MARGIN;
+            area = new double[]{view[0] - mx, view[1] - my, view[2] + mx, view[3] + my};
+        }
+
+        final Set<QuadCluster> clusters = new HashSet<>();
+        final ClusterQuadtree.Visitor<E> collector = new ClusterQuadtree.Visitor<E>() {
+            @Override
+            public void visit(ClusterQuadtree.Cell<E> cell) {
+                clusters.add(new QuadCluster(cell));
+            }
+        };
+
+        if(area == null || area[2] - area[0] >= 1){
+            tree.query(level, 0, 0, 1, 1, collector);
+        }else{
+            // Wrap the area around the antimeridian into at most two queries
+            final double west = area[0] - Math.floor(area[0]);
+            final double east = west + (area[2] - area[0]);
+            tree.query(level, west, area[1], Math.min(1, east), area[3], collector);
+            if(east > 1){
+                tree.query(level, 0, area[1], east - 1, area[3], collector);
+            }
+        }
+
+        clustered = area;
+        cached = Collections.unmodifiableSet(clusters);
+        cachedVersion = version;
+        cachedLevel = level;
+        return cached;
+    }
+
+    /**
+     * Whether one area lies within another, allowing for it being a world away
+     */
+    private static boolean covers(final double[] outer, final double[] inner){
+        if(inner[1] < outer[1] || inner[3] > outer[3]){
+            return false;
+        }
+        for(int shift = -1; shift <= 1; shift++){
+            if(inner[0] + shift >= outer[0] && inner[2] + shift <= outer[2]){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A cluster from one cell of the tree, its size and position are fixed
+     * when it is made. A small cluster's items are copied out then too, a
+     * larger one's the first time they are asked for, under the lock on
+     * the algorithm. If the tree changed in between they are the cell's
+     * items at that point, which may not match the size.
+     */
+    private class QuadCluster implements Cluster<T> {
+
+        private final ClusterQuadtree.Cell<E> cell;
+        private final LatLng position;
+        private final int size;
+        private Collection<T> items;
+
+        /**
+         * Only made while holding the lock on the algorithm
+         */
+        QuadCluster(final ClusterQuadtree.Cell<E> cell){
+            this.cell = cell;
+            this.size = cell.size();
+            this.position = new LatLng(toLatitude(cell.y()), toLongitude(cell.x()));
+            if(size < minClusterSize){
+                this.items = gather();
+            }
+        }
+
+        private Collection<T> gather(){
+            final List<E> elements = cell.items();
+            final List<T> views = new ArrayList<>(elements.size());
+            for(E element : elements){
+                views.add(view(element));
+            }
+            return Collections.unmodifiableList(views);
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return position;
+        }
+
+        @Override
+        public Collection<T> getItems() {
+            // Walks the tree, so under the same lock as changes to it
+            synchronized (ViewportClusterAlgorithm.this){
+                if(items == null){
+                    items = gather();
+                }
+                return items;
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+    }
+}
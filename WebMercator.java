@@ -0,0 +1,44 @@
+package dja33.msc.ukc.myapplication;
+
+/**
+ *
+ * Web Mercator
+ *
+ * Converts between lat/lon and Web Mercator world coordinates, the unit
+ * square the map's tiles are cut from, x from 0 at -180 to 1 at 180 and
+ * y from 0 at the top of the map to 1 at the bottom. Shared by the
+ * clustering and the tiled feed, free of any Android types.
+ */
+public final class WebMercator {
+
+    /* Web Mercator is undefined at the poles, latitudes are clamped to the square map */
+    public static final double MAX_LATITUDE = 85.05112878;
+
+    private WebMercator(){
+    }
+
+    /**
+     * Longitude to Web Mercator x, 0 at -180 and 1 at 180
+     */
+    public static double toX(final double longitude){
+        final double x = longitude / 360 + 0.5;
+        return x - Math.floor(x);
+    }
+
+    /**
+     * Latitude to Web Mercator y, 0 at the top of the map and 1 at the bottom
+     */
+    public static double toY(final double latitude){
+        final double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        final double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return Math.max(0, Math.min(Math.nextAfter(1.0, 0), y));
+    }
+
+    public static double toLongitude(final double x){
+        return (x - 0.5) * 360;
+    }
+
+    public static double toLatitude(final double y){
+        return 90 - Math.toDegrees(2 * Math.atan(Math.exp((y - 0.5) * 2 * Math.PI)));
+    }
+}
@@ -0,0 +1,114 @@
+package dja33.msc.ukc.myapplication.benchmarks;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import dja33.msc.ukc.myapplication.DistanceCalculator;
+import dja33.msc.ukc.myapplication.SpatialIndex;
+import dja33.msc.ukc.myapplication.devserver.StubFeedServer;
+
+/**
+ *
+ * Benchmark Data
+ *
+ * Seeded generators for the synthetic friends used by the benchmarks,
+ * the same size and seed always produce the same data so results are
+ * comparable between runs. Friends are scattered over roughly 20km
+ * around the users location, like the real feed.
+ */
+final class BenchmarkData {
+
+    /* Seed used by every benchmark unless it has a reason not to */
+    static final long SEED = 42;
+
+    /* Reads the location of a generated friend */
+    static final SpatialIndex.Locator<Friend> LOCATOR = new SpatialIndex.Locator<Friend>() {
+        @Override
+        public double latitude(Friend item) {
+            return item.position.latitude;
+        }
+
+        @Override
+        public double longitude(Friend item) {
+            return item.position.longitude;
+        }
+    };
+
+    private BenchmarkData(){
+    }
+
+    /**
+     * Latitudes and longitudes as parallel arrays
+     * @param count How many
+     * @param seed Seed for the positions
+     * @return { lats, lons }
+     */
+    static double[][] coordinates(final int count, final long seed){
+        final Random random = new Random(seed);
+        final double[] lats = new double[count];
+        final double[] lons = new double[count];
+        for(int i = 0; i < count; i++){
+            lats[i] = DistanceCalculator.USER_LAT + (random.nextDouble() - 0.5) * 0.2;
+            lons[i] = DistanceCalculator.USER_LON + (random.nextDouble() - 0.5) * 0.3;
+        }
+        return new double[][]{ lats, lons };
+    }
+
+    /**
+     * Friends as cluster items
+     * @param count How many
+     * @param seed Seed for the positions
+     * @return the friends
+     */
+    static List<Friend> friends(final int count, final long seed){
+        final double[][] coordinates = coordinates(count, seed);
+        final List<Friend> friends = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            friends.add(new Friend(coordinates[0][i], coordinates[1][i], "User " + i));
+        }
+        return friends;
+    }
+
+    /**
+     * A Users feed in the same JSON format as the website
+     * @param count How many users
+     * @param seed Seed for the positions
+     * @return the feed
+     */
+    static String feed(final int count, final long seed){
+        return StubFeedServer.syntheticFeed(count, seed);
+    }
+
+    /**
+     * Stand in for MapHandler's private Person
+     */
+    static final class Friend implements ClusterItem {
+
+        final LatLng position;
+        final String name;
+
+        Friend(final double lat, final double lon, final String name){
+            this.position = new LatLng(lat, lon);
+            this.name = name;
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return position;
+        }
+
+        @Override
+        public String getTitle() {
+            return name;
+        }
+
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+}
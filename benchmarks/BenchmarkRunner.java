@@ -0,0 +1,29 @@
+package dja33.msc.ukc.myapplication.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Benchmark Runner
+ *
+ * Runs the benchmarks and writes the results as JSON so they can be
+ * compared between builds to catch regressions.
+ *
+ *   java dja33.msc.ukc.myapplication.benchmarks.BenchmarkRunner [include regex] [result file]
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        final String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+        final String result = args.length > 1 ? args[1] : "jmh-result.json";
+
+        new Runner(new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build()).run();
+    }
+}
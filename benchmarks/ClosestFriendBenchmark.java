@@ -0,0 +1,87 @@
+package dja33.msc.ukc.myapplication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dja33.msc.ukc.myapplication.DistanceCalculator;
+import dja33.msc.ukc.myapplication.DistanceMetric;
+import dja33.msc.ukc.myapplication.SpatialIndex;
+
+import static dja33.msc.ukc.myapplication.DistanceCalculator.USER_LAT;
+import static dja33.msc.ukc.myapplication.DistanceCalculator.USER_LON;
+
+/**
+ *
+ * Closest Friend Benchmark
+ *
+ * Cost of findClosestFriend, the original linear scan over cached
+ * distances against querying the SpatialIndex, plus the cost of
+ * building the index that each changed poll pays for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClosestFriendBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    private List<BenchmarkData.Friend> friends;
+    private double[] distances;
+    private SpatialIndex<BenchmarkData.Friend> index;
+
+    @Setup
+    public void setUp(){
+        friends = BenchmarkData.friends(size, BenchmarkData.SEED);
+        distances = new double[size];
+        for(int i = 0; i < size; i++){
+            distances[i] = DistanceCalculator.calculateDistance(friends.get(i).getPosition().latitude,
+                    friends.get(i).getPosition().longitude);
+        }
+        index = new SpatialIndex<>(friends, BenchmarkData.LOCATOR);
+    }
+
+    @Benchmark
+    public BenchmarkData.Friend linearScan(){
+        BenchmarkData.Friend closest = null;
+        double distance = Double.MAX_VALUE;
+        for(int i = 0; i < size; i++){
+            if(distances[i] < distance){
+                distance = distances[i];
+                closest = friends.get(i);
+            }
+        }
+        return closest;
+    }
+
+    @Benchmark
+    public List<BenchmarkData.Friend> indexNearest(){
+        return index.nearest(USER_LAT, USER_LON, 1);
+    }
+
+    @Benchmark
+    public BenchmarkData.Friend indexNearestRefined(){
+        return DistanceCalculator.closest(index.nearest(USER_LAT, USER_LON, 8), BenchmarkData.LOCATOR,
+                USER_LAT, USER_LON, DistanceMetric.VINCENTY);
+    }
+
+    @Benchmark
+    public SpatialIndex<BenchmarkData.Friend> buildIndex(){
+        return new SpatialIndex<>(friends, BenchmarkData.LOCATOR);
+    }
+}
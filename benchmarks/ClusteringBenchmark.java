@@ -0,0 +1,111 @@
+package dja33.msc.ukc.myapplication.benchmarks;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.algo.GridBasedAlgorithm;
+
+import dja33.msc.ukc.myapplication.DistanceCalculator;
+import dja33.msc.ukc.myapplication.QuadtreeAlgorithm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Clustering Benchmark
+ *
+ * Cost of the GridBasedAlgorithm MapHandler used to use against the
+ * QuadtreeAlgorithm that replaced it, both loading every friend as
+ * addCluster does and clustering at a street and a city level zoom as
+ * happens on every camera idle.
+ *
+ * The quadtree keeps its last result while nothing changes, so one
+ * friend is moved before each of its clusterings to measure the real work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusteringBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    @Param({"10", "15"})
+    public double zoom;
+
+    private List<BenchmarkData.Friend> friends;
+    private GridBasedAlgorithm<BenchmarkData.Friend> loaded;
+    private QuadtreeAlgorithm<BenchmarkData.Friend> quadtree;
+    private QuadtreeAlgorithm<BenchmarkData.Friend> quadtreeViewport;
+
+    @Setup
+    public void setUp(){
+        friends = BenchmarkData.friends(size, BenchmarkData.SEED);
+        loaded = new GridBasedAlgorithm<>();
+        loaded.addItems(friends);
+        quadtree = new QuadtreeAlgorithm<>();
+        quadtree.addItems(friends);
+
+        // Roughly what a phone shows around the user at the zoom being measured
+        final double span = 360 / Math.pow(2, zoom) * 2;
+        quadtreeViewport = new QuadtreeAlgorithm<>();
+        quadtreeViewport.addItems(friends);
+        quadtreeViewport.setVisibleBounds(new LatLngBounds(
+                new LatLng(DistanceCalculator.USER_LAT - span / 2, DistanceCalculator.USER_LON - span / 2),
+                new LatLng(DistanceCalculator.USER_LAT + span / 2, DistanceCalculator.USER_LON + span / 2)));
+    }
+
+    @Benchmark
+    public GridBasedAlgorithm<BenchmarkData.Friend> load(){
+        final GridBasedAlgorithm<BenchmarkData.Friend> algorithm = new GridBasedAlgorithm<>();
+        algorithm.addItems(friends);
+        return algorithm;
+    }
+
+    @Benchmark
+    public Set<? extends Cluster<BenchmarkData.Friend>> cluster(){
+        return loaded.getClusters(zoom);
+    }
+
+    @Benchmark
+    public QuadtreeAlgorithm<BenchmarkData.Friend> loadQuadtree(){
+        final QuadtreeAlgorithm<BenchmarkData.Friend> algorithm = new QuadtreeAlgorithm<>();
+        algorithm.addItems(friends);
+        return algorithm;
+    }
+
+    @Benchmark
+    public Set<? extends Cluster<BenchmarkData.Friend>> clusterQuadtree(){
+        return changeAndCluster(quadtree);
+    }
+
+    @Benchmark
+    public Set<? extends Cluster<BenchmarkData.Friend>> clusterQuadtreeViewport(){
+        return changeAndCluster(quadtreeViewport);
+    }
+
+    private Set<? extends Cluster<BenchmarkData.Friend>> changeAndCluster(
+            final QuadtreeAlgorithm<BenchmarkData.Friend> algorithm){
+        final BenchmarkData.Friend moved = friends.get(0);
+        algorithm.removeItem(moved);
+        algorithm.addItem(moved);
+        return algorithm.getClusters(zoom);
+    }
+}
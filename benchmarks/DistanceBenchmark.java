@@ -0,0 +1,134 @@
+package dja33.msc.ukc.myapplication.benchmarks;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import dja33.msc.ukc.myapplication.DistanceCalculator;
+import dja33.msc.ukc.myapplication.DistanceMetric;
+
+/**
+ *
+ * Distance Benchmark
+ *
+ * Cost of measuring every friend in a poll, one at a time through
+ * calculateDistance and getDistance as each Person does, against the
+ * batch API and the different metrics. Formatting is measured on its
+ * own against the String.format it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    private LatLng[] positions;
+    private double[] lats;
+    private double[] lons;
+    private double[] out;
+    private ForkJoinPool pool;
+    private final StringBuilder builder = new StringBuilder(64);
+
+    @Setup
+    public void setUp(){
+        final double[][] coordinates = BenchmarkData.coordinates(size, BenchmarkData.SEED);
+        lats = coordinates[0];
+        lons = coordinates[1];
+        out = new double[size];
+        positions = new LatLng[size];
+        for(int i = 0; i < size; i++){
+            positions[i] = new LatLng(lats[i], lons[i]);
+        }
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown(){
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public void calculateDistance(final Blackhole bh){
+        for(LatLng p : positions){
+            bh.consume(DistanceCalculator.calculateDistance(p.latitude, p.longitude));
+        }
+    }
+
+    @Benchmark
+    public void getDistance(final Blackhole bh){
+        for(LatLng p : positions){
+            bh.consume(DistanceCalculator.getDistance(p.latitude, p.longitude));
+        }
+    }
+
+    @Benchmark
+    public void formatDistance(final Blackhole bh){
+        for(int i = 0; i < size; i++){
+            bh.consume(DistanceCalculator.formatDistance(lats[i] - lons[i]));
+        }
+    }
+
+    @Benchmark
+    public void appendDistance(final Blackhole bh){
+        for(int i = 0; i < size; i++){
+            builder.setLength(0);
+            bh.consume(DistanceCalculator.appendDistance(builder, lats[i] - lons[i]));
+        }
+    }
+
+    @Benchmark
+    public void stringFormat(final Blackhole bh){
+        for(int i = 0; i < size; i++){
+            final double km = lats[i] - lons[i];
+            bh.consume(String.format("Distance away: %dm | %.2fmi", (int) (km * 1000), km / 1.609344));
+        }
+    }
+
+    @Benchmark
+    public double[] batch(){
+        DistanceCalculator.calculateDistances(DistanceCalculator.USER_LAT, DistanceCalculator.USER_LON, lats, lons, out, size);
+        return out;
+    }
+
+    @Benchmark
+    public double[] batchParallel(){
+        DistanceCalculator.calculateDistances(DistanceCalculator.USER_LAT, DistanceCalculator.USER_LON, lats, lons, out, size, pool);
+        return out;
+    }
+
+    @Benchmark
+    public void equirectangular(final Blackhole bh){
+        metric(DistanceMetric.EQUIRECTANGULAR, bh);
+    }
+
+    @Benchmark
+    public void vincenty(final Blackhole bh){
+        metric(DistanceMetric.VINCENTY, bh);
+    }
+
+    private void metric(final DistanceMetric metric, final Blackhole bh){
+        for(int i = 0; i < size; i++){
+            bh.consume(metric.distance(DistanceCalculator.USER_LAT, DistanceCalculator.USER_LON, lats[i], lons[i]));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package dja33.msc.ukc.myapplication.benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import dja33.msc.ukc.myapplication.BinaryFeed;
+import dja33.msc.ukc.myapplication.FriendStore;
+import dja33.msc.ukc.myapplication.UserFeedParser;
+
+/**
+ *
+ * Feed Parse Benchmark
+ *
+ * Cost of turning a Users payload into records, the old pollData way of
+ * building a JSONObject tree from the whole response as a String, against
+ * streaming it with the UserFeedParser, and streaming it straight into a
+ * FriendStore that already holds the previous poll. The same payload in
+ * the BinaryFeed form is decoded likewise for comparison, it is a third
+ * the size of the JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedParseBenchmark {
+
+    @Param({"100", "10000", "100000", "1000000"})
+    public int size;
+
+    private String json;
+    private byte[] bytes;
+    private FriendStore store;
+    private byte[] binary;
+    private final BinaryFeed.Decoder decoder = new BinaryFeed.Decoder();
+
+    @Setup
+    public void setUp() throws IOException {
+        json = BenchmarkData.feed(size, BenchmarkData.SEED);
+        bytes = json.getBytes(Charset.forName("UTF-8"));
+        store = new FriendStore(size);
+        final FriendStore.Update first = store.beginUpdate();
+        UserFeedParser.parse(new ByteArrayInputStream(bytes), first);
+        first.finish();
+
+        final BinaryFeed.Encoder encoder = new BinaryFeed.Encoder();
+        UserFeedParser.parse(new ByteArrayInputStream(bytes), encoder);
+        binary = encoder.toByteArray();
+    }
+
+    @Benchmark
+    public void jsonTree(final Blackhole bh) throws JSONException {
+        final JSONArray array = new JSONObject(json).getJSONArray("Users");
+        for(int i = 0; i < array.length(); i++){
+            final JSONObject js = array.getJSONObject(i);
+            bh.consume(js.getDouble("lat"));
+            bh.consume(js.getDouble("lon"));
+            bh.consume(js.getString("name"));
+        }
+    }
+
+    @Benchmark
+    public int streaming(final Blackhole bh) throws IOException {
+        return UserFeedParser.parse(new ByteArrayInputStream(bytes), new UserFeedParser.Sink() {
+            @Override
+            public void onUser(double lat, double lon, String name) {
+                bh.consume(lat);
+                bh.consume(lon);
+                bh.consume(name);
+            }
+        });
+    }
+
+    @Benchmark
+    public int streamingIntoStore() throws IOException {
+        final FriendStore.Update update = store.beginUpdate();
+        UserFeedParser.parse(new ByteArrayInputStream(bytes), update);
+        return update.finish().getChangeCount();
+    }
+
+    @Benchmark
+    public int binary(final Blackhole bh) throws IOException {
+        return decoder.decode(ByteBuffer.wrap(binary), new UserFeedParser.Sink() {
+            @Override
+            public void onUser(double lat, double lon, String name) {
+                bh.consume(lat);
+                bh.consume(lon);
+                bh.consume(name);
+            }
+        });
+    }
+
+    @Benchmark
+    public int binaryIntoStore() throws IOException {
+        final FriendStore.Update update = store.beginUpdate();
+        decoder.decode(ByteBuffer.wrap(binary), update);
+        return update.finish().getChangeCount();
+    }
+}
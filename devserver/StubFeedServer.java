@@ -0,0 +1,735 @@
+package dja33.msc.ukc.myapplication.devserver;
+
+import dja33.msc.ukc.myapplication.BinaryFeed;
+import dja33.msc.ukc.myapplication.DistanceCalculator;
+import dja33.msc.ukc.myapplication.UserFeedParser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ * Stub Feed Server
+ *
+ * Minimal local HTTP server serving a friend feed, used during development
+ * to exercise the HTTPHandler without the real website. Only GET is
+ * supported and every connection is closed after its response.
+ *
+ * Behaves like a well configured website would, responding with an ETag
+ * and Last-Modified, answering matching conditional requests with a 304
+ * and gzipping the body when the client accepts it. A client accepting
+ * the BinaryFeed content type is sent the feed in that form, with its
+ * own ETag. Counts requests,
+ * 304s and body bytes sent so the savings can be checked. Responses can
+ * be delayed to stand in for a slow shard of a sharded feed.
+ *
+ * A request that accepts text/event-stream is answered with a stream of
+ * server-sent events instead, see FeedStream. Users changed with
+ * {@link #upsert(double, double, String)} and {@link #delete(String)} are
+ * pushed as they happen and the polled feed follows along. A bounded
+ * history of events is kept so a client reconnecting with a Last-Event-ID
+ * is sent only what it missed, anyone further behind is sent a snapshot
+ * of the whole feed. Streaming can be turned off to check the client
+ * falls back to polling, and open streams dropped to check it resumes.
+ *
+ * A request with a bbox=west,south,east,north query parameter, as sent by
+ * TileFeed, is answered with only the users inside that box.
+ *
+ * Changes only mark the feed as stale, it is encoded when the next request
+ * for it arrives so a burst of changes costs one encoding.
+ *
+ * Can be run on its own, serving a synthetic feed of the given size:
+ *   java dja33.msc.ukc.myapplication.devserver.StubFeedServer [users] [port]
+ */
+public class StubFeedServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Events kept for clients that reconnect */
+    private static final int HISTORY = 1024;
+
+    /* Comment sent on an idle stream so clients can tell it is still alive */
+    private static final long HEARTBEAT = 15000;
+
+    private final ServerSocket socket;
+    private final ExecutorService workers;
+
+    /* The encoded feed, null once the users change until a request encodes it again, guarded by events */
+    private Feed feed;
+
+    /* The feed as it was set, served until the users next change, guarded by events */
+    private byte[] setJson;
+
+    /* When the users last changed, the Last-Modified of the next feed, guarded by events */
+    private Date modified = new Date();
+
+    /* How long every response is held back in ms */
+    private volatile long responseDelay;
+
+    /* Users behind the feed and the events that changed them, guarded by events */
+    private final Object events = new Object();
+    private final Map<String, double[]> users = new LinkedHashMap<>();
+    private final ArrayDeque<Event> history = new ArrayDeque<>();
+    private long lastEventId;
+
+    private volatile boolean streaming = true;
+    private final Set<Socket> streams = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong streamsOpened = new AtomicLong();
+    private final AtomicLong streamsResumed = new AtomicLong();
+    private final AtomicLong boxRequests = new AtomicLong();
+
+    /**
+     * Create the server on an ephemeral port of the loopback address,
+     * serving an empty feed until one is set
+     * @throws IOException If the socket could not be bound
+     */
+    public StubFeedServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Create the server on the given port of the loopback address
+     * @param port The port, 0 for any free port
+     * @throws IOException If the socket could not be bound
+     */
+    public StubFeedServer(final int port) throws IOException {
+        this.socket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        this.workers = Executors.newCachedThreadPool();
+        setFeed("{\"Users\":[]}");
+    }
+
+    /**
+     * Start accepting connections on a background thread
+     */
+    public void start(){
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * Stop the server and close the socket
+     */
+    public void stop(){
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        disconnectStreams();
+        workers.shutdownNow();
+    }
+
+    /**
+     * The URL of the feed
+     * @return url
+     */
+    public String getURL(){
+        return "http://127.0.0.1:" + socket.getLocalPort() + "/";
+    }
+
+    /**
+     * Replace the feed being served, a new ETag and Last-Modified are given.
+     * Open streams are sent the whole feed as a snapshot.
+     * @param json The whole feed
+     */
+    public void setFeed(final String json){
+        synchronized (events){
+            users.clear();
+            try {
+                UserFeedParser.parse(new StringReader(json), new UserFeedParser.Sink() {
+                    @Override
+                    public void onUser(double lat, double lon, String name) {
+                        if(!users.containsKey(name)){
+                            users.put(name, new double[]{ lat, lon });
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                // Served as it is, i.e to check malformed feeds are handled
+            }
+            setJson = json.getBytes(UTF_8);
+            changed();
+            // Nothing before this can be replayed, everyone is sent the snapshot
+            history.clear();
+            lastEventId++;
+            events.notifyAll();
+        }
+    }
+
+    /**
+     * Add a user or move them, pushed to open streams as an upsert event
+     * @param lat Latitude of the user
+     * @param lon Longitude of the user
+     * @param name Name of the user
+     */
+    public void upsert(final double lat, final double lon, final String name){
+        synchronized (events){
+            users.put(name, new double[]{ lat, lon });
+            publish("upsert", lat, lon, name);
+        }
+    }
+
+    /**
+     * Remove a user, pushed to open streams as a delete event
+     * @param name Name of the user
+     * @return true if there was such a user
+     */
+    public boolean delete(final String name){
+        synchronized (events){
+            final double[] last = users.remove(name);
+            if(last == null){
+                return false;
+            }
+            publish("delete", last[0], last[1], name);
+            return true;
+        }
+    }
+
+    /**
+     * Whether requests for an event stream are streamed, otherwise they
+     * are answered with the feed like any other request
+     * @param enabled false to act like a website without streaming
+     */
+    public void setStreaming(final boolean enabled){
+        streaming = enabled;
+    }
+
+    /**
+     * Drop every open stream, clients should reconnect and resume
+     */
+    public void disconnectStreams(){
+        for(Socket s : streams){
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Requests for the users in a bounding box, i.e tiles
+     * @return box request count
+     */
+    public long getBoxRequestCount(){
+        return boxRequests.get();
+    }
+
+    public long getStreamCount(){
+        return streamsOpened.get();
+    }
+
+    /**
+     * Streams opened with a Last-Event-ID that could be resumed without a snapshot
+     * @return resumed count
+     */
+    public long getResumedStreamCount(){
+        return streamsResumed.get();
+    }
+
+    /**
+     * Hold back every response, i.e to check a client's timeouts
+     * @param millis The delay in ms, 0 for none
+     */
+    public void setResponseDelay(final long millis){
+        responseDelay = millis;
+    }
+
+    public long getRequestCount(){
+        return requests.get();
+    }
+
+    public long getNotModifiedCount(){
+        return notModified.get();
+    }
+
+    public long getBytesSent(){
+        return bytesSent.get();
+    }
+
+    /**
+     * Generate a feed of users scattered around the users location,
+     * the same seed always gives the same feed
+     * @param users How many users
+     * @param seed Seed for the positions
+     * @return the feed as JSON
+     */
+    public static String syntheticFeed(final int users, final long seed){
+        final Random random = new Random(seed);
+        final StringBuilder json = new StringBuilder(users * 64 + 16).append("{\"Users\":[");
+        for(int i = 0; i < users; i++){
+            if(i > 0){
+                json.append(',');
+            }
+            json.append("{\"lat\":").append(DistanceCalculator.USER_LAT + (random.nextDouble() - 0.5) * 0.2)
+                    .append(",\"lon\":").append(DistanceCalculator.USER_LON + (random.nextDouble() - 0.5) * 0.3)
+                    .append(",\"name\":\"User ").append(i).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private void accept(){
+        while(!socket.isClosed()){
+            try {
+                final Socket client = socket.accept();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (SocketException e) {
+                // Closed by stop
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(final Socket client){
+        try (Socket s = client) {
+            final Map<String, String> headers = new HashMap<>();
+            final String requestLine = readRequest(new BufferedInputStream(s.getInputStream()), headers);
+            final OutputStream out = s.getOutputStream();
+            requests.incrementAndGet();
+
+            final long delay = responseDelay;
+            if(delay > 0){
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    // Stopped, respond straight away
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if(requestLine == null || !requestLine.startsWith("GET ")){
+                respond(out, 405, "Method Not Allowed", null, null, null);
+                return;
+            }
+
+            final String accept = headers.get("accept");
+            if(streaming && accept != null && accept.contains("text/event-stream")){
+                stream(s, out, headers.get("last-event-id"));
+                return;
+            }
+
+            final double[] box = boundingBox(requestLine);
+            final Feed current = box == null ? feed() : boxFeed(box);
+            final boolean binary = accept != null && accept.contains(BinaryFeed.CONTENT_TYPE);
+            final Representation chosen = binary ? current.binary() : current.json;
+            final String ifNoneMatch = headers.get("if-none-match");
+            final String ifModifiedSince = headers.get("if-modified-since");
+            if(ifNoneMatch != null ? ifNoneMatch.equals(chosen.etag) : current.lastModified.equals(ifModifiedSince)){
+                notModified.incrementAndGet();
+                respond(out, 304, "Not Modified", current, chosen, null);
+                return;
+            }
+
+            final String encoding = headers.get("accept-encoding");
+            final boolean gzip = encoding != null && encoding.toLowerCase(Locale.US).contains("gzip");
+            respond(out, 200, "OK", current, chosen, gzip ? chosen.gzipped() : chosen.body);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void respond(final OutputStream out, final int code, final String reason, final Feed current,
+                         final Representation chosen, final byte[] body) throws IOException {
+        final StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+        head.append("Connection: close\r\n");
+        if(current != null){
+            head.append("ETag: ").append(chosen.etag).append("\r\n");
+            head.append("Last-Modified: ").append(current.lastModified).append("\r\n");
+            head.append("Vary: Accept, Accept-Encoding\r\n");
+        }
+        if(body != null){
+            head.append("Content-Type: ").append(chosen.type).append("\r\n");
+            if(body != chosen.body){
+                head.append("Content-Encoding: gzip\r\n");
+            }
+        }
+        head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n\r\n");
+
+        out.write(head.toString().getBytes(UTF_8));
+        if(body != null){
+            out.write(body);
+            bytesSent.addAndGet(body.length);
+        }
+        out.flush();
+    }
+
+    /**
+     * The bbox query parameter of a request
+     * @return { west, south, east, north }, null if there is none or it is malformed
+     */
+    private static double[] boundingBox(final String requestLine){
+        final int query = requestLine.indexOf('?');
+        final int end = requestLine.indexOf(' ', 4);
+        if(query < 0 || query > end){
+            return null;
+        }
+        for(String param : requestLine.substring(query + 1, end).split("&")){
+            if(!param.startsWith("bbox=")){
+                continue;
+            }
+            final String[] edges = param.substring(5).split(",");
+            if(edges.length != 4){
+                return null;
+            }
+            try {
+                final double[] box = new double[4];
+                for(int i = 0; i < 4; i++){
+                    box[i] = Double.parseDouble(edges[i]);
+                }
+                return box;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A feed of just the users in a box, its ETag follows its contents
+     * @param box { west, south, east, north }
+     */
+    private Feed boxFeed(final double[] box){
+        boxRequests.incrementAndGet();
+        final StringBuilder json = new StringBuilder("{\"Users\":[");
+        boolean first = true;
+        synchronized (events){
+            for(Map.Entry<String, double[]> user : users.entrySet()){
+                final double lat = user.getValue()[0];
+                final double lon = user.getValue()[1];
+                // Edges are inclusive, a user on the edge of two tiles is in both and the client dedupes
+                final boolean across = box[0] <= box[2] ? lon >= box[0] && lon <= box[2] : lon >= box[0] || lon <= box[2];
+                if(across && lat >= box[1] && lat <= box[3]){
+                    if(!first){
+                        json.append(',');
+                    }
+                    appendUser(json, lat, lon, user.getKey());
+                    first = false;
+                }
+            }
+        }
+        return new Feed(json.append("]}").toString().getBytes(UTF_8), new Date());
+    }
+
+    /**
+     * The feed of every user, encoded now if the users changed since it was last asked for
+     */
+    private Feed feed(){
+        synchronized (events){
+            if(feed == null){
+                if(setJson != null){
+                    feed = new Feed(setJson, modified);
+                }else{
+                    final StringBuilder json = new StringBuilder(users.size() * 64 + 16).append("{\"Users\":[");
+                    boolean first = true;
+                    for(Map.Entry<String, double[]> user : users.entrySet()){
+                        if(!first){
+                            json.append(',');
+                        }
+                        appendUser(json, user.getValue()[0], user.getValue()[1], user.getKey());
+                        first = false;
+                    }
+                    feed = new Feed(json.append("]}").toString().getBytes(UTF_8), modified);
+                }
+            }
+            return feed;
+        }
+    }
+
+    /**
+     * Drop the encoded feed, called holding the events lock
+     */
+    private void changed(){
+        feed = null;
+        modified = new Date();
+    }
+
+    /**
+     * Serve an event stream until the client goes away or the stream is dropped
+     * @param s The client socket
+     * @param out Its output
+     * @param resumeFrom The Last-Event-ID sent by the client, null if none
+     */
+    private void stream(final Socket s, final OutputStream out, final String resumeFrom) throws IOException {
+        streams.add(s);
+        streamsOpened.incrementAndGet();
+        try {
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Connection: close\r\n"
+                    + "Content-Type: text/event-stream; charset=utf-8\r\n"
+                    + "Cache-Control: no-cache\r\n\r\n").getBytes(UTF_8));
+            out.flush();
+
+            long sent = -1;
+            if(resumeFrom != null){
+                try {
+                    sent = Long.parseLong(resumeFrom.trim());
+                } catch (NumberFormatException e) {
+                    // Not one of ours, start again with a snapshot
+                }
+            }
+
+            final StringBuilder text = new StringBuilder();
+            synchronized (events){
+                if(sent >= 0 && (sent == lastEventId || canReplay(sent))){
+                    streamsResumed.incrementAndGet();
+                }
+            }
+            while(!s.isClosed()){
+                text.setLength(0);
+                synchronized (events){
+                    if(sent > lastEventId){
+                        sent = -1;
+                    }
+                    if(sent == lastEventId){
+                        events.wait(HEARTBEAT);
+                    }
+                    if(sent == lastEventId){
+                        // Nothing new, a heartbeat is sent below
+                    }else if(canReplay(sent)){
+                        for(Event e : history){
+                            if(e.id > sent){
+                                e.appendTo(text);
+                                sent = e.id;
+                            }
+                        }
+                    }else{
+                        appendEvent(text, lastEventId, "snapshot", new String(feed().json.body, UTF_8));
+                        sent = lastEventId;
+                    }
+                }
+                // Nothing new before the heartbeat, let the client know we're here
+                out.write((text.length() == 0 ? ":\n\n" : text.toString()).getBytes(UTF_8));
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            // Client went away or the stream was dropped
+        } finally {
+            streams.remove(s);
+        }
+    }
+
+    /**
+     * Whether the events after the given id are all still in the history
+     */
+    private boolean canReplay(final long sent){
+        return sent >= 0 && !history.isEmpty() && history.peekFirst().id <= sent + 1;
+    }
+
+    /**
+     * Record an event and wake every open stream, called holding the events lock
+     */
+    private void publish(final String type, final double lat, final double lon, final String name){
+        final StringBuilder data = new StringBuilder("{\"Users\":[");
+        appendUser(data, lat, lon, name);
+        history.addLast(new Event(++lastEventId, type, data.append("]}").toString()));
+        if(history.size() > HISTORY){
+            history.removeFirst();
+        }
+        // The feed as set no longer matches the users
+        setJson = null;
+        changed();
+        events.notifyAll();
+    }
+
+    private static void appendUser(final StringBuilder out, final double lat, final double lon, final String name){
+        out.append("{\"lat\":").append(lat).append(",\"lon\":").append(lon).append(",\"name\":\"");
+        for(int i = 0; i < name.length(); i++){
+            final char c = name.charAt(i);
+            if(c == '"' || c == '\\'){
+                out.append('\\').append(c);
+            }else if(c < 0x20){
+                out.append(String.format(Locale.US, "\\u%04x", (int) c));
+            }else{
+                out.append(c);
+            }
+        }
+        out.append("\"}");
+    }
+
+    private static void appendEvent(final StringBuilder out, final long id, final String type, final String data){
+        out.append("id: ").append(id).append('\n');
+        out.append("event: ").append(type).append('\n');
+        // Each line of the data is its own field, the client joins them back up
+        for(String line : data.split("\n", -1)){
+            out.append("data: ").append(line).append('\n');
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Read the request line and headers, header names are lower cased
+     * @return the request line or null if the connection closed first
+     */
+    private static String readRequest(final InputStream in, final Map<String, String> headers) throws IOException {
+        final String requestLine = readLine(in);
+        if(requestLine == null){
+            return null;
+        }
+        String line;
+        while((line = readLine(in)) != null && !line.isEmpty()){
+            final int colon = line.indexOf(':');
+            if(colon > 0){
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        return requestLine;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1){
+            if(c == '\n'){
+                return line.toString();
+            }
+            if(c != '\r'){
+                line.append((char) c);
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * A version of the feed with its validators
+     */
+    private static class Feed {
+
+        final Representation json;
+        final String lastModified;
+        private Representation binary;
+
+        Feed(final byte[] body, final Date modified){
+            this.json = new Representation("application/json; charset=utf-8", body, "");
+
+            final SimpleDateFormat http = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            http.setTimeZone(TimeZone.getTimeZone("GMT"));
+            this.lastModified = http.format(modified);
+        }
+
+        /**
+         * The feed in the binary form, encoded the first time it is asked
+         * for. A feed that isn't valid JSON is sent as it is.
+         */
+        synchronized Representation binary(){
+            if(binary == null){
+                final BinaryFeed.Encoder encoder = new BinaryFeed.Encoder();
+                try {
+                    UserFeedParser.parse(new ByteArrayInputStream(json.body), encoder);
+                    binary = new Representation(BinaryFeed.CONTENT_TYPE, encoder.toByteArray(), "b");
+                } catch (IOException e) {
+                    binary = json;
+                }
+            }
+            return binary;
+        }
+    }
+
+    /**
+     * One form of a feed, each has its own ETag
+     */
+    private static class Representation {
+
+        final String type;
+        final byte[] body;
+        final String etag;
+        private byte[] gzipped;
+
+        Representation(final String type, final byte[] body, final String tag){
+            this.type = type;
+            this.body = body;
+            final CRC32 crc = new CRC32();
+            crc.update(body);
+            this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + body.length + tag + "\"";
+        }
+
+        /**
+         * The body gzipped, compressed the first time a client accepts it
+         */
+        synchronized byte[] gzipped(){
+            if(gzipped == null){
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                gzipped = compressed.toByteArray();
+            }
+            return gzipped;
+        }
+    }
+
+    /**
+     * A change to the users, as sent on a stream
+     */
+    private static class Event {
+
+        final long id;
+        final String type;
+        final String data;
+
+        Event(final long id, final String type, final String data){
+            this.id = id;
+            this.type = type;
+            this.data = data;
+        }
+
+        void appendTo(final StringBuilder out){
+            appendEvent(out, id, type, data);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        final StubFeedServer server = new StubFeedServer(port);
+        server.setFeed(syntheticFeed(users, 42));
+        server.start();
+        System.out.println("Serving " + users + " users at " + server.getURL());
+    }
+}
@@ -0,0 +1,27 @@
+package dja33.msc.ukc.myapplication.headless;
+
+import dja33.msc.ukc.myapplication.UserFeedParser;
+
+/**
+ *
+ * Feed Source
+ *
+ * Where the HeadlessEngine fetches the feed from, i.e a website through
+ * HTTPFeedSource or records generated in memory.
+ */
+public interface FeedSource {
+
+    /**
+     * Fetch the feed and pass every user in it to the sink, on the calling thread
+     * @param sink Where to send each user
+     * @return 200 if a new feed was passed in full, 304 if it hasn't changed,
+     * anything else if it failed, the users passed before it failed are kept
+     */
+    int fetch(UserFeedParser.Sink sink);
+
+    /**
+     * Bytes received by the last fetch, for reporting
+     * @return bytes received, 0 if nothing was sent or it isn't known
+     */
+    long getLastBytesReceived();
+}
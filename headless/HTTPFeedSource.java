@@ -0,0 +1,46 @@
+package dja33.msc.ukc.myapplication.headless;
+
+import dja33.msc.ukc.myapplication.HTTPHandler;
+import dja33.msc.ukc.myapplication.UserFeedParser;
+
+/**
+ *
+ * HTTP Feed Source
+ *
+ * A FeedSource fetching with the same HTTPHandler the app polls with, so
+ * conditional requests, compression and streaming parsing are all exercised.
+ */
+public class HTTPFeedSource implements FeedSource {
+
+    /* Response given for a feed that was fetched but couldn't be parsed */
+    public static final int MALFORMED = -2;
+
+    private final HTTPHandler handler;
+
+    /**
+     * Create the source
+     * @param url The feed
+     */
+    public HTTPFeedSource(final String url){
+        this.handler = new HTTPHandler(url);
+    }
+
+    @Override
+    public int fetch(final UserFeedParser.Sink sink) {
+        final int response = handler.fetch(sink);
+        return response == 200 && !handler.isParsed() ? MALFORMED : response;
+    }
+
+    @Override
+    public long getLastBytesReceived() {
+        return handler.getLastBytesReceived();
+    }
+
+    /**
+     * The handler, for reading its transfer stats
+     * @return the handler
+     */
+    public HTTPHandler getHTTPHandler(){
+        return handler;
+    }
+}
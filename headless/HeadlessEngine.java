@@ -0,0 +1,296 @@
+package dja33.msc.ukc.myapplication.headless;
+
+import dja33.msc.ukc.myapplication.ClusterQuadtree;
+import dja33.msc.ukc.myapplication.FriendStore;
+import dja33.msc.ukc.myapplication.FriendStoreTree;
+import dja33.msc.ukc.myapplication.UserFeedParser;
+import dja33.msc.ukc.myapplication.WebMercator;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Headless Engine
+ *
+ * The friend pipeline without the map, so it can run and be load tested
+ * on a plain JVM. Each poll goes through the same stages as on the device:
+ *
+ *   fetch    the feed from a FeedSource, parsed into a buffer as it arrives
+ *   diff     the buffered users into a FriendStore, friends not in the feed are removed
+ *   index    the changed friends are moved in the ClusterQuadtree by a FriendStoreTree
+ *   rank     the closest friends to the users location are found
+ *   cluster  the clusters in view at the camera zoom are counted
+ *
+ * Parsing happens as the body streams in, so it is timed with the fetch.
+ * The users are buffered so the diff is timed on its own.
+ *
+ * Only classes free of Android types are used, the store, tree and
+ * distance calculations are the same ones the app uses.
+ *
+ * Not thread safe, only use from one thread.
+ */
+public class HeadlessEngine {
+
+    /* Same cluster size the ClusterManager uses by default, in pixels */
+    private static final int MAX_DISTANCE = 100;
+
+    /**
+     * Outcome and timings of one poll
+     */
+    public static final class Result {
+
+        private int response;
+        private long bytes;
+        private int records;
+        private int changes;
+        private int clusters;
+        private long fetchNanos;
+        private long diffNanos;
+        private long indexNanos;
+        private long rankNanos;
+        private long clusterNanos;
+
+        public int getResponse(){
+            return response;
+        }
+
+        public long getBytesReceived(){
+            return bytes;
+        }
+
+        /**
+         * Users passed on by the source
+         * @return record count
+         */
+        public int getRecordCount(){
+            return records;
+        }
+
+        /**
+         * Friends added, moved or removed
+         * @return change count
+         */
+        public int getChangeCount(){
+            return changes;
+        }
+
+        /**
+         * Clusters in view, 0 if nothing changed
+         * @return cluster count
+         */
+        public int getClusterCount(){
+            return clusters;
+        }
+
+        /* Time spent in each stage, 0 for a stage that was skipped */
+
+        /**
+         * Time spent fetching and parsing the feed, the two overlap
+         * @return nanos
+         */
+        public long getFetchNanos(){
+            return fetchNanos;
+        }
+
+        public long getDiffNanos(){
+            return diffNanos;
+        }
+
+        public long getIndexNanos(){
+            return indexNanos;
+        }
+
+        public long getRankNanos(){
+            return rankNanos;
+        }
+
+        public long getClusterNanos(){
+            return clusterNanos;
+        }
+
+        /**
+         * Time spent in the whole poll
+         * @return nanos
+         */
+        public long getTotalNanos(){
+            return fetchNanos + diffNanos + indexNanos + rankNanos + clusterNanos;
+        }
+    }
+
+    private final FeedSource source;
+    private final FriendStore store = new FriendStore();
+    private final ClusterQuadtree<Integer> tree = new ClusterQuadtree<>();
+    private final FriendStoreTree placement = new FriendStoreTree(store, tree);
+
+    // Users of the last fetch, reused by every poll
+    private final Records records = new Records();
+
+    // Closest friends, closest first
+    private final int[] nearest;
+    private final double[] nearestDistance;
+    private int nearestCount;
+
+    // Area in view in world coordinates and the tree level for the zoom, the whole world until set
+    private double[] view = { 0, 0, 1, 1 };
+    private int level = ClusterQuadtree.level(0, MAX_DISTANCE);
+
+    /**
+     * Create the engine with no friends
+     * @param source Where the feed comes from
+     * @param closest How many of the closest friends to rank
+     */
+    public HeadlessEngine(final FeedSource source, final int closest){
+        if(closest <= 0){
+            throw new IllegalArgumentException("Must rank at least one friend.");
+        }
+        this.source = source;
+        this.nearest = new int[closest];
+        this.nearestDistance = new double[closest];
+    }
+
+    /**
+     * Set the part of the map in view, the clusters are only counted there
+     * @param south Latitude of the bottom edge
+     * @param west Longitude of the left edge
+     * @param north Latitude of the top edge
+     * @param east Longitude of the right edge, must not cross the antimeridian
+     * @param zoom The camera zoom
+     */
+    public void setViewport(final double south, final double west, final double north, final double east,
+                            final double zoom){
+        view = new double[]{ WebMercator.toX(west), WebMercator.toY(north), WebMercator.toX(east), WebMercator.toY(south) };
+        level = ClusterQuadtree.level(zoom, MAX_DISTANCE);
+    }
+
+    /**
+     * Poll the source once and run every stage. A feed that fails part way
+     * is indexed as far as it got, nobody is removed for missing from it.
+     * @return the outcome
+     */
+    public Result poll(){
+        final Result result = new Result();
+        records.size = 0;
+
+        long start = System.nanoTime();
+        result.response = source.fetch(records);
+        long end = System.nanoTime();
+        result.fetchNanos = end - start;
+        result.bytes = source.getLastBytesReceived();
+        result.records = records.size;
+
+        start = end;
+        final FriendStore.Update update = store.beginUpdate();
+        for(int i = 0; i < records.size; i++){
+            update.onUser(records.lats[i], records.lons[i], records.names[i]);
+        }
+        if(result.response == 200){
+            update.finish();
+        }
+        end = System.nanoTime();
+        result.diffNanos = end - start;
+        result.changes = update.getChangeCount();
+        if(result.changes == 0){
+            // Unchanged or failed before anything arrived, the last answers still stand
+            return result;
+        }
+
+        start = end;
+        placement.apply(update);
+        end = System.nanoTime();
+        result.indexNanos = end - start;
+
+        start = end;
+        rank();
+        end = System.nanoTime();
+        result.rankNanos = end - start;
+
+        start = end;
+        result.clusters = cluster();
+        result.clusterNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * The friends
+     * @return the store
+     */
+    public FriendStore getStore(){
+        return store;
+    }
+
+    /**
+     * Number of friends placed in the tree, always the same as in the store
+     * @return size
+     */
+    public int getIndexedCount(){
+        return placement.size();
+    }
+
+    /**
+     * Ids of the closest friends after the last poll that changed anything
+     * @return ids, closest first
+     */
+    public int[] getNearest(){
+        return Arrays.copyOf(nearest, nearestCount);
+    }
+
+    /**
+     * Keep the closest friends in a small sorted list, each
+     * friend is only compared against the furthest kept
+     */
+    private void rank(){
+        nearestCount = 0;
+        synchronized (store){
+            for(int id = store.nextId(0); id != -1; id = store.nextId(id + 1)){
+                final double distance = store.getDistance(id);
+                if(nearestCount == nearest.length && distance >= nearestDistance[nearestCount - 1]){
+                    continue;
+                }
+                int i = Math.min(nearestCount, nearest.length - 1);
+                while(i > 0 && nearestDistance[i - 1] > distance){
+                    nearest[i] = nearest[i - 1];
+                    nearestDistance[i] = nearestDistance[i - 1];
+                    i--;
+                }
+                nearest[i] = id;
+                nearestDistance[i] = distance;
+                nearestCount = Math.min(nearest.length, nearestCount + 1);
+            }
+        }
+    }
+
+    private int cluster(){
+        final int[] count = new int[1];
+        tree.query(level, view[0], view[1], view[2], view[3], new ClusterQuadtree.Visitor<Integer>() {
+            @Override
+            public void visit(ClusterQuadtree.Cell<Integer> cell) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Users of a feed as parallel arrays, grown as needed and kept
+     */
+    private static final class Records implements UserFeedParser.Sink {
+
+        double[] lats = new double[1024];
+        double[] lons = new double[1024];
+        String[] names = new String[1024];
+        int size;
+
+        @Override
+        public void onUser(final double lat, final double lon, final String name) {
+            if(size == names.length){
+                lats = Arrays.copyOf(lats, size * 2);
+                lons = Arrays.copyOf(lons, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+            }
+            lats[size] = lat;
+            lons[size] = lon;
+            names[size] = name;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package dja33.msc.ukc.myapplication.headless;
+
+import dja33.msc.ukc.myapplication.DistanceCalculator;
+import dja33.msc.ukc.myapplication.devserver.StubFeedServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ *
+ * Load Driver
+ *
+ * Runs the HeadlessEngine against a local StubFeedServer serving users
+ * that wander around the users location. Between polls a share of the
+ * users take a step, and a few leave and are replaced by new ones, then
+ * the engine polls and the time each stage took is kept. Reports the
+ * throughput, latency percentiles per stage and the heap used.
+ *
+ * The feed is fetched in the BinaryFeed form unless json is given, so the
+ * two can be compared.
+ *
+ * Seeded, so runs with the same arguments are comparable.
+ *
+ *   java dja33.msc.ukc.myapplication.headless.LoadDriver [users] [polls] [moving share] [churn share] [binary|json]
+ */
+public class LoadDriver {
+
+    /* Polls made before measuring, so the JIT has settled */
+    private static final int WARMUP_POLLS = 20;
+
+    /* Spread of the users around the users location and the longest step, in degrees */
+    private static final double SPREAD_LAT = 0.2;
+    private static final double SPREAD_LON = 0.3;
+    private static final double STEP = 0.0005;
+
+    /* Closest friends ranked on every poll */
+    private static final int CLOSEST = 8;
+
+    private final Random random = new Random(42);
+    private final double[] lats;
+    private final double[] lons;
+    private final int[] names;
+    private int nextName;
+    private final StringBuilder json;
+
+    private LoadDriver(final int users){
+        lats = new double[users];
+        lons = new double[users];
+        names = new int[users];
+        for(int i = 0; i < users; i++){
+            place(i);
+        }
+        json = new StringBuilder(users * 64 + 16);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int polls = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final double moving = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+        final double churn = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+        final boolean binary = args.length <= 4 || !args[4].equalsIgnoreCase("json");
+
+        final LoadDriver driver = new LoadDriver(users);
+        final StubFeedServer server = new StubFeedServer();
+        server.start();
+        try {
+            driver.run(server, polls, moving, churn, binary);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void run(final StubFeedServer server, final int polls, final double moving, final double churn,
+                     final boolean binary){
+        final HTTPFeedSource source = new HTTPFeedSource(server.getURL());
+        source.getHTTPHandler().setBinaryAccepted(binary);
+        final HeadlessEngine engine = new HeadlessEngine(source, CLOSEST);
+        engine.setViewport(DistanceCalculator.USER_LAT - SPREAD_LAT / 2, DistanceCalculator.USER_LON - SPREAD_LON / 2,
+                DistanceCalculator.USER_LAT + SPREAD_LAT / 2, DistanceCalculator.USER_LON + SPREAD_LON / 2, 12);
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        final long[] fetch = new long[polls];
+        final long[] diff = new long[polls];
+        final long[] index = new long[polls];
+        final long[] rank = new long[polls];
+        final long[] cluster = new long[polls];
+        final long[] total = new long[polls];
+        long records = 0;
+        long changes = 0;
+        long bytes = 0;
+        long failures = 0;
+        long peakHeap = 0;
+
+        long began = 0;
+        for(int poll = -WARMUP_POLLS; poll < polls; poll++){
+            step(moving, churn);
+            server.setFeed(feed());
+            if(poll == 0){
+                began = System.nanoTime();
+            }
+
+            final HeadlessEngine.Result result = engine.poll();
+            if(poll < 0){
+                continue;
+            }
+            if(result.getResponse() != 200){
+                failures++;
+            }
+            fetch[poll] = result.getFetchNanos();
+            diff[poll] = result.getDiffNanos();
+            index[poll] = result.getIndexNanos();
+            rank[poll] = result.getRankNanos();
+            cluster[poll] = result.getClusterNanos();
+            total[poll] = result.getTotalNanos();
+            records += result.getRecordCount();
+            changes += result.getChangeCount();
+            bytes += result.getBytesReceived();
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+        }
+        final long wall = System.nanoTime() - began;
+
+        long busy = 0;
+        for(long nanos : total){
+            busy += nanos;
+        }
+        System.gc();
+        final long retained = memory.getHeapMemoryUsage().getUsed();
+
+        System.out.printf(Locale.ROOT, "users=%d polls=%d moving=%.3f churn=%.3f format=%s friends=%d indexed=%d failures=%d%n",
+                lats.length, polls, moving, churn, binary ? "binary" : "json", engine.getStore().size(),
+                engine.getIndexedCount(), failures);
+        System.out.printf(Locale.ROOT, "throughput %.1f polls/s %.0f records/s %.0f changes/s, wall %.1f polls/s%n",
+                polls / (busy / 1e9), records / (busy / 1e9), changes / (busy / 1e9), polls / (wall / 1e9));
+        System.out.printf(Locale.ROOT, "received %d bytes, %.0f per poll%n", bytes, (double) bytes / polls);
+        report("fetch+parse", fetch);
+        report("diff", diff);
+        report("index", index);
+        report("rank", rank);
+        report("cluster", cluster);
+        report("total", total);
+        System.out.printf(Locale.ROOT, "heap peak %.1fMB retained %.1fMB%n", peakHeap / 1048576.0, retained / 1048576.0);
+    }
+
+    /**
+     * Move a share of the users and replace a share with new ones
+     */
+    private void step(final double moving, final double churn){
+        final int moves = (int) Math.round(lats.length * moving);
+        for(int i = 0; i < moves; i++){
+            final int user = random.nextInt(lats.length);
+            lats[user] += (random.nextDouble() - 0.5) * 2 * STEP;
+            lons[user] += (random.nextDouble() - 0.5) * 2 * STEP;
+        }
+        final int replaced = (int) Math.round(lats.length * churn);
+        for(int i = 0; i < replaced; i++){
+            place(random.nextInt(lats.length));
+        }
+    }
+
+    private void place(final int user){
+        lats[user] = DistanceCalculator.USER_LAT + (random.nextDouble() - 0.5) * SPREAD_LAT;
+        lons[user] = DistanceCalculator.USER_LON + (random.nextDouble() - 0.5) * SPREAD_LON;
+        names[user] = nextName++;
+    }
+
+    /**
+     * Every user in the feed format
+     */
+    private String feed(){
+        json.setLength(0);
+        json.append("{\"Users\":[");
+        for(int i = 0; i < lats.length; i++){
+            if(i > 0){
+                json.append(',');
+            }
+            json.append("{\"lat\":").append(lats[i])
+                    .append(",\"lon\":").append(lons[i])
+                    .append(",\"name\":\"User ").append(names[i]).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void report(final String stage, final long[] nanos){
+        final long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "%-11s p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms%n", stage,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(final long[] sorted, final double p){
+        if(sorted.length == 0){
+            return 0;
+        }
+        final int i = (int) Math.ceil(sorted.length * p) - 1;
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+}